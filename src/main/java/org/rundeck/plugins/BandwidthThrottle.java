@@ -0,0 +1,87 @@
+package org.rundeck.plugins;
+
+/**
+ * Token bucket limiting transfer rate in bytes per second. Instances for uploads and downloads are shared by all
+ * plugin instances in the JVM, and the rate can be changed at any time. A configured rate is only applied when the
+ * configuration changes, so a rate changed at runtime is kept until the configured rate is changed. The bucket holds
+ * at most one second of tokens, so idle periods allow a burst of at most one second's worth of bytes.
+ */
+class BandwidthThrottle {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final BandwidthThrottle upload = new BandwidthThrottle();
+    private static final BandwidthThrottle download = new BandwidthThrottle();
+
+    private long rate;
+    private Long configuredRate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    static BandwidthThrottle getUpload() {
+        return upload;
+    }
+
+    static BandwidthThrottle getDownload() {
+        return download;
+    }
+
+    /**
+     * @return rate limit in bytes per second, 0 if unlimited
+     */
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate rate limit in bytes per second, 0 or less for unlimited
+     */
+    synchronized void setRate(long rate) {
+        this.rate = Math.max(0, rate);
+        tokens = Math.min(tokens, this.rate);
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Apply the configured rate limit if it differs from the last configured rate
+     *
+     * @param rate rate limit in bytes per second, 0 or less for unlimited
+     */
+    synchronized void configure(long rate) {
+        if (null == configuredRate || configuredRate != rate) {
+            configuredRate = rate;
+            setRate(rate);
+        }
+    }
+
+    boolean isLimited() {
+        return getRate() > 0;
+    }
+
+    /**
+     * Take tokens for a number of bytes, waiting until the bucket can pay for them
+     *
+     * @param bytes number of bytes transferred
+     *
+     * @return nanoseconds spent waiting
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long acquire(long bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (rate <= 0 || bytes <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate / NANOS_PER_SECOND);
+            lastRefill = now;
+            //borrow against future tokens, later callers wait for the debt to be repaid
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+        return waitNanos;
+    }
+}
@@ -0,0 +1,200 @@
+package org.rundeck.plugins;
+
+import java.io.*;
+import java.util.zip.ZipException;
+
+/**
+ * Index of the blocks in content written by {@link BlockGzipOutputStream}, used to read a range of the uncompressed
+ * content by fetching and decompressing only the blocks which cover it.
+ */
+class BlockGzipIndex {
+    /**
+     * Source of byte ranges of the stored object
+     */
+    interface RangeSource {
+        /**
+         * @return total stored length
+         */
+        long getLength() throws IOException;
+
+        /**
+         * @param start first byte
+         * @param end   last byte, inclusive
+         *
+         * @return stream of the range
+         */
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    private final int blockSize;
+    private final long uncompressedLength;
+    /**
+     * Offsets of each block in the stored and uncompressed content, with a final entry for the end of the data
+     */
+    private final long[] compressedOffsets;
+    private final long[] uncompressedOffsets;
+
+    private BlockGzipIndex(int blockSize, long uncompressedLength, long[] compressedOffsets,
+            long[] uncompressedOffsets) {
+        this.blockSize = blockSize;
+        this.uncompressedLength = uncompressedLength;
+        this.compressedOffsets = compressedOffsets;
+        this.uncompressedOffsets = uncompressedOffsets;
+    }
+
+    /**
+     * Read the trailer and index from the end of the stored content
+     */
+    static BlockGzipIndex read(RangeSource source) throws IOException {
+        long length = source.getLength();
+        if (length < BlockGzipOutputStream.TRAILER_SIZE) {
+            throw new ZipException("Content is too short for a block gzip trailer");
+        }
+        byte[] trailerMember = readRange(source, length - BlockGzipOutputStream.TRAILER_SIZE, length - 1);
+        DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+                extraField(trailerMember, 0, BlockGzipOutputStream.TRAILER_ID)
+        ));
+        int version = trailer.readUnsignedByte();
+        if (version != BlockGzipOutputStream.VERSION) {
+            throw new ZipException("Unsupported block gzip version: " + version);
+        }
+        int blockSize = trailer.readInt();
+        long blockCount = trailer.readLong();
+        long indexOffset = trailer.readLong();
+        long indexLength = trailer.readLong();
+        long uncompressedLength = trailer.readLong();
+        if (blockCount > Integer.MAX_VALUE - 1 || indexOffset + indexLength > length) {
+            throw new ZipException("Invalid block gzip trailer");
+        }
+
+        long[] compressedOffsets = new long[(int) blockCount + 1];
+        long[] uncompressedOffsets = new long[(int) blockCount + 1];
+        if (blockCount > 0) {
+            byte[] index = readRange(source, indexOffset, indexOffset + indexLength - 1);
+            int block = 0;
+            int pos = 0;
+            while (pos < index.length) {
+                byte[] entries = extraField(index, pos, BlockGzipOutputStream.INDEX_ID);
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(entries));
+                for (int i = 0; i < entries.length / 8 && block < blockCount; i++, block++) {
+                    compressedOffsets[block + 1] = compressedOffsets[block] + (data.readInt() & 0xffffffffL);
+                    uncompressedOffsets[block + 1] = uncompressedOffsets[block] + (data.readInt() & 0xffffffffL);
+                }
+                pos += memberLength(index, pos);
+            }
+            if (block != blockCount || uncompressedOffsets[block] != uncompressedLength) {
+                throw new ZipException("Block gzip index does not match the trailer");
+            }
+        }
+        return new BlockGzipIndex(blockSize, uncompressedLength, compressedOffsets, uncompressedOffsets);
+    }
+
+    long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return compressedOffsets.length - 1;
+    }
+
+    /**
+     * Write a range of the uncompressed content
+     *
+     * @param source source
+     * @param offset first uncompressed byte, negative to count back from the end
+     * @param length number of bytes, or -1 for the rest of the content
+     * @param out    destination
+     *
+     * @return number of bytes written
+     */
+    long copyRange(RangeSource source, long offset, long length, OutputStream out) throws IOException {
+        if (offset < 0) {
+            offset = Math.max(0, uncompressedLength + offset);
+        }
+        long end = length < 0 ? uncompressedLength : Math.min(uncompressedLength, offset + length);
+        if (offset >= end) {
+            return 0;
+        }
+        int first = findBlock(offset);
+        int last = findBlock(end - 1);
+        InputStream blocks = source.open(compressedOffsets[first], compressedOffsets[last + 1] - 1);
+        try {
+            InputStream content = new GzipMembersInputStream(blocks);
+            long skip = offset - uncompressedOffsets[first];
+            while (skip > 0) {
+                long skipped = content.skip(skip);
+                if (skipped <= 0) {
+                    throw new EOFException("Unexpected end of block gzip content");
+                }
+                skip -= skipped;
+            }
+            long remaining = end - offset;
+            byte[] buf = new byte[(int) Math.min(64 * 1024, remaining)];
+            while (remaining > 0) {
+                int read = content.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of block gzip content");
+                }
+                out.write(buf, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            blocks.close();
+        }
+        return end - offset;
+    }
+
+    /**
+     * @return index of the block containing the uncompressed offset
+     */
+    private int findBlock(long offset) {
+        int low = 0;
+        int high = getBlockCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (uncompressedOffsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static byte[] readRange(RangeSource source, long start, long end) throws IOException {
+        byte[] data = new byte[(int) (end - start + 1)];
+        InputStream in = source.open(start, end);
+        try {
+            new DataInputStream(in).readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * @return the data of the extra subfield in the empty gzip member at the position
+     */
+    private static byte[] extraField(byte[] member, int pos, byte[] id) throws ZipException {
+        if (member.length < pos + 16 || (member[pos] & 0xff) != 0x1f || (member[pos + 1] & 0xff) != 0x8b
+                || (member[pos + 3] & 4) == 0 || member[pos + 12] != id[0] || member[pos + 13] != id[1]) {
+            throw new ZipException("Invalid block gzip index member");
+        }
+        int len = (member[pos + 14] & 0xff) | ((member[pos + 15] & 0xff) << 8);
+        if (member.length < pos + 16 + len) {
+            throw new ZipException("Invalid block gzip index member");
+        }
+        byte[] data = new byte[len];
+        System.arraycopy(member, pos + 16, data, 0, len);
+        return data;
+    }
+
+    private static int memberLength(byte[] member, int pos) {
+        int xlen = (member[pos + 10] & 0xff) | ((member[pos + 11] & 0xff) << 8);
+        return 12 + xlen + 2 + 8;
+    }
+}
@@ -0,0 +1,299 @@
+package org.rundeck.plugins;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes content as a sequence of independently compressed gzip members ("blocks"), followed by an index of the
+ * blocks. The index is stored in the extra field of empty gzip members, so the whole output is still a valid
+ * concatenated gzip stream which any gzip reader decompresses to the original content, while {@link BlockGzipIndex}
+ * can locate and decompress only the blocks covering a byte range.
+ * <p/>
+ * Layout: data members, then index members with an "RI" extra subfield holding (compressed length, uncompressed
+ * length) pairs for each block, then a trailer member of {@link #TRAILER_SIZE} bytes with an "RT" extra subfield
+ * locating the index.
+ * <p/>
+ * With an executor, full blocks are compressed in parallel and written in order as they complete. At most
+ * {@code maxInFlight} blocks are buffered or being compressed at once, which bounds the memory used.
+ */
+class BlockGzipOutputStream extends FilterOutputStream {
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    static final byte VERSION = 1;
+    static final byte[] INDEX_ID = {'R', 'I'};
+    static final byte[] TRAILER_ID = {'R', 'T'};
+    /**
+     * Block entries in each index member, keeps the extra field within 65535 bytes
+     */
+    static final int ENTRIES_PER_INDEX_MEMBER = 8000;
+    static final int TRAILER_DATA_SIZE = 1 + 4 + 8 + 8 + 8 + 8;
+    /**
+     * header 10, xlen 2, subfield header 4, data, empty deflate 2, crc and size 8
+     */
+    static final int TRAILER_SIZE = 10 + 2 + 4 + TRAILER_DATA_SIZE + 2 + 8;
+
+    private static final byte[] EMPTY_DEFLATE = {0x03, 0x00};
+
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+    private final LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+    private byte[] buffer;
+    private int count;
+    private long written;
+    private long uncompressed;
+    private final List<long[]> blocks = new ArrayList<long[]>();
+    private boolean closed;
+
+    BlockGzipOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    BlockGzipOutputStream(OutputStream out, int blockSize) {
+        this(out, blockSize, null, 1);
+    }
+
+    /**
+     * @param out         destination
+     * @param blockSize   uncompressed size of each block
+     * @param executor    executor to compress blocks in parallel, or null to compress on the writing thread
+     * @param maxInFlight maximum number of blocks being compressed or waiting to be written
+     */
+    BlockGzipOutputStream(OutputStream out, int blockSize, ExecutorService executor, int maxInFlight) {
+        super(out);
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.blockSize = blockSize;
+        this.executor = maxInFlight > 1 ? executor : null;
+        this.maxInFlight = maxInFlight;
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[count++] = (byte) b;
+        if (count == blockSize) {
+            flushBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                flushBlock();
+            }
+        }
+    }
+
+    /**
+     * Blocks are only written when full, flushing does not end a block
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                flushBlock();
+            }
+            while (!pending.isEmpty()) {
+                writePending();
+            }
+            finish();
+        } finally {
+            for (PendingBlock block : pending) {
+                block.compressed.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (null == executor) {
+            byte[] compressed = compressBlock(buffer, 0, count);
+            writeBlock(compressed, count);
+            count = 0;
+            return;
+        }
+        while (pending.size() >= maxInFlight) {
+            writePending();
+        }
+        final byte[] data = buffer;
+        final int length = count;
+        pending.add(new PendingBlock(data, length, executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compressBlock(data, 0, length);
+            }
+        })));
+        buffer = freeBuffers.isEmpty() ? new byte[blockSize] : freeBuffers.removeFirst();
+        count = 0;
+        //write any blocks already compressed, without waiting
+        while (!pending.isEmpty() && pending.getFirst().compressed.isDone()) {
+            writePending();
+        }
+    }
+
+    /**
+     * Wait for the oldest pending block and write it
+     */
+    private void writePending() throws IOException {
+        PendingBlock block = pending.removeFirst();
+        byte[] compressed;
+        try {
+            compressed = block.compressed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for block compression");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Block compression failed: " + e.getCause(), e.getCause());
+        }
+        writeBlock(compressed, block.length);
+        freeBuffers.add(block.data);
+    }
+
+    /**
+     * Write a compressed block and add it to the index
+     *
+     * @param compressed        gzip member
+     * @param uncompressedLength length of the block content
+     */
+    void writeBlock(byte[] compressed, int uncompressedLength) throws IOException {
+        out.write(compressed);
+        blocks.add(new long[]{compressed.length, uncompressedLength});
+        written += compressed.length;
+        uncompressed += uncompressedLength;
+    }
+
+    /**
+     * @return the content compressed as a single gzip member
+     */
+    static byte[] compressBlock(byte[] data, int off, int len) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(baos);
+        gzip.write(data, off, len);
+        gzip.close();
+        return baos.toByteArray();
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Write the index and trailer
+     */
+    private void finish() throws IOException {
+        long indexOffset = written;
+        long indexLength = 0;
+        for (int i = 0; i < blocks.size(); i += ENTRIES_PER_INDEX_MEMBER) {
+            int n = Math.min(ENTRIES_PER_INDEX_MEMBER, blocks.size() - i);
+            byte[] data = new byte[n * 8];
+            for (int j = 0; j < n; j++) {
+                long[] block = blocks.get(i + j);
+                putInt(data, j * 8, (int) block[0]);
+                putInt(data, j * 8 + 4, (int) block[1]);
+            }
+            indexLength += writeEmptyMember(INDEX_ID, data);
+        }
+        byte[] trailer = new byte[TRAILER_DATA_SIZE];
+        trailer[0] = VERSION;
+        putInt(trailer, 1, blockSize);
+        putLong(trailer, 5, blocks.size());
+        putLong(trailer, 13, indexOffset);
+        putLong(trailer, 21, indexLength);
+        putLong(trailer, 29, uncompressed);
+        writeEmptyMember(TRAILER_ID, trailer);
+    }
+
+    /**
+     * Write a gzip member with no content and an extra field with one subfield
+     *
+     * @return bytes written
+     */
+    private int writeEmptyMember(byte[] id, byte[] data) throws IOException {
+        int xlen = 4 + data.length;
+        byte[] header = new byte[12 + 4];
+        header[0] = (byte) 0x1f;
+        header[1] = (byte) 0x8b;
+        header[2] = 8;//deflate
+        header[3] = 4;//FEXTRA
+        //mtime, xfl zero
+        header[9] = (byte) 255;//unknown OS
+        header[10] = (byte) (xlen & 0xff);
+        header[11] = (byte) ((xlen >> 8) & 0xff);
+        header[12] = id[0];
+        header[13] = id[1];
+        header[14] = (byte) (data.length & 0xff);
+        header[15] = (byte) ((data.length >> 8) & 0xff);
+        out.write(header);
+        out.write(data);
+        out.write(EMPTY_DEFLATE);
+        //crc32 and size of empty content
+        byte[] tail = new byte[8];
+        putIntLE(tail, 0, (int) new CRC32().getValue());
+        out.write(tail);
+        int total = header.length + data.length + EMPTY_DEFLATE.length + tail.length;
+        written += total;
+        return total;
+    }
+
+    private static class PendingBlock {
+        final byte[] data;
+        final int length;
+        final Future<byte[]> compressed;
+
+        PendingBlock(byte[] data, int length, Future<byte[]> compressed) {
+            this.data = data;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    static void putLong(byte[] b, int off, long value) {
+        putInt(b, off, (int) (value >>> 32));
+        putInt(b, off + 4, (int) value);
+    }
+
+    private static void putIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+}
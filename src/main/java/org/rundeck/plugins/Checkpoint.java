@@ -0,0 +1,70 @@
+package org.rundeck.plugins;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress of a long running operation, saved to a properties file so that the operation can resume after it was
+ * interrupted. The file is replaced atomically on each save, so it always holds a complete earlier state.
+ */
+class Checkpoint {
+    private final File file;
+    private final Properties properties = new Properties();
+
+    /**
+     * @param file the file, which is read if it exists
+     */
+    Checkpoint(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized String get(String name) {
+        return properties.getProperty(name);
+    }
+
+    synchronized void set(String name, String value) {
+        properties.setProperty(name, value);
+    }
+
+    synchronized void remove(String name) {
+        properties.remove(name);
+    }
+
+    synchronized boolean isEmpty() {
+        return properties.isEmpty();
+    }
+
+    /**
+     * Write the current state to the file
+     */
+    synchronized void save() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.util.BinaryUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Format for content encrypted with AES-GCM in fixed size chunks, so that it can be encrypted and decrypted while
+ * streaming and a range can be decrypted without reading the chunks before it.
+ * <p/>
+ * Layout: a {@link #HEADER_SIZE} byte header of magic "RGCM", version, chunk size and a random nonce prefix, then
+ * the chunks. Each chunk holds {@code chunkSize} bytes of content followed by a {@link #TAG_SIZE} byte tag, except
+ * the final chunk which is always shorter (possibly empty). The nonce of each chunk is the prefix and the chunk
+ * index, and the chunk index and whether it is final are authenticated, so chunks cannot be reordered, dropped or
+ * truncated without failing decryption.
+ */
+class ChunkedCipher {
+    static final String ALGORITHM = "aes-gcm-chunked";
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final byte[] MAGIC = {'R', 'G', 'C', 'M'};
+    static final byte VERSION = 1;
+    static final int PREFIX_SIZE = 8;
+    static final int HEADER_SIZE = 4 + 1 + 4 + PREFIX_SIZE;
+    static final int TAG_SIZE = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKey key;
+    private final int chunkSize;
+    private final byte[] prefix;
+
+    private ChunkedCipher(SecretKey key, int chunkSize, byte[] prefix) {
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param key       AES key
+     * @param chunkSize content bytes in each chunk
+     *
+     * @return cipher for new content, with a random nonce prefix
+     */
+    static ChunkedCipher create(SecretKey key, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        byte[] prefix = new byte[PREFIX_SIZE];
+        random.nextBytes(prefix);
+        return new ChunkedCipher(key, chunkSize, prefix);
+    }
+
+    /**
+     * @param key    AES key
+     * @param header header of the encrypted content
+     *
+     * @return cipher for the content
+     *
+     * @throws IOException if the header is not valid
+     */
+    static ChunkedCipher fromHeader(SecretKey key, byte[] header) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(header));
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Content is not encrypted in the chunked AES-GCM format");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported chunked AES-GCM version: " + version);
+        }
+        int chunkSize = data.readInt();
+        if (chunkSize < 1) {
+            throw new IOException("Invalid chunked AES-GCM chunk size: " + chunkSize);
+        }
+        byte[] prefix = new byte[PREFIX_SIZE];
+        data.readFully(prefix);
+        return new ChunkedCipher(key, chunkSize, prefix);
+    }
+
+    /**
+     * @param encoded base64 encoded 128, 192 or 256 bit key
+     *
+     * @return the key
+     *
+     * @throws IllegalArgumentException if the key is not valid
+     */
+    static SecretKey decodeKey(String encoded) {
+        byte[] bytes;
+        try {
+            bytes = BinaryUtils.fromBase64(encoded.trim());
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("encryptionKey is not valid base64");
+        }
+        if (null == bytes || (bytes.length != 16 && bytes.length != 24 && bytes.length != 32)) {
+            throw new IllegalArgumentException("encryptionKey must be a base64 encoded 128, 192 or 256 bit key");
+        }
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    byte[] getHeader() {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[4] = VERSION;
+        BlockGzipOutputStream.putInt(header, 5, chunkSize);
+        System.arraycopy(prefix, 0, header, 9, PREFIX_SIZE);
+        return header;
+    }
+
+    /**
+     * @return size of a chunk holding a full chunk of content
+     */
+    int getEncryptedChunkSize() {
+        return chunkSize + TAG_SIZE;
+    }
+
+    /**
+     * @return encrypted length of content
+     */
+    long encryptedLength(long length) {
+        return HEADER_SIZE + (length / chunkSize + 1) * TAG_SIZE + length;
+    }
+
+    /**
+     * @return content length of encrypted content, or -1 if the length is not valid
+     */
+    long contentLength(long encryptedLength) {
+        long chunks = encryptedLength - HEADER_SIZE;
+        long full = chunks / getEncryptedChunkSize();
+        long last = chunks - full * getEncryptedChunkSize();
+        if (last < TAG_SIZE) {
+            return -1;
+        }
+        return full * chunkSize + last - TAG_SIZE;
+    }
+
+    /**
+     * @return offset of a chunk in the encrypted content
+     */
+    long chunkOffset(long index) {
+        return HEADER_SIZE + index * getEncryptedChunkSize();
+    }
+
+    /**
+     * Encrypt or decrypt a chunk
+     *
+     * @param encrypt true to encrypt
+     * @param index   chunk index
+     * @param last    true if this is the final chunk
+     * @param data    input
+     * @param off     offset
+     * @param len     length
+     *
+     * @return output
+     *
+     * @throws IOException if decryption fails authentication
+     */
+    byte[] doChunk(boolean encrypt, long index, boolean last, byte[] data, int off, int len) throws IOException {
+        if (index > 0xffffffffL) {
+            throw new IOException("Too many chunks for chunked AES-GCM");
+        }
+        byte[] nonce = new byte[12];
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_SIZE);
+        BlockGzipOutputStream.putInt(nonce, PREFIX_SIZE, (int) index);
+        byte[] aad = new byte[9];
+        BlockGzipOutputStream.putLong(aad, 0, index);
+        aad[8] = (byte) (last ? 1 : 0);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(data, off, len);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + index + " could not be " + (encrypt ? "encrypted" : "decrypted") + ": "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Encrypts content written to it
+     */
+    static class EncryptingOutputStream extends FilterOutputStream {
+        private final ChunkedCipher cipher;
+        private final byte[] buffer;
+        private int count;
+        private long index;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, ChunkedCipher cipher) throws IOException {
+            super(out);
+            this.cipher = cipher;
+            this.buffer = new byte[cipher.getChunkSize()];
+            out.write(cipher.getHeader());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    //only written once more content arrives, so the final chunk is always short
+                    out.write(cipher.doChunk(true, index++, false, buffer, 0, count));
+                    count = 0;
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (count == buffer.length) {
+                    out.write(cipher.doChunk(true, index++, false, buffer, 0, count));
+                    count = 0;
+                }
+                out.write(cipher.doChunk(true, index, true, buffer, 0, count));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Encrypts content read from it, so that content can be encrypted while it is uploaded
+     */
+    static class EncryptingInputStream extends ChunkInputStream {
+        private final ChunkedCipher cipher;
+        private boolean headerDone;
+
+        EncryptingInputStream(InputStream in, ChunkedCipher cipher) {
+            super(in, cipher.getChunkSize());
+            this.cipher = cipher;
+        }
+
+        @Override
+        protected byte[] nextOutput() throws IOException {
+            if (!headerDone) {
+                headerDone = true;
+                return cipher.getHeader();
+            }
+            int len = readChunk();
+            if (len < 0) {
+                return null;
+            }
+            return cipher.doChunk(true, index++, len < chunk.length, chunk, 0, len);
+        }
+    }
+
+    /**
+     * Decrypts content read from it
+     */
+    static class DecryptingInputStream extends ChunkInputStream {
+        private final SecretKey key;
+        private ChunkedCipher cipher;
+        private boolean lastDecrypted;
+
+        /**
+         * @param in  encrypted content, starting with the header
+         * @param key key
+         */
+        DecryptingInputStream(InputStream in, SecretKey key) {
+            super(in, 0);
+            this.key = key;
+        }
+
+        /**
+         * @param in     encrypted content, starting at the chunk boundary
+         * @param cipher cipher from the header
+         * @param index  index of the first chunk
+         */
+        DecryptingInputStream(InputStream in, ChunkedCipher cipher, long index) {
+            super(in, cipher.getEncryptedChunkSize());
+            this.key = null;
+            this.cipher = cipher;
+            this.index = index;
+        }
+
+        @Override
+        protected byte[] nextOutput() throws IOException {
+            if (lastDecrypted) {
+                return null;
+            }
+            if (null == cipher) {
+                byte[] header = new byte[HEADER_SIZE];
+                new DataInputStream(in).readFully(header);
+                cipher = fromHeader(key, header);
+                chunk = new byte[cipher.getEncryptedChunkSize()];
+            }
+            int len = readChunk();
+            if (len < TAG_SIZE) {
+                throw new EOFException("Encrypted content is truncated");
+            }
+            boolean last = len < chunk.length;
+            byte[] output = cipher.doChunk(false, index++, last, chunk, 0, len);
+            lastDecrypted = last;
+            return output;
+        }
+    }
+
+    /**
+     * Reads the input in chunks and returns the transformed output of each chunk
+     */
+    abstract static class ChunkInputStream extends InputStream {
+        protected final InputStream in;
+        protected byte[] chunk;
+        protected long index;
+        protected boolean finished;
+        private byte[] output;
+        private int pos;
+
+        ChunkInputStream(InputStream in, int chunkSize) {
+            this.in = in;
+            this.chunk = new byte[chunkSize];
+        }
+
+        /**
+         * @return output of the next chunk, or null at the end
+         */
+        protected abstract byte[] nextOutput() throws IOException;
+
+        /**
+         * Read a whole chunk, unless the input ends
+         *
+         * @return bytes read, or -1 if the last chunk was already read
+         */
+        protected int readChunk() throws IOException {
+            if (finished) {
+                return -1;
+            }
+            int len = 0;
+            while (len < chunk.length) {
+                int n = in.read(chunk, len, chunk.length - len);
+                if (n < 0) {
+                    finished = true;
+                    break;
+                }
+                len += n;
+            }
+            return len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (null == output || pos == output.length) {
+                output = nextOutput();
+                pos = 0;
+                if (null == output) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, output.length - pos);
+            System.arraycopy(output, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Decrypted view of ranges of encrypted content
+     */
+    static class DecryptingRangeSource implements BlockGzipIndex.RangeSource {
+        private final BlockGzipIndex.RangeSource source;
+        private final SecretKey key;
+        private ChunkedCipher cipher;
+        private long length = -1;
+
+        DecryptingRangeSource(BlockGzipIndex.RangeSource source, SecretKey key) {
+            this.source = source;
+            this.key = key;
+        }
+
+        private ChunkedCipher getCipher() throws IOException {
+            if (null == cipher) {
+                byte[] header = new byte[HEADER_SIZE];
+                InputStream in = source.open(0, HEADER_SIZE - 1);
+                try {
+                    new DataInputStream(in).readFully(header);
+                } finally {
+                    in.close();
+                }
+                cipher = fromHeader(key, header);
+            }
+            return cipher;
+        }
+
+        public long getLength() throws IOException {
+            if (length < 0) {
+                length = getCipher().contentLength(source.getLength());
+                if (length < 0) {
+                    throw new IOException("Encrypted content has an invalid length");
+                }
+            }
+            return length;
+        }
+
+        public InputStream open(long start, long end) throws IOException {
+            ChunkedCipher cipher = getCipher();
+            long total = getLength();
+            end = Math.min(end, total - 1);
+            long first = start / cipher.getChunkSize();
+            long last = end / cipher.getChunkSize();
+            long encryptedEnd = Math.min(cipher.chunkOffset(last + 1), source.getLength()) - 1;
+            InputStream chunks = new DecryptingInputStream(source.open(cipher.chunkOffset(first), encryptedEnd),
+                    cipher, first);
+            long skip = start - first * cipher.getChunkSize();
+            while (skip > 0) {
+                long skipped = chunks.skip(skip);
+                if (skipped <= 0) {
+                    chunks.close();
+                    throw new EOFException("Encrypted content is truncated");
+                }
+                skip -= skipped;
+            }
+            return new LimitedInputStream(chunks, end - start + 1);
+        }
+    }
+
+    /**
+     * Reads at most a number of bytes
+     */
+    static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+    }
+}
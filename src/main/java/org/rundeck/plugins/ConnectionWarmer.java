@@ -0,0 +1,219 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a JVM-wide S3 client with a warm connection pool. When created, the client opens a number of pooled
+ * connections by issuing concurrent lightweight HEAD requests, and a keep-alive task repeats them periodically so
+ * the connections are not closed as idle.
+ */
+class ConnectionWarmer {
+    /**
+     * Key used for the HEAD requests, the response status is ignored
+     */
+    static final String PING_KEY = ".rundeck-s3-keepalive";
+    static final long WARM_TIMEOUT_SECONDS = 30;
+
+    private static final Logger logger = Logger.getLogger(ConnectionWarmer.class.getName());
+    /**
+     * Warmers by key, each created by the first caller for its key
+     */
+    private static final Map<String, FutureTask<ConnectionWarmer>> shared =
+            new HashMap<String, FutureTask<ConnectionWarmer>>();
+    private static ScheduledExecutorService scheduler;
+
+    private final AmazonS3 client;
+    private final String bucket;
+    private final int connections;
+    private ScheduledFuture<?> keepAlive;
+
+    ConnectionWarmer(AmazonS3 client, String bucket, int connections) {
+        this.client = client;
+        this.bucket = bucket;
+        this.connections = connections;
+    }
+
+    /**
+     * Return the shared client for the key, creating and warming a new one if necessary. The client is warmed outside
+     * the lock, so callers for other keys are not delayed, and callers for the same key wait until it is warm.
+     *
+     * @param key               identifies the client configuration (credentials and region)
+     * @param factory           creates the client
+     * @param bucket            bucket to send HEAD requests to
+     * @param connections       number of connections to open
+     * @param keepAliveSeconds  interval for keep-alive requests, or 0 to disable
+     *
+     * @return shared client
+     */
+    static AmazonS3 getSharedClient(String key, final Callable<AmazonS3> factory, final String bucket,
+            final int connections, int keepAliveSeconds) {
+        FutureTask<ConnectionWarmer> task;
+        boolean created = false;
+        synchronized (ConnectionWarmer.class) {
+            task = shared.get(key);
+            if (null == task) {
+                task = new FutureTask<ConnectionWarmer>(new Callable<ConnectionWarmer>() {
+                    public ConnectionWarmer call() throws Exception {
+                        ConnectionWarmer warmer = new ConnectionWarmer(factory.call(), bucket, connections);
+                        int warmed = warmer.warm();
+                        logger.log(Level.FINE, "Pre-warmed {0} of {1} connections to bucket {2}", new Object[]{
+                                warmed, connections, bucket});
+                        return warmer;
+                    }
+                });
+                shared.put(key, task);
+                created = true;
+            }
+        }
+        if (created) {
+            task.run();
+        }
+        ConnectionWarmer warmer;
+        try {
+            warmer = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while the S3 client was warmed");
+        } catch (ExecutionException e) {
+            synchronized (ConnectionWarmer.class) {
+                //the next caller creates the client again
+                if (shared.get(key) == task) {
+                    shared.remove(key);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Unable to create S3 client: " + cause.getMessage(), cause);
+        }
+        if (created && keepAliveSeconds > 0) {
+            synchronized (ConnectionWarmer.class) {
+                //not if the clients were shut down while it was warmed
+                if (shared.get(key) == task) {
+                    warmer.scheduleKeepAlive(keepAliveSeconds);
+                }
+            }
+        }
+        return warmer.client;
+    }
+
+    /**
+     * Stop keep-alive tasks and forget all shared clients
+     */
+    static synchronized void shutdownAll() {
+        for (FutureTask<ConnectionWarmer> task : shared.values()) {
+            ConnectionWarmer warmer = task.isDone() ? warmed(task) : null;
+            if (null != warmer && null != warmer.keepAlive) {
+                warmer.keepAlive.cancel(false);
+            }
+        }
+        shared.clear();
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * @return the warmer of a completed task, or null if it failed
+     */
+    private static ConnectionWarmer warmed(FutureTask<ConnectionWarmer> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (null == scheduler) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new TransferExecutors.NamedThreadFactory("rundeck-s3-keepalive")
+            );
+        }
+        return scheduler;
+    }
+
+    private void scheduleKeepAlive(int seconds) {
+        keepAlive = getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                int warmed = warm();
+                logger.log(Level.FINEST, "Keep-alive refreshed {0} connections", warmed);
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Issue concurrent HEAD requests so that the pool holds the configured number of open connections
+     *
+     * @return number of requests which completed
+     */
+    int warm() {
+        ExecutorService executor = Executors.newFixedThreadPool(connections,
+                new TransferExecutors.NamedThreadFactory("rundeck-s3-prewarm"));
+        //hold every request until all have started, so each one needs its own connection
+        final CountDownLatch started = new CountDownLatch(connections);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        started.countDown();
+                        started.await(WARM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        return ping();
+                    }
+                }));
+            }
+            int count = 0;
+            for (Future<Boolean> result : results) {
+                try {
+                    if (result.get(WARM_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        count++;
+                    }
+                } catch (ExecutionException e) {
+                    logger.log(Level.FINE, "Pre-warm request failed", e.getCause());
+                } catch (TimeoutException e) {
+                    logger.log(Level.FINE, "Pre-warm request timed out");
+                }
+            }
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Send a single HEAD request, any response from S3 means the connection was established
+     */
+    private boolean ping() {
+        try {
+            client.getObjectMetadata(new GetObjectMetadataRequest(bucket, PING_KEY));
+            return true;
+        } catch (AmazonServiceException e) {
+            //an error response still used an open connection
+            return true;
+        } catch (AmazonClientException e) {
+            logger.log(Level.FINE, "Keep-alive request failed: " + e.getMessage());
+            return false;
+        }
+    }
+}
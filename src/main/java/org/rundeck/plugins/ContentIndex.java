@@ -0,0 +1,68 @@
+package org.rundeck.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM-wide index of recently stored content, mapping a content MD5 to the S3 object which holds it. Used to replace
+ * an upload of byte-identical content with a server-side copy.
+ */
+class ContentIndex {
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final ContentIndex shared = new ContentIndex(DEFAULT_MAX_ENTRIES);
+
+    /**
+     * Location of stored content
+     */
+    static class Location {
+        final String bucket;
+        final String key;
+        final long length;
+        final String etag;
+
+        Location(String bucket, String key, long length, String etag) {
+            this.bucket = bucket;
+            this.key = key;
+            this.length = length;
+            this.etag = etag;
+        }
+    }
+
+    private final Map<String, Location> entries;
+
+    ContentIndex(final int maxEntries) {
+        entries = new LinkedHashMap<String, Location>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static ContentIndex getShared() {
+        return shared;
+    }
+
+    synchronized Location get(String md5) {
+        return entries.get(md5);
+    }
+
+    synchronized void put(String md5, Location entry) {
+        entries.put(md5, entry);
+    }
+
+    /**
+     * Remove the entry if it still refers to the given key
+     */
+    synchronized void remove(String md5, String bucket, String key) {
+        Location entry = entries.get(md5);
+        if (null != entry && entry.bucket.equals(bucket) && entry.key.equals(key)) {
+            entries.remove(md5);
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
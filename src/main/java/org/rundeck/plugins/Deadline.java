@@ -0,0 +1,337 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The time by which an operation must finish. When the deadline passes, the registered requests are aborted, the
+ * thread running the operation is interrupted, and the streams read by the operation fail, so that the operation
+ * fails with {@link Exceeded} instead of waiting for the socket timeout of a stalled connection.
+ * <p/>
+ * The operation must call {@link #finish()} when it returns.
+ */
+class Deadline {
+    /**
+     * A deadline which never passes
+     */
+    static final Deadline NONE = new Deadline(null, 0);
+
+    private static final Logger logger = Logger.getLogger(Deadline.class.getName());
+    private static ScheduledThreadPoolExecutor timer;
+
+    private final String operation;
+    private final long timeoutMillis;
+    private final Thread thread;
+    private final List<Closeable> aborts = new ArrayList<Closeable>();
+    private ScheduledFuture<?> expiry;
+    private boolean expired;
+    private boolean finished;
+
+    /**
+     * Thrown when an operation does not finish before its deadline
+     */
+    static class Exceeded extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Releases a result which arrived after the deadline
+     */
+    interface Discard<T> {
+        void discard(T result);
+    }
+
+    private Deadline(String operation, long timeoutMillis) {
+        this.operation = operation;
+        this.timeoutMillis = timeoutMillis;
+        this.thread = Thread.currentThread();
+    }
+
+    /**
+     * Start a deadline for an operation run by the current thread
+     *
+     * @param operation     name of the operation, for the error message
+     * @param timeoutMillis time allowed for the operation, or 0 for no deadline
+     *
+     * @return the deadline
+     */
+    static Deadline start(String operation, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return NONE;
+        }
+        final Deadline deadline = new Deadline(operation, timeoutMillis);
+        deadline.expiry = getTimer().schedule(new Runnable() {
+            public void run() {
+                deadline.expire();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (null == timer) {
+            timer = new ScheduledThreadPoolExecutor(1, new TransferExecutors.NamedThreadFactory("rundeck-s3-deadline"));
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Stop the timer thread, for tests
+     */
+    static synchronized void shutdown() {
+        if (null != timer) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    private void expire() {
+        List<Closeable> pending;
+        synchronized (this) {
+            if (finished || expired) {
+                return;
+            }
+            expired = true;
+            pending = new ArrayList<Closeable>(aborts);
+            aborts.clear();
+            thread.interrupt();
+        }
+        logger.log(Level.WARNING, "{0} did not finish within {1} ms, aborting {2} requests", new Object[]{operation,
+                timeoutMillis, pending.size()});
+        for (Closeable abort : pending) {
+            abortQuietly(abort);
+        }
+    }
+
+    private static void abortQuietly(Closeable abort) {
+        try {
+            if (abort instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) abort).abort();
+            } else {
+                abort.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Abort failed: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            logger.log(Level.FINE, "Abort failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stop the deadline when the operation returns, and clear the interrupt it may have caused
+     */
+    void finish() {
+        if (this == NONE) {
+            return;
+        }
+        synchronized (this) {
+            finished = true;
+            aborts.clear();
+            if (expired) {
+                Thread.interrupted();
+            }
+        }
+        expiry.cancel(false);
+    }
+
+    synchronized boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * @return milliseconds until the deadline, or {@link Long#MAX_VALUE} if there is no deadline
+     */
+    long remainingMillis() {
+        if (this == NONE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, expiry.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @throws Exceeded if the deadline has passed
+     */
+    void check() throws Exceeded {
+        if (isExpired()) {
+            throw exceeded();
+        }
+    }
+
+    Exceeded exceeded() {
+        return new Exceeded(operation + " did not finish within " + timeoutMillis + " ms");
+    }
+
+    /**
+     * Abort a request when the deadline passes, by closing it, or with {@link S3ObjectInputStream#abort()} for S3
+     * content so that the connection is not drained. The request is aborted immediately if the deadline has passed.
+     */
+    void onExpiry(Closeable abort) {
+        if (this == NONE || null == abort) {
+            return;
+        }
+        synchronized (this) {
+            if (!expired) {
+                aborts.add(abort);
+                return;
+            }
+        }
+        abortQuietly(abort);
+    }
+
+    /**
+     * @return the stream, which fails with {@link Exceeded} when read after the deadline
+     */
+    InputStream wrap(InputStream stream) {
+        if (this == NONE || null == stream) {
+            return stream;
+        }
+        return new DeadlineInputStream(stream);
+    }
+
+    /**
+     * Run a blocking request on the executor, and wait for it until the deadline. A result which arrives after the
+     * deadline is discarded.
+     *
+     * @param call     request
+     * @param discard  releases a late result, or null
+     * @param executor executor
+     *
+     * @return result of the request
+     *
+     * @throws Exceeded if the deadline passes first
+     */
+    <T> T call(Callable<T> call, final Discard<T> discard, ExecutorService executor) throws IOException {
+        if (this == NONE) {
+            try {
+                return call.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+        check();
+        final Callable<T> request = call;
+        final Object lock = new Object();
+        //abandoned by the caller, or returned to the caller
+        final boolean[] abandoned = new boolean[1];
+        final boolean[] returned = new boolean[1];
+        Future<T> future = executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                T result = request.call();
+                synchronized (lock) {
+                    if (!abandoned[0]) {
+                        returned[0] = true;
+                        return result;
+                    }
+                }
+                if (null != discard && null != result) {
+                    discard.discard(result);
+                }
+                return null;
+            }
+        });
+        try {
+            return future.get(remainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            if (!isExpired()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+        } catch (TimeoutException e) {
+            //the timer may not have run yet
+            expire();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+        boolean late;
+        synchronized (lock) {
+            abandoned[0] = true;
+            late = returned[0];
+        }
+        if (!late) {
+            future.cancel(true);
+        } else if (null != discard) {
+            //the result is being returned, and nobody else will release it
+            Thread.interrupted();
+            try {
+                T result = future.get();
+                if (null != result) {
+                    discard.discard(result);
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+            }
+        }
+        throw exceeded();
+    }
+
+    /**
+     * Fails reads after the deadline
+     */
+    private class DeadlineInputStream extends FilterInputStream {
+        DeadlineInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            check();
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw failure(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            check();
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw failure(e);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            check();
+            return super.skip(n);
+        }
+
+        /**
+         * @return the timeout if a read failed because the request was aborted at the deadline
+         */
+        private IOException failure(IOException e) {
+            if (isExpired() && !(e instanceof Exceeded)) {
+                Exceeded exceeded = exceeded();
+                exceeded.initCause(e);
+                return exceeded;
+            }
+            return e;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the requests for a bucket to the fastest healthy endpoint of a list, such as S3-compatible stores, VPC
+ * interface endpoints, dual-stack or accelerated endpoints. Each endpoint is probed with a HEAD request when the
+ * selector is created and then periodically, and its latency is tracked as an exponentially weighted moving average.
+ * An endpoint whose probe or request fails without a response from the server is unhealthy until a later probe
+ * succeeds, or when probes are disabled, until {@link #RETRY_UNHEALTHY_MILLIS} have passed. Requests which fail
+ * because they were interrupted or cancelled, as hedged requests and deadlines do, say nothing about the endpoint.
+ * Selectors are shared by all plugin instances with the same configuration.
+ */
+class EndpointSelector {
+    /**
+     * Weight of the latest probe in the moving average
+     */
+    static final double ALPHA = 0.3;
+    static final long PROBE_TIMEOUT_MILLIS = 5000;
+    /**
+     * Time after which an unhealthy endpoint may be selected again, when probes are disabled
+     */
+    static final long RETRY_UNHEALTHY_MILLIS = 30000;
+
+    private static final Logger logger = Logger.getLogger(EndpointSelector.class.getName());
+    private static final Map<String, EndpointSelector> shared = new HashMap<String, EndpointSelector>();
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the client for an endpoint
+     */
+    interface ClientFactory {
+        AmazonS3 create(String endpoint);
+    }
+
+    static class Endpoint {
+        final String url;
+        final AmazonS3 client;
+        double latencyNanos = -1;
+        boolean healthy = true;
+        long unhealthySince;
+
+        Endpoint(String url, AmazonS3 client) {
+            this.url = url;
+            this.client = client;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final String bucket;
+    private final AmazonS3 client;
+    private volatile Endpoint current;
+    private volatile ScheduledFuture<?> probes;
+    private long retryUnhealthyMillis = RETRY_UNHEALTHY_MILLIS;
+    /**
+     * Time at which an unhealthy endpoint may be selected again, if probes are disabled
+     */
+    private volatile long nextRetry = Long.MAX_VALUE;
+
+    EndpointSelector(List<Endpoint> endpoints, String bucket) {
+        this.endpoints = endpoints;
+        this.bucket = bucket;
+        this.current = endpoints.get(0);
+        this.client = (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3
+                .class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (null == probes && System.currentTimeMillis() >= nextRetry) {
+                    retryUnhealthy();
+                }
+                Endpoint endpoint = current;
+                try {
+                    return method.invoke(endpoint.client, args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof AmazonClientException && !(cause instanceof AmazonServiceException)
+                            && !isInterrupted(cause)) {
+                        failed(endpoint, (AmazonClientException) cause);
+                    }
+                    throw cause;
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the shared selector for the key, creating and probing a new one if necessary
+     *
+     * @param key                  identifies the client configuration (credentials, region and endpoints)
+     * @param urls                 endpoints, in order of preference while they are not probed
+     * @param factory              creates the client for each endpoint
+     * @param bucket               bucket to send probes to
+     * @param probeIntervalSeconds interval between probes, or 0 to only probe when the selector is created
+     *
+     * @return shared selector
+     */
+    static synchronized EndpointSelector getShared(String key, List<String> urls, ClientFactory factory,
+            String bucket, int probeIntervalSeconds) {
+        EndpointSelector selector = shared.get(key);
+        if (null == selector) {
+            List<Endpoint> endpoints = new ArrayList<Endpoint>();
+            for (String url : urls) {
+                endpoints.add(new Endpoint(url, factory.create(url)));
+            }
+            selector = new EndpointSelector(endpoints, bucket);
+            selector.probe();
+            if (probeIntervalSeconds > 0) {
+                selector.scheduleProbes(probeIntervalSeconds);
+            }
+            shared.put(key, selector);
+        }
+        return selector;
+    }
+
+    /**
+     * Stop the probes and forget all shared selectors
+     */
+    static synchronized void shutdownAll() {
+        for (EndpointSelector selector : shared.values()) {
+            if (null != selector.probes) {
+                selector.probes.cancel(false);
+            }
+        }
+        shared.clear();
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (null == scheduler) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new TransferExecutors.NamedThreadFactory("rundeck-s3-probe")
+            );
+        }
+        return scheduler;
+    }
+
+    private void scheduleProbes(int seconds) {
+        probes = getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probe();
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return client which sends each request to the selected endpoint
+     */
+    AmazonS3 getClient() {
+        return client;
+    }
+
+    /**
+     * @return URL of the endpoint receiving the requests
+     */
+    String getCurrent() {
+        return current.url;
+    }
+
+    /**
+     * Probe every endpoint concurrently, and select the fastest healthy one
+     */
+    void probe() {
+        Map<Endpoint, Future<Long>> results = new LinkedHashMap<Endpoint, Future<Long>>();
+        for (final Endpoint endpoint : endpoints) {
+            results.put(endpoint, TransferExecutors.getShared().submit(new Callable<Long>() {
+                public Long call() {
+                    return ping(endpoint);
+                }
+            }));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+        for (Map.Entry<Endpoint, Future<Long>> result : results.entrySet()) {
+            Long nanos = null;
+            try {
+                nanos = result.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                logger.log(Level.FINE, "Probe of " + result.getKey().url + " failed", e.getCause());
+            } catch (TimeoutException e) {
+                result.getValue().cancel(true);
+                logger.log(Level.FINE, "Probe of {0} timed out", result.getKey().url);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            record(result.getKey(), nanos);
+        }
+        select();
+    }
+
+    /**
+     * Send a HEAD request, any response from the server means the endpoint is reachable
+     *
+     * @return latency in nanoseconds, or null if the endpoint did not respond
+     */
+    private Long ping(Endpoint endpoint) {
+        long start = System.nanoTime();
+        try {
+            endpoint.client.getObjectMetadata(new GetObjectMetadataRequest(bucket, ConnectionWarmer.PING_KEY));
+        } catch (AmazonServiceException e) {
+            //an error response still measures the round trip
+        } catch (AmazonClientException e) {
+            logger.log(Level.FINE, "Probe of " + endpoint.url + " failed: " + e.getMessage());
+            return null;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private synchronized void record(Endpoint endpoint, Long nanos) {
+        if (null == nanos) {
+            markUnhealthy(endpoint);
+        } else {
+            endpoint.healthy = true;
+            endpoint.latencyNanos = endpoint.latencyNanos < 0 ? nanos : endpoint.latencyNanos * (1 - ALPHA) + nanos
+                    * ALPHA;
+        }
+    }
+
+    /**
+     * Mark an endpoint unhealthy after a request failed without a response, and select another one
+     */
+    private void failed(Endpoint endpoint, AmazonClientException e) {
+        synchronized (this) {
+            if (!endpoint.healthy) {
+                return;
+            }
+            markUnhealthy(endpoint);
+        }
+        logger.log(Level.WARNING, "Request to endpoint {0} failed: {1}", new Object[]{endpoint.url, e.getMessage()});
+        select();
+    }
+
+    private void markUnhealthy(Endpoint endpoint) {
+        if (endpoint.healthy) {
+            endpoint.healthy = false;
+            endpoint.unhealthySince = System.currentTimeMillis();
+            nextRetry = Math.min(nextRetry, endpoint.unhealthySince + retryUnhealthyMillis);
+        }
+    }
+
+    /**
+     * Mark the endpoints which have been unhealthy for long enough healthy again, and select the fastest
+     */
+    private synchronized void retryUnhealthy() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.healthy) {
+                if (now >= endpoint.unhealthySince + retryUnhealthyMillis) {
+                    endpoint.healthy = true;
+                } else {
+                    next = Math.min(next, endpoint.unhealthySince + retryUnhealthyMillis);
+                }
+            }
+        }
+        nextRetry = next;
+        select();
+    }
+
+    /**
+     * Set the time after which an unhealthy endpoint may be selected again when probes are disabled, for testing
+     */
+    void setRetryUnhealthyMillis(long retryUnhealthyMillis) {
+        this.retryUnhealthyMillis = retryUnhealthyMillis;
+    }
+
+    /**
+     * @return true if the request failed because its thread was interrupted or the request was cancelled
+     */
+    static boolean isInterrupted(Throwable failure) {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        for (Throwable cause = failure; null != cause; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException
+                    || cause instanceof CancellationException || cause instanceof InterruptedIOException
+                    && !(cause instanceof SocketTimeoutException)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select the healthy endpoint with the lowest latency, or keep the current one if none is healthy
+     */
+    private synchronized void select() {
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.healthy && (null == best || endpoint.latencyNanos >= 0 && (best.latencyNanos < 0 || endpoint
+                    .latencyNanos < best.latencyNanos))) {
+                best = endpoint;
+            }
+        }
+        if (null != best && best != current) {
+            logger.log(Level.INFO, "Sending requests for bucket {0} to endpoint {1} ({2} ms)", new Object[]{bucket,
+                    best.url, best.latencyNanos >= 0 ? String.format("%.1f", best.latencyNanos / 1e6) : "?"});
+            current = best;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.rundeck.plugins;
+
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+
+/**
+ * Thrown when storing or retrieving a log does not finish within the configured timeout. The requests in flight were
+ * aborted, and the operation may be retried.
+ */
+public class ExecutionFileStorageTimeoutException extends ExecutionFileStorageException {
+    private static final long serialVersionUID = 1L;
+
+    public ExecutionFileStorageTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
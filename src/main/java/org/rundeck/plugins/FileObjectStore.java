@@ -0,0 +1,605 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * {@link ObjectStore} in a local or network filesystem. Each bucket is a directory under the root, and each object
+ * a file at its key under the bucket directory. The metadata of each object is stored as a properties file at the
+ * same path under the root's ".metadata" directory.
+ * <p/>
+ * Objects are written to a temporary file under the root's ".tmp" directory, then renamed into place atomically, so
+ * readers never see partial content. The metadata is renamed into place just before the content, so for a moment a
+ * reader may see the new metadata with the old content of a replaced object. Instances for the same root share a
+ * lock, so that an object is not replaced or deleted while {@link #deleteIfUnchanged} or {@link #snapshot} looks at
+ * it.
+ */
+class FileObjectStore implements ObjectStore {
+    static final String METADATA_DIR = ".metadata";
+    static final String TEMP_DIR = ".tmp";
+    private static final String USER_METADATA_PREFIX = "x-amz-meta-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<Path, Object> locks = new HashMap<Path, Object>();
+
+    private final Path root;
+    private final Object lock;
+
+    FileObjectStore(File root) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.lock = lockFor(this.root);
+    }
+
+    private static synchronized Object lockFor(Path root) {
+        Object lock = locks.get(root);
+        if (null == lock) {
+            lock = new Object();
+            locks.put(root, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * The content of an object at one moment, which is not changed when the object is stored again or deleted
+     */
+    static class Snapshot {
+        final File file;
+        final ObjectMetadata metadata;
+
+        Snapshot(File file, ObjectMetadata metadata) {
+            this.file = file;
+            this.metadata = metadata;
+        }
+
+        void delete() {
+            file.delete();
+        }
+    }
+
+    public ObjectMetadata head(String bucket, String key) throws IOException {
+        Path file = resolve(bucket, key);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        Path metadataFile = resolveMetadata(bucket, key);
+        if (Files.exists(metadataFile)) {
+            Properties properties = new Properties();
+            InputStream in = Files.newInputStream(metadataFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith(USER_METADATA_PREFIX)) {
+                    metadata.addUserMetadata(name.substring(USER_METADATA_PREFIX.length()),
+                            properties.getProperty(name));
+                } else {
+                    metadata.setHeader(name, properties.getProperty(name));
+                }
+            }
+        }
+        metadata.setContentLength(attributes.size());
+        metadata.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+        return metadata;
+    }
+
+    public S3Object get(String bucket, String key) throws IOException {
+        ObjectMetadata metadata = head(bucket, key);
+        if (null == metadata) {
+            throw new FileNotFoundException("Object not found: " + bucket + "/" + key);
+        }
+        S3Object object = new S3Object();
+        object.setBucketName(bucket);
+        object.setKey(key);
+        object.setObjectMetadata(metadata);
+        InputStream in;
+        try {
+            in = Files.newInputStream(resolve(bucket, key));
+        } catch (NoSuchFileException e) {
+            //deleted since the head
+            throw new FileNotFoundException("Object not found: " + bucket + "/" + key);
+        }
+        object.setObjectContent(new BufferedInputStream(in, BUFFER_SIZE));
+        return object;
+    }
+
+    public InputStream getRange(String bucket, String key, long start, long endInclusive) throws IOException {
+        SeekableByteChannel channel;
+        try {
+            channel = Files.newByteChannel(resolve(bucket, key), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Object not found: " + bucket + "/" + key);
+        }
+        channel.position(start);
+        return new ChunkedCipher.LimitedInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                BUFFER_SIZE), endInclusive - start + 1);
+    }
+
+    public String put(String bucket, String key, InputStream content, ObjectMetadata metadata) throws IOException {
+        Path file = resolve(bucket, key);
+        Path metadataFile = resolveMetadata(bucket, key);
+        Path tempDir = root.resolve(TEMP_DIR);
+        Files.createDirectories(tempDir);
+        Path tempContent = Files.createTempFile(tempDir, "object", ".tmp");
+        Path tempMetadata = null;
+        try {
+            MessageDigest md5 = createMD5();
+            OutputStream out = Files.newOutputStream(tempContent);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                InputStream in = new DigestInputStream(content, md5);
+                int len;
+                while ((len = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+            String etag = BinaryUtils.toHex(md5.digest());
+
+            Properties properties = new Properties();
+            for (Map.Entry<String, Object> entry : metadata.getRawMetadata().entrySet()) {
+                if (!Headers.CONTENT_LENGTH.equals(entry.getKey()) && !Headers.LAST_MODIFIED.equals(entry.getKey())
+                        && null != entry.getValue()) {
+                    properties.setProperty(entry.getKey(), entry.getValue().toString());
+                }
+            }
+            for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+                properties.setProperty(USER_METADATA_PREFIX + entry.getKey(), entry.getValue());
+            }
+            properties.setProperty(Headers.ETAG, etag);
+            tempMetadata = Files.createTempFile(tempDir, "metadata", ".tmp");
+            OutputStream metadataOut = Files.newOutputStream(tempMetadata);
+            try {
+                properties.store(metadataOut, null);
+            } finally {
+                metadataOut.close();
+            }
+
+            Files.createDirectories(metadataFile.getParent());
+            Files.createDirectories(file.getParent());
+            synchronized (lock) {
+                Files.move(tempMetadata, metadataFile, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                tempMetadata = null;
+                Files.move(tempContent, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                tempContent = null;
+            }
+            return etag;
+        } finally {
+            if (null != tempContent) {
+                Files.deleteIfExists(tempContent);
+            }
+            if (null != tempMetadata) {
+                Files.deleteIfExists(tempMetadata);
+            }
+        }
+    }
+
+    public List<String> list(String bucket, String prefix) throws IOException {
+        final Path bucketDir = resolveBucket(bucket);
+        final List<String> keys = new ArrayList<String>();
+        if (!Files.isDirectory(bucketDir)) {
+            return keys;
+        }
+        final String keyPrefix = null != prefix ? prefix : "";
+        //only walk the directory holding every key with the prefix
+        Path start = keyPrefix.contains("/") ? resolveKey(bucketDir, keyPrefix.substring(0, keyPrefix.lastIndexOf
+                ('/'))) : bucketDir;
+        if (!Files.isDirectory(start)) {
+            return keys;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String key = toKey(bucketDir.relativize(file));
+                if (attrs.isRegularFile() && key.startsWith(keyPrefix)) {
+                    keys.add(key);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    //deleted while listing
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Walks the directories holding keys with the prefix in key order, skipping the directories whose keys all sort
+     * before the marker or are grouped into one common prefix, and stops when the page is full. Each directory's
+     * entries are read in batches of the smallest entries after the position reached, so a page costs one read of
+     * each directory it visits, not a listing of the whole bucket.
+     */
+    public ObjectListing listPage(String bucket, String prefix, String delimiter, String marker, int maxKeys)
+            throws IOException {
+        String keyPrefix = null != prefix ? prefix : "";
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(bucket);
+        listing.setPrefix(prefix);
+        listing.setDelimiter(delimiter);
+        listing.setMarker(marker);
+        listing.setMaxKeys(maxKeys);
+        Page page = new Page(bucket, keyPrefix, delimiter, marker, maxKeys, listing);
+        Path bucketDir = resolveBucket(bucket);
+        if (Files.isDirectory(bucketDir)) {
+            walk(bucketDir, "", page);
+        }
+        listing.setCommonPrefixes(page.commonPrefixes);
+        return listing;
+    }
+
+    /**
+     * An entry of a directory, with its key, or the prefix of the keys under it for a directory
+     */
+    private static class Entry implements Comparable<Entry> {
+        final Path path;
+        final String key;
+        final boolean directory;
+
+        Entry(Path path, String key, boolean directory) {
+            this.path = path;
+            this.key = key;
+            this.directory = directory;
+        }
+
+        public int compareTo(Entry other) {
+            return key.compareTo(other.key);
+        }
+    }
+
+    /**
+     * Visit the entries of a directory in key order
+     *
+     * @param dirKey prefix of the keys in the directory, empty or ending with "/"
+     *
+     * @return false if the page is full
+     */
+    private boolean walk(Path dir, String dirKey, Page page) throws IOException {
+        String after = null;
+        while (true) {
+            //the smallest entries after the position reached, in key order
+            PriorityQueue<Entry> batch = new PriorityQueue<Entry>(16, Collections.reverseOrder());
+            int limit = page.maxKeys + 1;
+            DirectoryStream<Path> stream;
+            try {
+                stream = Files.newDirectoryStream(dir);
+            } catch (NoSuchFileException e) {
+                //deleted while listing
+                return true;
+            }
+            try {
+                for (Path path : stream) {
+                    boolean directory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+                    String key = dirKey + path.getFileName().toString() + (directory ? "/" : "");
+                    if (null != after && key.compareTo(after) <= 0 || !page.mayContain(key, directory)) {
+                        continue;
+                    }
+                    if (batch.size() < limit) {
+                        batch.add(new Entry(path, key, directory));
+                    } else if (key.compareTo(batch.peek().key) < 0) {
+                        batch.poll();
+                        batch.add(new Entry(path, key, directory));
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+            List<Entry> entries = new ArrayList<Entry>(batch);
+            Collections.sort(entries);
+            for (Entry entry : entries) {
+                if (!entry.directory) {
+                    if (!page.offerKey(entry.key, entry.path)) {
+                        return false;
+                    }
+                } else {
+                    String group = page.groupOf(entry.key);
+                    if (null != group) {
+                        //every key under the directory is in the same common prefix
+                        if (page.isUnlisted(group) && containsFile(entry.path) && !page.offerGroup(group)) {
+                            return false;
+                        }
+                    } else if (!walk(entry.path, entry.key, page)) {
+                        return false;
+                    }
+                }
+                after = entry.key;
+            }
+            if (entries.size() < limit) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the directory or a directory under it holds a file, so that it holds a key
+     */
+    private static boolean containsFile(Path dir) throws IOException {
+        final boolean[] found = new boolean[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    found[0] = true;
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    //deleted while listing
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * The page being listed
+     */
+    private static class Page {
+        final String bucket;
+        final String prefix;
+        final String delimiter;
+        final String marker;
+        final int maxKeys;
+        final ObjectListing listing;
+        final List<String> commonPrefixes = new ArrayList<String>();
+        String last;
+        int count;
+
+        Page(String bucket, String prefix, String delimiter, String marker, int maxKeys, ObjectListing listing) {
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.delimiter = delimiter;
+            this.marker = marker;
+            this.maxKeys = maxKeys;
+            this.listing = listing;
+        }
+
+        /**
+         * @return false if no key of the entry can be listed: it does not match the prefix, or all of its keys sort
+         *         before the marker
+         */
+        boolean mayContain(String key, boolean directory) {
+            if (!directory) {
+                return key.startsWith(prefix) && (null == marker || key.compareTo(marker) > 0);
+            }
+            if (!key.startsWith(prefix) && !prefix.startsWith(key)) {
+                return false;
+            }
+            return null == marker || marker.startsWith(key) || key.compareTo(marker) > 0;
+        }
+
+        /**
+         * @return the common prefix of every key starting with the directory key, or null if they are not grouped
+         */
+        String groupOf(String dirKey) {
+            if (null == delimiter || dirKey.length() <= prefix.length()) {
+                return null;
+            }
+            int index = dirKey.indexOf(delimiter, prefix.length());
+            return index >= 0 && index + delimiter.length() <= dirKey.length() ? dirKey.substring(0, index +
+                    delimiter.length()) : null;
+        }
+
+        /**
+         * @return false if the page is full
+         */
+        boolean offerKey(String key, Path file) throws IOException {
+            String group = null;
+            if (null != delimiter) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    group = key.substring(0, index + delimiter.length());
+                }
+            }
+            if (null != group) {
+                return offerGroup(group);
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return true;
+            }
+            if (!attributes.isRegularFile()) {
+                return true;
+            }
+            if (isFull()) {
+                return false;
+            }
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucket);
+            summary.setKey(key);
+            summary.setSize(attributes.size());
+            summary.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+            listing.getObjectSummaries().add(summary);
+            last = key;
+            count++;
+            return true;
+        }
+
+        /**
+         * @return true if the common prefix was not listed yet, on this page or before the marker
+         */
+        boolean isUnlisted(String group) {
+            return !group.equals(last) && (null == marker || group.compareTo(marker) > 0);
+        }
+
+        /**
+         * @return false if the page is full
+         */
+        boolean offerGroup(String group) {
+            if (!isUnlisted(group)) {
+                //keys sharing a prefix are listed together
+                return true;
+            }
+            if (isFull()) {
+                return false;
+            }
+            commonPrefixes.add(group);
+            last = group;
+            count++;
+            return true;
+        }
+
+        private boolean isFull() {
+            if (count < maxKeys) {
+                return false;
+            }
+            listing.setTruncated(true);
+            listing.setNextMarker(last);
+            return true;
+        }
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        synchronized (lock) {
+            Files.deleteIfExists(resolve(bucket, key));
+            Files.deleteIfExists(resolveMetadata(bucket, key));
+        }
+    }
+
+    /**
+     * Delete an object unless it was stored again since its metadata was read, in one step
+     *
+     * @param expected metadata of the version to delete, with its last modified date and ETag
+     *
+     * @return true if the object was deleted or does not exist, false if it was stored again
+     */
+    boolean deleteIfUnchanged(String bucket, String key, ObjectMetadata expected) throws IOException {
+        synchronized (lock) {
+            ObjectMetadata current = head(bucket, key);
+            if (null != current && !isSameVersion(expected, current)) {
+                return false;
+            }
+            delete(bucket, key);
+            return true;
+        }
+    }
+
+    private static boolean isSameVersion(ObjectMetadata a, ObjectMetadata b) {
+        return a.getLastModified().equals(b.getLastModified())
+                && (null == a.getETag() ? null == b.getETag() : a.getETag().equals(b.getETag()));
+    }
+
+    /**
+     * Take a snapshot of an object, as a hard link to its content under the ".tmp" directory, or a copy if the
+     * filesystem does not support links. The caller must delete it.
+     *
+     * @throws FileNotFoundException if the object does not exist
+     */
+    Snapshot snapshot(String bucket, String key) throws IOException {
+        Path tempDir = root.resolve(TEMP_DIR);
+        Files.createDirectories(tempDir);
+        Path link = tempDir.resolve("snapshot-" + UUID.randomUUID() + ".tmp");
+        synchronized (lock) {
+            ObjectMetadata metadata = head(bucket, key);
+            if (null == metadata) {
+                throw new FileNotFoundException("Object not found: " + bucket + "/" + key);
+            }
+            try {
+                Files.createLink(link, resolve(bucket, key));
+            } catch (UnsupportedOperationException e) {
+                Files.copy(resolve(bucket, key), link);
+            } catch (FileSystemException e) {
+                //e.g. links are not permitted
+                Files.copy(resolve(bucket, key), link);
+            }
+            return new Snapshot(link.toFile(), metadata);
+        }
+    }
+
+    public List<String> deleteAll(String bucket, List<String> keys) {
+        List<String> failed = new ArrayList<String>();
+        for (String key : keys) {
+            try {
+                delete(bucket, key);
+            } catch (IOException e) {
+                failed.add(key);
+            }
+        }
+        return failed;
+    }
+
+    private static String toKey(Path relative) {
+        StringBuilder key = new StringBuilder();
+        for (Path name : relative) {
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append(name.toString());
+        }
+        return key.toString();
+    }
+
+    private Path resolveBucket(String bucket) {
+        if (null == bucket || "".equals(bucket) || bucket.startsWith(".") || bucket.contains("/")
+                || bucket.contains("\\")) {
+            throw new IllegalArgumentException("Invalid bucket name: " + bucket);
+        }
+        return root.resolve(bucket);
+    }
+
+    private Path resolve(String bucket, String key) {
+        return resolveKey(resolveBucket(bucket), key);
+    }
+
+    private Path resolveMetadata(String bucket, String key) {
+        return resolveKey(root.resolve(METADATA_DIR).resolve(resolveBucket(bucket).getFileName()), key);
+    }
+
+    private static Path resolveKey(Path dir, String key) {
+        if (null == key || "".equals(key) || key.startsWith("/") || key.endsWith("/")) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        for (String segment : key.split("/")) {
+            if ("".equals(segment) || ".".equals(segment) || "..".equals(segment)) {
+                throw new IllegalArgumentException("Invalid key: " + key);
+            }
+        }
+        return dir.resolve(key);
+    }
+
+    private static MessageDigest createMD5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available", e);
+        }
+    }
+}
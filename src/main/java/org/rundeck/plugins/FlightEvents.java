@@ -0,0 +1,358 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Emits Java Flight Recorder events for the plugin's S3 work. The JFR API is used reflectively, so the plugin still
+ * runs on JVMs without JFR, where every event is a no-op.
+ * <p/>
+ * Event types, in the "Rundeck / S3 Log Storage" category:
+ * <ul>
+ * <li>{@link #OPERATION}: each store, retrieve and isAvailable call</li>
+ * <li>{@link #REQUEST}: each S3 request, including all of its retries</li>
+ * <li>{@link #RETRY}: each retry of an S3 request, with the backoff pause</li>
+ * <li>{@link #WAIT}: time a transfer waited for a rate limit or for a multipart upload slot</li>
+ * </ul>
+ */
+class FlightEvents {
+    static final String OPERATION = "org.rundeck.plugins.S3Operation";
+    static final String REQUEST = "org.rundeck.plugins.S3Request";
+    static final String RETRY = "org.rundeck.plugins.S3Retry";
+    static final String WAIT = "org.rundeck.plugins.S3Wait";
+
+    private static final Logger logger = Logger.getLogger(FlightEvents.class.getName());
+    private static final String[] CATEGORY = {"Rundeck", "S3 Log Storage"};
+
+    private static Method newEvent;
+    private static Method begin;
+    private static Method end;
+    private static Method shouldCommit;
+    private static Method commit;
+    private static Method set;
+    private static EventType operationType;
+    private static EventType requestType;
+    private static EventType retryType;
+    private static EventType waitType;
+
+    static {
+        try {
+            operationType = new EventType(OPERATION, "S3 Log Operation", "A log storage plugin operation",
+                    new Object[][]{
+                            {String.class, "operation", "Operation", null},
+                            {String.class, "bucket", "Bucket", null},
+                            {String.class, "key", "Key", null},
+                            {long.class, "bytes", "Bytes", "jdk.jfr.DataAmount:BYTES"},
+                            {String.class, "status", "Status", null},
+                    });
+            requestType = new EventType(REQUEST, "S3 Request", "An S3 request, including retries",
+                    new Object[][]{
+                            {String.class, "operation", "Operation", null},
+                            {String.class, "method", "HTTP Method", null},
+                            {String.class, "bucket", "Bucket", null},
+                            {String.class, "key", "Key", null},
+                            {long.class, "bytes", "Bytes", "jdk.jfr.DataAmount:BYTES"},
+                            {String.class, "status", "Status", null},
+                            {int.class, "attempts", "Attempts", null},
+                            {long.class, "httpTime", "HTTP Time", "jdk.jfr.Timespan:MILLISECONDS"},
+                    });
+            retryType = new EventType(RETRY, "S3 Retry", "A retry of an S3 request",
+                    new Object[][]{
+                            {String.class, "operation", "Operation", null},
+                            {String.class, "bucket", "Bucket", null},
+                            {String.class, "key", "Key", null},
+                            {long.class, "bytes", "Bytes", "jdk.jfr.DataAmount:BYTES"},
+                            {String.class, "status", "Status", null},
+                            {int.class, "attempt", "Attempt", null},
+                            {long.class, "pauseTime", "Pause Time", "jdk.jfr.Timespan:MILLISECONDS"},
+                    });
+            waitType = new EventType(WAIT, "S3 Transfer Wait", "Time a transfer waited before sending data",
+                    new Object[][]{
+                            {String.class, "reason", "Reason", null},
+                            {String.class, "bucket", "Bucket", null},
+                            {String.class, "key", "Key", null},
+                            {long.class, "bytes", "Bytes", "jdk.jfr.DataAmount:BYTES"},
+                            {String.class, "status", "Status", null},
+                    });
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.FINE, "Java Flight Recorder is not available");
+            operationType = null;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Java Flight Recorder events could not be registered: " + e, e);
+            operationType = null;
+        }
+    }
+
+    /**
+     * @return true if JFR events are emitted
+     */
+    static boolean isAvailable() {
+        return null != operationType;
+    }
+
+    /**
+     * Start an operation event
+     */
+    static Event beginOperation(String operation, String bucket, String key) {
+        return (isAvailable() ? operationType.begin() : Event.NONE).set(0, operation).set(1, bucket).set(2, key);
+    }
+
+    /**
+     * Start a wait event
+     */
+    static Event beginWait(String reason, String bucket, String key) {
+        return (isAvailable() ? waitType.begin() : Event.NONE).set(0, reason).set(1, bucket).set(2, key);
+    }
+
+    /**
+     * @return handler which emits request and retry events for an S3 client
+     */
+    static RequestHandler getRequestHandler() {
+        return requestHandler;
+    }
+
+    private static final RequestHandler requestHandler = new RequestHandler() {
+        private final Map<Request<?>, Event> started = Collections.synchronizedMap(
+                new WeakHashMap<Request<?>, Event>());
+
+        public void beforeRequest(Request<?> request) {
+            if (!isAvailable()) {
+                return;
+            }
+            AmazonWebServiceRequest original = request.getOriginalRequest();
+            Event event = requestType.begin()
+                    .set(0, operationName(original))
+                    .set(1, String.valueOf(request.getHttpMethod()))
+                    .set(2, property(original, "getBucketName"))
+                    .set(3, property(original, "getKey"));
+            started.put(request, event);
+        }
+
+        public void afterResponse(Request<?> request, Object response, TimingInfo timingInfo) {
+            finish(request, responseBytes(request, response), "OK", timingInfo);
+        }
+
+        public void afterError(Request<?> request, Exception e) {
+            String status;
+            if (e instanceof AmazonServiceException) {
+                AmazonServiceException ase = (AmazonServiceException) e;
+                status = ase.getStatusCode() + " " + ase.getErrorCode();
+            } else {
+                status = e.getClass().getSimpleName();
+            }
+            finish(request, requestBytes(request), status, null);
+        }
+
+        private void finish(Request<?> request, long bytes, String status, TimingInfo timingInfo) {
+            Event event = started.remove(request);
+            if (null == event) {
+                return;
+            }
+            int attempts = 1;
+            long httpTime = 0;
+            List<TimingInfo> pauses = null;
+            if (null != timingInfo) {
+                Number count = timingInfo.getCounter(AWSRequestMetrics.Field.AttemptCount.name());
+                attempts = null != count ? count.intValue() : 1;
+                List<TimingInfo> http = timingInfo.getAllSubMeasurements(
+                        AWSRequestMetrics.Field.HttpRequestTime.name());
+                if (null != http) {
+                    for (TimingInfo info : http) {
+                        httpTime += (long) info.getTimeTakenMillis();
+                    }
+                }
+                pauses = timingInfo.getAllSubMeasurements(AWSRequestMetrics.Field.RetryPauseTime.name());
+            }
+            event.set(4, bytes).set(5, status).set(6, attempts).set(7, httpTime).commit();
+            if (null != pauses) {
+                int attempt = 2;
+                for (TimingInfo pause : pauses) {
+                    retryType.begin()
+                            .set(0, event.get(0))
+                            .set(1, event.get(2))
+                            .set(2, event.get(3))
+                            .set(3, bytes)
+                            .set(4, status)
+                            .set(5, attempt++)
+                            .set(6, (long) pause.getTimeTakenMillis())
+                            .commit();
+                }
+            }
+        }
+    };
+
+    private static String operationName(AmazonWebServiceRequest request) {
+        if (null == request) {
+            return null;
+        }
+        String name = request.getClass().getSimpleName();
+        return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+    }
+
+    /**
+     * @return the String value of a getter of the request, or null
+     */
+    private static String property(Object request, String getter) {
+        if (null == request) {
+            return null;
+        }
+        try {
+            Object value = request.getClass().getMethod(getter).invoke(request);
+            return null != value ? value.toString() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long requestBytes(Request<?> request) {
+        String length = request.getHeaders().get("Content-Length");
+        try {
+            return null != length ? Long.parseLong(length) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long responseBytes(Request<?> request, Object response) {
+        if (response instanceof S3Object && null != ((S3Object) response).getObjectMetadata()) {
+            return ((S3Object) response).getObjectMetadata().getContentLength();
+        }
+        return requestBytes(request);
+    }
+
+    /**
+     * An event type created with the JFR EventFactory
+     */
+    private static class EventType {
+        private final Object factory;
+        private final Class<?>[] types;
+
+        /**
+         * @param fields for each field: type, name, label, and optional "annotation:value" for its unit
+         */
+        EventType(String name, String label, String description, Object[][] fields) throws Exception {
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> descriptor = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"), description));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), CATEGORY));
+            List<Object> descriptors = new ArrayList<Object>();
+            types = new Class<?>[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = (Class<?>) fields[i][0];
+                List<Object> fieldAnnotations = new ArrayList<Object>();
+                fieldAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), fields[i][2]));
+                if (null != fields[i][3]) {
+                    String[] unit = ((String) fields[i][3]).split(":");
+                    Class<?> unitType = Class.forName(unit[0]);
+                    fieldAnnotations.add(annotation.newInstance(unitType, unitType.getField(unit[1]).get(null)));
+                }
+                descriptors.add(descriptor.newInstance(fields[i][0], fields[i][1], fieldAnnotations));
+            }
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations,
+                    descriptors);
+            eventFactory.getMethod("register").invoke(factory);
+            synchronized (FlightEvents.class) {
+                if (null == newEvent) {
+                    newEvent = eventFactory.getMethod("newEvent");
+                    begin = event.getMethod("begin");
+                    end = event.getMethod("end");
+                    shouldCommit = event.getMethod("shouldCommit");
+                    commit = event.getMethod("commit");
+                    set = event.getMethod("set", int.class, Object.class);
+                }
+            }
+        }
+
+        Event begin() {
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return new Event(event, types);
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Could not create event: " + e, e);
+                return Event.NONE;
+            }
+        }
+    }
+
+    /**
+     * An event which has begun, committed when the work completes
+     */
+    static class Event {
+        static final Event NONE = new Event(null, new Class<?>[0]);
+
+        private final Object event;
+        private final Object[] values;
+
+        private Event(Object event, Class<?>[] types) {
+            this.event = event;
+            this.values = new Object[types.length];
+        }
+
+        /**
+         * Set a field value, by the index of the field in the event type
+         */
+        Event set(int index, Object value) {
+            if (null != event) {
+                values[index] = value;
+            }
+            return this;
+        }
+
+        Object get(int index) {
+            return null != event ? values[index] : null;
+        }
+
+        /**
+         * End and commit the event, if the event type is enabled in a recording
+         */
+        void commit() {
+            if (null == event) {
+                return;
+            }
+            try {
+                end.invoke(event);
+                if ((Boolean) shouldCommit.invoke(event)) {
+                    for (int i = 0; i < values.length; i++) {
+                        if (null != values[i]) {
+                            set.invoke(event, i, values[i]);
+                        }
+                    }
+                    commit.invoke(event);
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Could not commit event: " + e, e);
+            }
+        }
+
+        /**
+         * Set the byte count and status, and commit
+         */
+        void commit(long bytes, String status) {
+            if (null != event) {
+                values[values.length - 2] = bytes;
+                values[values.length - 1] = status;
+            }
+            commit();
+        }
+    }
+}
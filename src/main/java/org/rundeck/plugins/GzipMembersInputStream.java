@@ -0,0 +1,162 @@
+package org.rundeck.plugins;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a stream of concatenated gzip members. Unlike {@link java.util.zip.GZIPInputStream} it does not rely
+ * on {@link InputStream#available()} to find the next member, so it reads every member from network streams.
+ */
+class GzipMembersInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final PushbackInputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int lastInputLength;
+    private boolean inMember;
+    private boolean eof;
+
+    GzipMembersInputStream(InputStream in) {
+        this.in = new PushbackInputStream(in, BUFFER_SIZE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof) {
+            if (!inMember) {
+                if (!readHeader()) {
+                    eof = true;
+                    break;
+                }
+                inMember = true;
+            }
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid gzip data: " + e.getMessage());
+            }
+            if (n > 0) {
+                crc.update(b, off, n);
+                return n;
+            }
+            if (inflater.finished()) {
+                int remaining = inflater.getRemaining();
+                if (remaining > 0) {
+                    in.unread(buffer, lastInputLength - remaining, remaining);
+                }
+                readTrailer();
+                inMember = false;
+            } else if (inflater.needsInput()) {
+                fill();
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("Invalid gzip data: dictionary required");
+            }
+        }
+        return -1;
+    }
+
+    private void fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n < 0) {
+            throw new EOFException("Unexpected end of gzip stream");
+        }
+        lastInputLength = n;
+        inflater.setInput(buffer, 0, n);
+    }
+
+    /**
+     * @return false if the stream ended before another member
+     */
+    private boolean readHeader() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        if (first != 0x1f || readByte() != 0x8b) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (readByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readByte();
+        skip(6);
+        if ((flags & FEXTRA) != 0) {
+            skip(readByte() | (readByte() << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            skipString();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipString();
+        }
+        if ((flags & FHCRC) != 0) {
+            skip(2);
+        }
+        inflater.reset();
+        crc.reset();
+        return true;
+    }
+
+    private void readTrailer() throws IOException {
+        long expectedCrc = readIntLE() & 0xffffffffL;
+        long expectedSize = readIntLE() & 0xffffffffL;
+        if (expectedCrc != crc.getValue()) {
+            throw new ZipException("Corrupt gzip member: CRC mismatch");
+        }
+        if (expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt gzip member: size mismatch");
+        }
+    }
+
+    private int readIntLE() throws IOException {
+        return readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of gzip stream");
+        }
+        return b;
+    }
+
+    private void skip(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readByte();
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (readByte() != 0) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,193 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a duplicate ("hedge") of a request if the first one has not responded within a percentile of recently
+ * observed response times, and uses whichever response arrives first. The response of the losing request is
+ * discarded. Each instance tracks the latency of one kind of request for the whole JVM, and limits hedges to a
+ * fraction of requests so that hedging cannot multiply load when every request is slow.
+ */
+class Hedger {
+    static final int WINDOW = 256;
+    static final int MIN_SAMPLES = 20;
+    /**
+     * Most hedges which may be saved up while requests are fast
+     */
+    static final double MAX_BUDGET = 10;
+
+    private static final Logger logger = Logger.getLogger(Hedger.class.getName());
+    private static final Hedger getObject = new Hedger("getObject");
+    private static final Hedger getObjectMetadata = new Hedger("getObjectMetadata");
+
+    /**
+     * Releases the resources of a response which was not used
+     */
+    interface Discard<T> {
+        void discard(T result);
+    }
+
+    private final String name;
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int next;
+    private double budget;
+
+    Hedger(String name) {
+        this.name = name;
+    }
+
+    static Hedger getObject() {
+        return getObject;
+    }
+
+    static Hedger getObjectMetadata() {
+        return getObjectMetadata;
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % WINDOW;
+        sampleCount = Math.min(WINDOW, sampleCount + 1);
+    }
+
+    /**
+     * @param percentile percentile of recent latencies
+     *
+     * @return the hedge delay in nanoseconds, or -1 if too few requests have been observed
+     */
+    synchronized long getDelay(int percentile) {
+        if (sampleCount < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sampleCount) - 1;
+        return sorted[Math.max(0, Math.min(sampleCount - 1, index))];
+    }
+
+    /**
+     * Add the allowance of one request to the hedge budget
+     *
+     * @param maxRate fraction of requests which may be hedged
+     */
+    private synchronized void earn(double maxRate) {
+        budget = Math.min(MAX_BUDGET, budget + maxRate);
+    }
+
+    private synchronized boolean spend() {
+        if (budget >= 1) {
+            budget -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Perform the request, hedging it if it is slow
+     *
+     * @param request    the request
+     * @param discard    releases an unused response
+     * @param percentile latency percentile after which to hedge
+     * @param maxRate    fraction of requests which may be hedged
+     * @param executor   executor for the requests
+     *
+     * @return the first successful response
+     *
+     * @throws AmazonClientException if every request sent failed
+     */
+    <T> T call(final Callable<T> request, final Discard<T> discard, int percentile, double maxRate,
+            ExecutorService executor) {
+        earn(maxRate);
+        long delay = getDelay(percentile);
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        futures.add(completion.submit(new Attempt<T>(request, discard, claimed)));
+        try {
+            Future<T> done = null;
+            if (delay >= 0) {
+                done = completion.poll(delay, TimeUnit.NANOSECONDS);
+                if (null == done && spend()) {
+                    logger.log(Level.FINE, "Hedging {0} after {1}ms", new Object[]{name, delay / 1000000});
+                    S3LogMetrics.getInstance().addHedge();
+                    futures.add(completion.submit(new Attempt<T>(request, discard, claimed)));
+                }
+            }
+            int pending = futures.size();
+            AmazonClientException failure = null;
+            while (pending > 0) {
+                if (null == done) {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    if (futures.size() > 1 && done == futures.get(1)) {
+                        S3LogMetrics.getInstance().addHedgeWin();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof LostHedgeException) {
+                        //the other request already won
+                    } else if (e.getCause() instanceof AmazonClientException) {
+                        if (null == failure) {
+                            failure = (AmazonClientException) e.getCause();
+                        }
+                    } else if (null == failure) {
+                        failure = new AmazonClientException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted waiting for " + name, e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Thrown by a request which completed after another one had already been used
+     */
+    private static class LostHedgeException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private class Attempt<T> implements Callable<T> {
+        private final Callable<T> request;
+        private final Discard<T> discard;
+        private final AtomicBoolean claimed;
+
+        Attempt(Callable<T> request, Discard<T> discard, AtomicBoolean claimed) {
+            this.request = request;
+            this.discard = discard;
+            this.claimed = claimed;
+        }
+
+        public T call() throws Exception {
+            long start = System.nanoTime();
+            T result = request.call();
+            record(System.nanoTime() - start);
+            if (!claimed.compareAndSet(false, true)) {
+                if (null != discard && null != result) {
+                    discard.discard(result);
+                }
+                throw new LostHedgeException();
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves logs from hot tiers to their cold stores in the background. Each hot tier directory and bucket is registered
+ * once for the JVM, and scanned every {@link #MOVE_INTERVAL_SECONDS}: logs older than the maximum age are moved, and
+ * then the oldest logs until the tier is within its maximum size. A snapshot of a log is copied to the cold store,
+ * as a multipart upload if it is large, before the log is deleted from the hot tier, and the log is not deleted if
+ * it was replaced while it was copied.
+ */
+class HotTierMover {
+    static final long MOVE_INTERVAL_SECONDS = 60;
+
+    private static final Logger logger = Logger.getLogger(HotTierMover.class.getName());
+    private static final HotTierMover shared = new HotTierMover();
+
+    private final Map<String, Tier> tiers = new HashMap<String, Tier>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    /**
+     * A hot tier bucket and where its logs are moved to
+     */
+    static class Tier {
+        final FileObjectStore hot;
+        final ObjectStore cold;
+        final String bucket;
+        final long maxAgeMillis;
+        final long maxBytes;
+        final long multipartThreshold;
+        final PartSizer sizer;
+
+        Tier(FileObjectStore hot, ObjectStore cold, String bucket, long maxAgeMillis, long maxBytes) {
+            this(hot, cold, bucket, maxAgeMillis, maxBytes, 0, null);
+        }
+
+        /**
+         * @param multipartThreshold logs of at least this many bytes are moved to an S3 cold store with a multipart
+         *                           upload, or 0 to always use a single request
+         * @param sizer              part sizes and concurrency of the multipart uploads
+         */
+        Tier(FileObjectStore hot, ObjectStore cold, String bucket, long maxAgeMillis, long maxBytes,
+                long multipartThreshold, PartSizer sizer) {
+            this.hot = hot;
+            this.cold = cold;
+            this.bucket = bucket;
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxBytes = maxBytes;
+            this.multipartThreshold = multipartThreshold;
+            this.sizer = sizer;
+        }
+    }
+
+    /**
+     * A log in the hot tier
+     */
+    private static class HotLog {
+        final String key;
+        final long lastModified;
+        final long length;
+
+        HotLog(String key, long lastModified, long length) {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    static HotTierMover getShared() {
+        return shared;
+    }
+
+    /**
+     * Register a hot tier bucket, replacing the cold store and thresholds of an earlier registration, and start
+     * the background moves if necessary
+     *
+     * @param hotRoot root directory of the hot tier, identifying it
+     * @param tier    the tier
+     */
+    synchronized void register(String hotRoot, Tier tier) {
+        tiers.put(hotRoot + "/" + tier.bucket, tier);
+        if (null == task) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new TransferExecutors.NamedThreadFactory("rundeck-s3-tier")
+            );
+            task = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    moveAll(System.currentTimeMillis());
+                }
+            }, MOVE_INTERVAL_SECONDS, MOVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop the background moves and forget all tiers
+     */
+    synchronized void shutdown() {
+        tiers.clear();
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            task = null;
+        }
+    }
+
+    /**
+     * Move the logs due to be moved from every registered tier
+     *
+     * @param now current time in milliseconds
+     *
+     * @return number of logs moved
+     */
+    int moveAll(long now) {
+        List<Tier> current;
+        synchronized (this) {
+            current = new ArrayList<Tier>(tiers.values());
+        }
+        int moved = 0;
+        for (Tier tier : current) {
+            try {
+                moved += move(tier, now);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Hot tier scan failed for bucket " + tier.bucket + ": " + e.getMessage(), e);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move the logs of one tier which are older than the maximum age, then the oldest logs until the tier is within
+     * its maximum size
+     *
+     * @return number of logs moved
+     */
+    static int move(Tier tier, long now) throws IOException {
+        List<HotLog> logs = new ArrayList<HotLog>();
+        long total = 0;
+        for (String key : tier.hot.list(tier.bucket, null)) {
+            ObjectMetadata metadata = tier.hot.head(tier.bucket, key);
+            if (null != metadata) {
+                logs.add(new HotLog(key, metadata.getLastModified().getTime(), metadata.getContentLength()));
+                total += metadata.getContentLength();
+            }
+        }
+        Collections.sort(logs, new Comparator<HotLog>() {
+            public int compare(HotLog a, HotLog b) {
+                return a.lastModified < b.lastModified ? -1 : a.lastModified > b.lastModified ? 1 : 0;
+            }
+        });
+        int moved = 0;
+        for (HotLog log : logs) {
+            boolean aged = tier.maxAgeMillis > 0 && now - log.lastModified >= tier.maxAgeMillis;
+            boolean oversize = tier.maxBytes > 0 && total > tier.maxBytes;
+            if (!aged && !oversize) {
+                //sorted by age, so no later log is older
+                break;
+            }
+            try {
+                if (moveLog(tier, log.key)) {
+                    moved++;
+                }
+                total -= log.length;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Moving " + log.key + " to cold storage failed: " + e.getMessage(), e);
+            } catch (AmazonClientException e) {
+                logger.log(Level.WARNING, "Moving " + log.key + " to cold storage failed: " + e.getMessage(), e);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Copy a snapshot of a log to the cold store, then delete the log from the hot tier unless it was replaced
+     * meanwhile
+     *
+     * @return true if the log was moved
+     */
+    static boolean moveLog(Tier tier, String key) throws IOException {
+        FileObjectStore.Snapshot snapshot = tier.hot.snapshot(tier.bucket, key);
+        ObjectMetadata metadata = snapshot.metadata;
+        long length = metadata.getContentLength();
+        FlightEvents.Event event = FlightEvents.beginOperation("tierMove", tier.bucket, key);
+        String status = "failed";
+        try {
+            AmazonS3 client = tier.cold instanceof S3ObjectStore ? ((S3ObjectStore) tier.cold).getClient() : null;
+            if (null != client && tier.multipartThreshold > 0 && length >= tier.multipartThreshold) {
+                //parts are read from the snapshot, and each takes its own transfer permit
+                new MultipartUploader(client, TransferExecutors.getShared(), tier.sizer).upload(tier.bucket, key,
+                        coldMetadata(metadata), snapshot.file);
+            } else {
+                put(tier, key, snapshot);
+            }
+            if (!tier.hot.deleteIfUnchanged(tier.bucket, key, metadata)) {
+                //stored again while it was copied, the new content is moved later
+                status = "replaced";
+                return false;
+            }
+            logger.log(Level.FINE, "Moved {0}:{1} ({2} bytes) to cold storage", new Object[]{tier.bucket, key,
+                    length});
+            status = "OK";
+            return true;
+        } finally {
+            snapshot.delete();
+            event.commit(length, status);
+        }
+    }
+
+    private static void put(Tier tier, String key, FileObjectStore.Snapshot snapshot) throws IOException {
+        InputStream content = new BufferedInputStream(new FileInputStream(snapshot.file));
+        try {
+            TransferExecutors.acquireTransfer(tier.bucket, key);
+            try {
+                tier.cold.put(tier.bucket, key, new ThrottledInputStream(content, BandwidthThrottle.getUpload(),
+                        true), coldMetadata(snapshot.metadata));
+            } finally {
+                TransferExecutors.releaseTransfer();
+            }
+        } finally {
+            content.close();
+        }
+    }
+
+    /**
+     * @return metadata to store the object with, without the properties set by the hot tier
+     */
+    private static ObjectMetadata coldMetadata(ObjectMetadata metadata) {
+        ObjectMetadata result = new ObjectMetadata();
+        for (Map.Entry<String, Object> entry : metadata.getRawMetadata().entrySet()) {
+            if (!Headers.ETAG.equals(entry.getKey()) && !Headers.LAST_MODIFIED.equals(entry.getKey())) {
+                result.setHeader(entry.getKey(), entry.getValue());
+            }
+        }
+        result.setUserMetadata(new HashMap<String, String>(metadata.getUserMetadata()));
+        result.setContentLength(metadata.getContentLength());
+        return result;
+    }
+}
@@ -0,0 +1,63 @@
+package org.rundeck.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of the keys with a prefix, which can be listed independently of the other ranges of the prefix. A range
+ * holds the keys after its lower bound, up to and including its upper bound.
+ */
+class KeyRange {
+    /**
+     * First characters of the keys after the prefix at which the key space is split. Execution IDs start with a
+     * digit, and project names usually with a letter.
+     */
+    static final String SPLIT_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    final String prefix;
+    /**
+     * Keys are after this key, or null for the first range
+     */
+    final String lower;
+    /**
+     * Keys are at most this key, or null for the last range
+     */
+    final String upper;
+
+    KeyRange(String prefix, String lower, String upper) {
+        this.prefix = prefix;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * @return true if the key is past the end of the range
+     */
+    boolean isAfter(String key) {
+        return null != upper && key.compareTo(upper) > 0;
+    }
+
+    /**
+     * Split the keys with a prefix at each of the {@link #SPLIT_CHARACTERS} following the prefix
+     *
+     * @param prefix prefix
+     *
+     * @return ranges covering every key with the prefix, in key order
+     */
+    static List<KeyRange> split(String prefix) {
+        List<KeyRange> ranges = new ArrayList<KeyRange>();
+        String lower = null;
+        for (char c : SPLIT_CHARACTERS.toCharArray()) {
+            String upper = prefix + c;
+            ranges.add(new KeyRange(prefix, lower, upper));
+            lower = upper;
+        }
+        ranges.add(new KeyRange(prefix, lower, null));
+        return ranges;
+    }
+
+    @Override
+    public String toString() {
+        return prefix + "(" + lower + ", " + upper + "]";
+    }
+}
@@ -0,0 +1,345 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the logs stored with a key template with the logs expected for a list of executions, and finds the
+ * expected logs which are missing, the stored logs of other executions, and the logs whose "rundeck.execid" metadata
+ * is not the execution ID of their key, as {@link S3LogFileStoragePlugin#isAvailable(String)} would report.
+ * <p/>
+ * The keys under the template's literal prefix, which includes the project if one is selected, are split into
+ * {@link KeyRange}s which are listed in parallel. The metadata of the stored logs of the expected executions is read
+ * with parallel requests while the next page of their range is listed.
+ */
+class LogAudit {
+    static final int PAGE_SIZE = 1000;
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final List<String> DEFAULT_FILETYPES = Collections.singletonList("rdlog");
+
+    private final ObjectStore store;
+    private final String bucket;
+    private final String template;
+    private String project;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private List<String> filetypes = DEFAULT_FILETYPES;
+    private boolean checkMetadata = true;
+
+    /**
+     * An execution whose logs are expected to be stored
+     */
+    static class Execution {
+        final String execid;
+        final String project;
+        final String jobId;
+
+        Execution(String execid, String project, String jobId) {
+            this.execid = execid;
+            this.project = project;
+            this.jobId = jobId;
+        }
+
+        Map<String, String> getContext() {
+            Map<String, String> context = new HashMap<String, String>();
+            context.put("execid", execid);
+            context.put("project", project);
+            if (null != jobId) {
+                context.put("id", jobId);
+            }
+            return context;
+        }
+
+        /**
+         * Read executions, one per line as "execid project [jobid]", separated by spaces or commas. Empty lines and
+         * lines starting with "#" are ignored.
+         */
+        static List<Execution> read(Reader reader) throws IOException {
+            List<Execution> executions = new ArrayList<Execution>();
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            int number = 0;
+            while (null != (line = lines.readLine())) {
+                number++;
+                line = line.trim();
+                if ("".equals(line) || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[\\s,]+");
+                if (fields.length < 2 || fields.length > 3) {
+                    throw new IllegalArgumentException("Expected \"execid project [jobid]\" on line " + number + ": " +
+                            line);
+                }
+                executions.add(new Execution(fields[0], fields[1], fields.length > 2 ? fields[2] : null));
+            }
+            return executions;
+        }
+    }
+
+    /**
+     * Counts and keys found by an audit
+     */
+    static class Result {
+        final AtomicLong listed = new AtomicLong();
+        final AtomicLong expected = new AtomicLong();
+        final AtomicLong found = new AtomicLong();
+        final AtomicLong pages = new AtomicLong();
+        final Set<String> missing = new ConcurrentSkipListSet<String>();
+        final Set<String> orphaned = new ConcurrentSkipListSet<String>();
+        /**
+         * the "rundeck.execid" metadata of the mismatched keys, or "" if the metadata is not set
+         */
+        final ConcurrentSkipListMap<String, String> mismatched = new ConcurrentSkipListMap<String, String>();
+        long elapsedNanos;
+
+        long getListed() {
+            return listed.get();
+        }
+
+        long getExpected() {
+            return expected.get();
+        }
+
+        long getFound() {
+            return found.get();
+        }
+
+        long getPages() {
+            return pages.get();
+        }
+
+        Set<String> getMissing() {
+            return missing;
+        }
+
+        Set<String> getOrphaned() {
+            return orphaned;
+        }
+
+        Map<String, String> getMismatched() {
+            return mismatched;
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        boolean isConsistent() {
+            return missing.isEmpty() && orphaned.isEmpty() && mismatched.isEmpty();
+        }
+    }
+
+    /**
+     * @param store    store
+     * @param bucket   bucket
+     * @param template key template, see {@link LogKeys}
+     */
+    LogAudit(ObjectStore store, String bucket, String template) {
+        this.store = store;
+        this.bucket = bucket;
+        this.template = template;
+    }
+
+    /**
+     * @param project audit only the logs of this project, or null for every project
+     */
+    void setProject(String project) {
+        this.project = project;
+    }
+
+    /**
+     * @param concurrency number of key ranges listed in parallel
+     */
+    void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param filetypes file types of the expected logs, such as "rdlog"
+     */
+    void setFiletypes(List<String> filetypes) {
+        this.filetypes = filetypes;
+    }
+
+    /**
+     * @param checkMetadata if false, do not read the metadata of the stored logs
+     */
+    void setCheckMetadata(boolean checkMetadata) {
+        this.checkMetadata = checkMetadata;
+    }
+
+    /**
+     * @param executions the executions whose logs are expected
+     */
+    Result run(List<Execution> executions) throws IOException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        Map<String, String> context = new HashMap<String, String>();
+        if (null != project) {
+            context.put("project", project);
+        }
+        final Pattern pattern = LogKeys.pattern(template, context);
+        String prefix = LogKeys.prefix(template, context);
+        final Result result = new Result();
+
+        //execution ID of each expected key, removed when the key is listed
+        final ConcurrentHashMap<String, String> expected = new ConcurrentHashMap<String, String>();
+        for (Execution execution : executions) {
+            String path = S3LogFileStoragePlugin.expandPath(template, execution.getContext());
+            for (String filetype : filetypes) {
+                String key = path + "." + filetype;
+                if (pattern.matcher(key).matches() && null == expected.put(key, execution.execid)) {
+                    result.expected.incrementAndGet();
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        final ConcurrentLinkedQueue<KeyRange> ranges = new ConcurrentLinkedQueue<KeyRange>(KeyRange.split(prefix));
+        ExecutorService executor = TransferExecutors.getShared();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int i = 0; i < Math.min(concurrency, ranges.size()); i++) {
+            workers.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    KeyRange range;
+                    while (null != (range = ranges.poll())) {
+                        audit(range, pattern, expected, result);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            await(workers);
+        } finally {
+            for (Future<Void> worker : workers) {
+                worker.cancel(true);
+            }
+            result.elapsedNanos = System.nanoTime() - start;
+        }
+        result.missing.addAll(expected.keySet());
+        return result;
+    }
+
+    private void audit(KeyRange range, Pattern pattern, ConcurrentHashMap<String, String> expected, Result result)
+            throws IOException {
+        String marker = range.lower;
+        List<Future<Void>> pending = Collections.emptyList();
+        boolean end = false;
+        while (!end) {
+            ObjectListing page = listPage(range.prefix, marker);
+            result.pages.incrementAndGet();
+            end = !page.isTruncated();
+            final Map<String, String> found = new HashMap<String, String>();
+            String last = null;
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                String key = summary.getKey();
+                if (range.isAfter(key)) {
+                    end = true;
+                    break;
+                }
+                last = key;
+                result.listed.incrementAndGet();
+                if (!pattern.matcher(key).matches() || !hasFiletype(key)) {
+                    continue;
+                }
+                String execid = expected.remove(key);
+                if (null == execid) {
+                    result.orphaned.add(key);
+                } else {
+                    result.found.incrementAndGet();
+                    found.put(key, execid);
+                }
+            }
+            //read the metadata of this page while the next page is listed
+            await(pending);
+            pending = checkMetadata ? checkAll(found, result) : Collections.<Future<Void>>emptyList();
+            if (null == last) {
+                break;
+            }
+            marker = last;
+        }
+        await(pending);
+    }
+
+    private boolean hasFiletype(String key) {
+        for (String filetype : filetypes) {
+            if (key.endsWith("." + filetype)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Future<Void>> checkAll(Map<String, String> found, final Result result) {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final Map.Entry<String, String> entry : found.entrySet()) {
+            futures.add(TransferExecutors.getShared().submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    ObjectMetadata metadata = head(entry.getKey());
+                    if (null == metadata) {
+                        //deleted since it was listed
+                        result.missing.add(entry.getKey());
+                        return null;
+                    }
+                    String metaId = null != metadata.getUserMetadata() ? metadata.getUserMetadata().get
+                            ("rundeck.execid") : null;
+                    if (!entry.getValue().equals(metaId)) {
+                        result.mismatched.put(entry.getKey(), null != metaId ? metaId : "");
+                    }
+                    return null;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private ObjectListing listPage(String prefix, String marker) throws IOException {
+        TransferExecutors.acquireTransfer(bucket, prefix);
+        try {
+            return store.listPage(bucket, prefix, null, marker, PAGE_SIZE);
+        } finally {
+            TransferExecutors.releaseTransfer();
+        }
+    }
+
+    private ObjectMetadata head(String key) throws IOException {
+        TransferExecutors.acquireTransfer(bucket, key);
+        try {
+            return store.head(bucket, key);
+        } finally {
+            TransferExecutors.releaseTransfer();
+        }
+    }
+
+    /**
+     * Wait for every future, and throw the first failure
+     */
+    private static void await(List<Future<Void>> futures) throws IOException {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package org.rundeck.plugins;
+
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads the logs which Rundeck stored locally before the plugin was enabled. Rundeck stores the logs of adhoc
+ * executions as "&lt;project&gt;/run/logs/&lt;execid&gt;.&lt;filetype&gt;" and the logs of job executions as
+ * "&lt;project&gt;/job/&lt;jobid&gt;/logs/&lt;execid&gt;.&lt;filetype&gt;" in its log directory.
+ * <p/>
+ * Each log is stored by the plugin for the execution, with the key and metadata it would have if Rundeck had stored
+ * it, unless a log is already stored with that key. The log directory is walked while up to the concurrency of logs
+ * are uploaded. Each uploaded or skipped log is appended to the journal file, and the logs in the journal are skipped
+ * when the backfill is run again.
+ */
+class LogBackfill {
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final List<String> DEFAULT_FILETYPES = Collections.unmodifiableList(Arrays.asList("rdlog", "state.json"));
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private static final Pattern ADHOC_LOG = Pattern.compile("([^/]+)/run/logs/(\\d+)\\.([^/]+)");
+    private static final Pattern JOB_LOG = Pattern.compile("([^/]+)/job/([^/]+)/logs/(\\d+)\\.([^/]+)");
+
+    private static final Logger logger = Logger.getLogger(LogBackfill.class.getName());
+
+    private final S3LogFileStoragePlugin plugin;
+    private final File logsDir;
+    private String project;
+    private File journalFile;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private List<String> filetypes = DEFAULT_FILETYPES;
+    private boolean dryRun;
+
+    /**
+     * A local log file of an execution
+     */
+    static class LogFile {
+        final File file;
+        /**
+         * path relative to the log directory, with "/" separators
+         */
+        final String path;
+        final Map<String, String> context;
+        final String filetype;
+
+        LogFile(File file, String path, Map<String, String> context, String filetype) {
+            this.file = file;
+            this.path = path;
+            this.context = context;
+            this.filetype = filetype;
+        }
+
+        /**
+         * @param file local file
+         * @param path path of the file relative to the log directory, with "/" separators
+         *
+         * @return the log file, or null if the path is not the path of a log
+         */
+        static LogFile parse(File file, String path) {
+            Map<String, String> context = new HashMap<String, String>();
+            String filetype;
+            Matcher matcher = ADHOC_LOG.matcher(path);
+            if (matcher.matches()) {
+                context.put("project", matcher.group(1));
+                context.put("execid", matcher.group(2));
+                filetype = matcher.group(3);
+            } else if ((matcher = JOB_LOG.matcher(path)).matches()) {
+                context.put("project", matcher.group(1));
+                context.put("id", matcher.group(2));
+                context.put("execid", matcher.group(3));
+                filetype = matcher.group(4);
+            } else {
+                return null;
+            }
+            return new LogFile(file, path, context, filetype);
+        }
+    }
+
+    /**
+     * Counts of a backfill
+     */
+    static class Result {
+        final AtomicLong found = new AtomicLong();
+        final AtomicLong uploaded = new AtomicLong();
+        final AtomicLong uploadedBytes = new AtomicLong();
+        final AtomicLong existing = new AtomicLong();
+        final AtomicLong journaled = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        long elapsedNanos;
+
+        long getFound() {
+            return found.get();
+        }
+
+        long getUploaded() {
+            return uploaded.get();
+        }
+
+        long getUploadedBytes() {
+            return uploadedBytes.get();
+        }
+
+        long getExisting() {
+            return existing.get();
+        }
+
+        long getJournaled() {
+            return journaled.get();
+        }
+
+        long getFailed() {
+            return failed.get();
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    /**
+     * Paths of the logs which were handled by earlier runs, appended to a file
+     */
+    static class Journal {
+        private final File file;
+        private final Set<String> paths = new HashSet<String>();
+        private final Writer writer;
+
+        Journal(File file) throws IOException {
+            this.file = file;
+            boolean newline = true;
+            if (file.exists()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                try {
+                    String line;
+                    while (null != (line = reader.readLine())) {
+                        paths.add(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+                newline = file.length() == 0 || endsWithNewline(file);
+            }
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            if (!newline) {
+                //the last line was not completely written
+                writer.write('\n');
+                writer.flush();
+            }
+        }
+
+        private static boolean endsWithNewline(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(raf.length() - 1);
+                return raf.read() == '\n';
+            } finally {
+                raf.close();
+            }
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        synchronized boolean contains(String path) {
+            return paths.contains(path);
+        }
+
+        synchronized void add(String path) throws IOException {
+            writer.write(path);
+            writer.write('\n');
+            writer.flush();
+            paths.add(path);
+        }
+
+        synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * @param plugin   initialized plugin
+     * @param logsDir  Rundeck log directory, containing a directory for each project
+     */
+    LogBackfill(S3LogFileStoragePlugin plugin, File logsDir) {
+        this.plugin = plugin;
+        this.logsDir = logsDir;
+    }
+
+    /**
+     * @param project upload only the logs of this project, or null for every project
+     */
+    void setProject(String project) {
+        this.project = project;
+    }
+
+    /**
+     * @param journalFile file to record the handled logs to and resume from, or null
+     */
+    void setJournalFile(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * @param concurrency number of logs uploaded in parallel
+     */
+    void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param filetypes file types of the logs to upload, such as "rdlog"
+     */
+    void setFiletypes(List<String> filetypes) {
+        this.filetypes = filetypes;
+    }
+
+    /**
+     * @param dryRun if true, count the logs which would be uploaded without uploading them or writing the journal
+     */
+    void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    Result run() throws IOException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        File root = null != project ? new File(logsDir, project) : logsDir;
+        if (!root.isDirectory()) {
+            throw new IllegalArgumentException("Log directory does not exist: " + root);
+        }
+        final Journal journal = null != journalFile && !dryRun ? new Journal(journalFile) : null;
+        final Result result = new Result();
+        long start = System.nanoTime();
+        final BlockingQueue<LogFile> queue = new ArrayBlockingQueue<LogFile>(concurrency * 16);
+        final LogFile end = new LogFile(null, null, null, null);
+        ExecutorService executor = TransferExecutors.getShared();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException {
+                        LogFile log;
+                        while (end != (log = queue.take())) {
+                            backfill(log, journal, result);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            if (walk(root, queue, workers, result)) {
+                for (int i = 0; i < concurrency && offer(queue, end, workers); i++) {
+                }
+            }
+            await(workers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } finally {
+            for (Future<Void> worker : workers) {
+                worker.cancel(true);
+            }
+            if (null != journal) {
+                journal.close();
+            }
+            result.elapsedNanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /**
+     * Queue the log files under the directory
+     *
+     * @return false if a worker stopped before every log file was queued
+     */
+    private boolean walk(File root, final BlockingQueue<LogFile> queue, final List<Future<Void>> workers,
+            final Result result) throws IOException, InterruptedException {
+        final Path base = logsDir.toPath();
+        final InterruptedException[] interrupted = new InterruptedException[1];
+        final boolean[] stopped = new boolean[1];
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String path = base.relativize(file).toString().replace(File.separatorChar, '/');
+                LogFile log = LogFile.parse(file.toFile(), path);
+                if (null == log || !filetypes.contains(log.filetype)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                long found = result.found.incrementAndGet();
+                if (found % PROGRESS_INTERVAL == 0) {
+                    logger.log(Level.INFO, "Found {0} logs, uploaded {1}", new Object[]{found,
+                            result.getUploaded()});
+                }
+                try {
+                    if (!offer(queue, log, workers)) {
+                        stopped[0] = true;
+                        return FileVisitResult.TERMINATE;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted[0] = e;
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (null != interrupted[0]) {
+            throw interrupted[0];
+        }
+        return !stopped[0];
+    }
+
+    /**
+     * Wait until the queue accepts the log file
+     *
+     * @return false if a worker stopped, and the log file may never be taken
+     */
+    private static boolean offer(BlockingQueue<LogFile> queue, LogFile log, List<Future<Void>> workers) throws
+            InterruptedException {
+        while (!queue.offer(log, 1, TimeUnit.SECONDS)) {
+            for (Future<Void> worker : workers) {
+                if (worker.isDone()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void backfill(LogFile log, Journal journal, Result result) throws IOException {
+        if (null != journal && journal.contains(log.path)) {
+            result.journaled.incrementAndGet();
+            return;
+        }
+        try {
+            S3LogFileStoragePlugin execution = plugin.forExecution(log.context);
+            if (execution.isAvailable(log.filetype)) {
+                result.existing.incrementAndGet();
+            } else if (!dryRun) {
+                long length = log.file.length();
+                InputStream in = new FileInputStream(log.file);
+                try {
+                    execution.store(log.filetype, in, length, new Date(log.file.lastModified()));
+                } finally {
+                    in.close();
+                }
+                result.uploaded.incrementAndGet();
+                result.uploadedBytes.addAndGet(length);
+            } else {
+                result.uploaded.incrementAndGet();
+                result.uploadedBytes.addAndGet(log.file.length());
+            }
+        } catch (ExecutionFileStorageException e) {
+            logger.log(Level.WARNING, "Could not upload {0}: {1}", new Object[]{log.path, e.getMessage()});
+            result.failed.incrementAndGet();
+            return;
+        } catch (FileNotFoundException e) {
+            //removed by Rundeck since it was listed
+            logger.log(Level.WARNING, "Could not upload {0}: {1}", new Object[]{log.path, e.getMessage()});
+            result.failed.incrementAndGet();
+            return;
+        }
+        if (null != journal) {
+            journal.add(log.path);
+        }
+    }
+
+    /**
+     * Wait for every future, and throw the first failure
+     */
+    private static void await(List<Future<Void>> futures) throws IOException, InterruptedException {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local copies of retrieved logs, as stored in the backend, with the ETag and metadata of the object they were
+ * copied from, so that a later retrieve can revalidate its copy with a conditional GET instead of downloading the
+ * log again.
+ * <p/>
+ * Each copy is a data file and a properties file named by a hash of the bucket and key. The properties file names
+ * the data file, and is replaced atomically after a new data file is written, so a reader never sees the content of
+ * one object with the metadata of another. The least recently used copies are deleted when the copies are larger
+ * than the maximum size. The copies and their total size are read from the directory once, then tracked in memory,
+ * so caches are shared by all plugin instances using the same directory.
+ */
+class LogCache {
+    private static final Logger logger = Logger.getLogger(LogCache.class.getName());
+    private static final String METADATA_SUFFIX = ".properties";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String DATA_FILE = "file";
+    private static final String USER_METADATA_PREFIX = "x-amz-meta-";
+
+    private static final Map<File, LogCache> shared = new HashMap<File, LogCache>();
+
+    private final File directory;
+    private volatile long maxSize;
+    /**
+     * Copies by metadata file name, least recently used first, or null until the directory was read
+     */
+    private LinkedHashMap<String, Copy> copies;
+    private long total;
+
+    /**
+     * A copy, with its files and the length of its data
+     */
+    private static class Copy {
+        final File metadata;
+        final File data;
+        final long length;
+
+        Copy(File metadata, File data, long length) {
+            this.metadata = metadata;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param directory existing directory
+     * @param maxSize   maximum bytes of copies, or 0 for no limit
+     */
+    LogCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param directory existing directory
+     * @param maxSize   maximum bytes of copies, or 0 for no limit, replacing the maximum of an earlier call
+     *
+     * @return the cache shared by every caller with the same directory
+     */
+    static synchronized LogCache getShared(File directory, long maxSize) {
+        LogCache cache = shared.get(directory);
+        if (null == cache) {
+            cache = new LogCache(directory, maxSize);
+            shared.put(directory, cache);
+        }
+        cache.maxSize = maxSize;
+        return cache;
+    }
+
+    /**
+     * @return the metadata of the copy, with the ETag of the object it was copied from, or null if there is no copy
+     */
+    ObjectMetadata head(String bucket, String key) throws IOException {
+        Properties properties = readProperties(metadataFile(bucket, key));
+        File data = null != properties ? dataFile(properties) : null;
+        if (null == data || !data.isFile()) {
+            return null;
+        }
+        return toMetadata(properties, data.length());
+    }
+
+    /**
+     * @return the copy, or null if there is no copy
+     */
+    S3Object get(String bucket, String key) throws IOException {
+        Properties properties = readProperties(metadataFile(bucket, key));
+        File data = null != properties ? dataFile(properties) : null;
+        if (null == data) {
+            return null;
+        }
+        InputStream in;
+        try {
+            in = new FileInputStream(data);
+        } catch (FileNotFoundException e) {
+            //replaced or deleted since the metadata was written
+            return null;
+        }
+        //the least recently used copies are deleted first
+        data.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            if (null != copies) {
+                copies.get(metadataFile(bucket, key).getName());
+            }
+        }
+        S3Object object = new S3Object();
+        object.setBucketName(bucket);
+        object.setKey(key);
+        object.setObjectMetadata(toMetadata(properties, data.length()));
+        object.setObjectContent(new BufferedInputStream(in));
+        return object;
+    }
+
+    private static ObjectMetadata toMetadata(Properties properties, long length) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(USER_METADATA_PREFIX)) {
+                metadata.addUserMetadata(name.substring(USER_METADATA_PREFIX.length()), properties.getProperty(name));
+            } else if (!DATA_FILE.equals(name)) {
+                metadata.setHeader(name, properties.getProperty(name));
+            }
+        }
+        metadata.setContentLength(length);
+        return metadata;
+    }
+
+    /**
+     * Copy content to the cache while it is read. The copy replaces the previous one when the content has been read
+     * to the end with the length in the metadata, and is discarded otherwise.
+     *
+     * @param metadata metadata of the object, with its ETag and content length
+     * @param content  content of the object
+     *
+     * @return the content
+     */
+    InputStream copying(String bucket, String key, ObjectMetadata metadata, InputStream content) throws
+            IOException {
+        //read the directory before any copy is put in place, so a new data file is not taken for an orphan
+        load();
+        File temp = File.createTempFile("copy", DATA_SUFFIX + ".tmp", directory);
+        return new CopyingInputStream(content, temp, metadataFile(bucket, key), metadata);
+    }
+
+    /**
+     * Delete the least recently used copies while the copies are larger than the maximum size
+     */
+    synchronized void trim() {
+        load();
+        if (maxSize <= 0) {
+            return;
+        }
+        Iterator<Copy> iterator = copies.values().iterator();
+        while (total > maxSize && iterator.hasNext()) {
+            Copy copy = iterator.next();
+            iterator.remove();
+            total -= copy.length;
+            //the metadata first, so that it never names a missing data file
+            copy.metadata.delete();
+            copy.data.delete();
+            logger.log(Level.FINE, "Deleted cached copy {0}", copy.data);
+        }
+    }
+
+    /**
+     * Read the copies from the directory, least recently used first, if not done yet. Data files which no metadata
+     * file names are deleted.
+     */
+    private synchronized void load() {
+        if (null != copies) {
+            return;
+        }
+        List<Copy> found = new ArrayList<Copy>();
+        Set<String> named = new HashSet<String>();
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(METADATA_SUFFIX);
+            }
+        });
+        for (File file : null != files ? files : new File[0]) {
+            File data = null;
+            try {
+                Properties properties = readProperties(file);
+                data = null != properties ? dataFile(properties) : null;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read cached copy " + file + ": " + e.getMessage());
+            }
+            if (null != data && data.isFile()) {
+                found.add(new Copy(file, data, data.length()));
+                named.add(data.getName());
+            } else {
+                file.delete();
+            }
+        }
+        File[] orphans = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(DATA_SUFFIX);
+            }
+        });
+        for (File file : null != orphans ? orphans : new File[0]) {
+            if (!named.contains(file.getName())) {
+                file.delete();
+            }
+        }
+        Collections.sort(found, new Comparator<Copy>() {
+            public int compare(Copy a, Copy b) {
+                long ma = a.data.lastModified();
+                long mb = b.data.lastModified();
+                return ma < mb ? -1 : ma > mb ? 1 : 0;
+            }
+        });
+        copies = new LinkedHashMap<String, Copy>(16, 0.75f, true);
+        total = 0;
+        for (Copy copy : found) {
+            copies.put(copy.metadata.getName(), copy);
+            total += copy.length;
+        }
+    }
+
+    /**
+     * Record a copy whose metadata file was put in place, delete the data of the copy it replaced, and trim
+     */
+    private synchronized void committed(File metadataFile, File data) {
+        load();
+        Copy copy = new Copy(metadataFile, data, data.length());
+        Copy previous = copies.put(metadataFile.getName(), copy);
+        total += copy.length;
+        if (null != previous) {
+            total -= previous.length;
+            if (!previous.data.equals(data)) {
+                previous.data.delete();
+            }
+        }
+        trim();
+    }
+
+    private File metadataFile(String bucket, String key) {
+        String name = MultipartJournal.fileName(bucket, key);
+        return new File(directory, name.substring(0, name.indexOf('.')) + METADATA_SUFFIX);
+    }
+
+    private File dataFile(Properties properties) {
+        String name = properties.getProperty(DATA_FILE);
+        return null != name ? new File(directory, name) : null;
+    }
+
+    private static Properties readProperties(File file) throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(in);
+            return properties;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the content read to a temporary file, and puts it in place at the end of the content
+     */
+    private class CopyingInputStream extends FilterInputStream {
+        private final File temp;
+        private final File metadataFile;
+        private final ObjectMetadata metadata;
+        private OutputStream out;
+        private long count;
+
+        CopyingInputStream(InputStream in, File temp, File metadataFile, ObjectMetadata metadata) throws
+                IOException {
+            super(in);
+            this.temp = temp;
+            this.metadataFile = metadataFile;
+            this.metadata = metadata;
+            this.out = new BufferedOutputStream(new FileOutputStream(temp));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (null != out) {
+                if (read > 0) {
+                    try {
+                        out.write(b, off, read);
+                        count += read;
+                    } catch (IOException e) {
+                        //the copy is optional
+                        logger.log(Level.WARNING, "Failed to write cached copy: " + e.getMessage());
+                        discard();
+                    }
+                } else if (read < 0) {
+                    commit();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //skipped content would be missing from the copy
+            discard();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                discard();
+            }
+        }
+
+        private void commit() {
+            try {
+                out.close();
+                out = null;
+                if (count != metadata.getContentLength()) {
+                    temp.delete();
+                    return;
+                }
+                File data = new File(directory, temp.getName().substring(0, temp.getName().length() - 4));
+                Files.move(temp.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Properties properties = new Properties();
+                for (Map.Entry<String, Object> entry : metadata.getRawMetadata().entrySet()) {
+                    if (!Headers.CONTENT_LENGTH.equals(entry.getKey()) && !Headers.LAST_MODIFIED.equals(entry
+                            .getKey()) && null != entry.getValue()) {
+                        properties.setProperty(entry.getKey(), entry.getValue().toString());
+                    }
+                }
+                for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+                    properties.setProperty(USER_METADATA_PREFIX + entry.getKey(), entry.getValue());
+                }
+                properties.setProperty(DATA_FILE, data.getName());
+                File tempMetadata = File.createTempFile("copy", METADATA_SUFFIX + ".tmp", directory);
+                OutputStream metadataOut = new FileOutputStream(tempMetadata);
+                try {
+                    properties.store(metadataOut, null);
+                } finally {
+                    metadataOut.close();
+                }
+                try {
+                    Files.move(tempMetadata.toPath(), metadataFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    tempMetadata.delete();
+                    data.delete();
+                    throw e;
+                }
+                committed(metadataFile, data);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to store cached copy: " + e.getMessage());
+                temp.delete();
+            }
+        }
+
+        private void discard() {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.rundeck.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps between log keys and the configured path, for the operations which work on many logs at once. The key
+ * template is the normalized path before expansion, such as "project/${job.project}/${job.execid}", and each key is
+ * the expanded template followed by "." and the file type.
+ */
+class LogKeys {
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{job\\.(execid|id|project)\\}");
+
+    /**
+     * The longest literal prefix of the keys matching the template, after expanding the variables in the context
+     *
+     * @param template key template
+     * @param context  variable values by name ("execid", "id", "project"), the others are unknown
+     *
+     * @return prefix shared by every matching key
+     */
+    static String prefix(String template, Map<String, String> context) {
+        StringBuilder prefix = new StringBuilder();
+        Matcher matcher = VARIABLE.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            prefix.append(template, start, matcher.start());
+            String value = context.get(matcher.group(1));
+            if (null == value) {
+                return prefix.toString();
+            }
+            prefix.append(value);
+            start = matcher.end();
+        }
+        return prefix.append(template.substring(start)).toString();
+    }
+
+    /**
+     * A pattern matching the keys of logs with the template. It has a group for each variable, in
+     * {@link #variables(String)} order, followed by a group for the file type, which may contain "." as in
+     * "state.json".
+     *
+     * @param template key template
+     * @param context  variable values by name, the others match the shortest value without "/"
+     *
+     * @return pattern for the whole key
+     */
+    static Pattern pattern(String template, Map<String, String> context) {
+        StringBuilder regex = new StringBuilder();
+        Matcher matcher = VARIABLE.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            regex.append(Pattern.quote(template.substring(start, matcher.start())));
+            String value = context.get(matcher.group(1));
+            regex.append('(').append(null != value ? Pattern.quote(value) : "[^/]*?").append(')');
+            start = matcher.end();
+        }
+        regex.append(Pattern.quote(template.substring(start)));
+        regex.append("\\.([^/]+)");
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return the names of the variables in the template, in order
+     */
+    static List<String> variables(String template) {
+        Matcher matcher = VARIABLE.matcher(template);
+        List<String> names = new ArrayList<String>();
+        while (matcher.find()) {
+            names.add(matcher.group(1));
+        }
+        return names;
+    }
+}
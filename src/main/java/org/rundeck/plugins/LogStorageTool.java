@@ -0,0 +1,273 @@
+package org.rundeck.plugins;
+
+import com.dtolabs.rundeck.plugins.descriptions.PluginProperty;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Command line maintenance operations on the logs stored by the plugin, using the plugin configuration from a
+ * properties file such as framework.properties.
+ * <p/>
+ * Usage: LogStorageTool command --config=file [--option=value ...]
+ */
+public class LogStorageTool {
+    public static final String PROPERTY_PREFIX = "framework.plugin.ExecutionFileStorage.org.rundeck.amazon-s3.";
+    static final long DAY_MILLIS = 24 * 3600 * 1000L;
+
+    private static final String USAGE = "Usage: LogStorageTool <command> --config=<properties file> [options]\n" +
+            "\n" +
+            "  purge --older-than-days=<days> [--project=<name>] [--checkpoint=<file>] [--concurrency=<n>]\n" +
+            "        [--dry-run]\n" +
+            "      delete the logs older than the given number of days, or all logs of the project\n" +
+            "  backfill --logs-dir=<directory> [--project=<name>] [--journal=<file>] [--concurrency=<n>]\n" +
+            "        [--filetypes=rdlog,state.json] [--dry-run]\n" +
+            "      upload the logs stored in the Rundeck log directory which are not already stored\n" +
+            "  audit --executions=<file> [--project=<name>] [--concurrency=<n>] [--filetypes=rdlog]\n" +
+            "        [--no-metadata]\n" +
+            "      list the missing, orphaned and mismatched logs of the executions in the file, one\n" +
+            "      \"execid project [jobid]\" per line\n";
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out));
+    }
+
+    /**
+     * @return exit status: 0 on success, 1 if the operation failed, 2 if the arguments were not valid
+     */
+    static int run(String[] args, PrintStream out) {
+        if (args.length < 1) {
+            out.print(USAGE);
+            return 2;
+        }
+        Map<String, String> options;
+        S3LogFileStoragePlugin plugin;
+        try {
+            options = parseOptions(args);
+            plugin = createPlugin(options.get("config"));
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+            out.print(USAGE);
+            return 2;
+        } catch (IOException e) {
+            out.println(e.getMessage());
+            return 2;
+        }
+        try {
+            if ("purge".equals(args[0])) {
+                return purge(plugin, options, out);
+            } else if ("backfill".equals(args[0])) {
+                return backfill(plugin, options, out);
+            } else if ("audit".equals(args[0])) {
+                return audit(plugin, options, out);
+            }
+            out.println("Unknown command: " + args[0]);
+            out.print(USAGE);
+            return 2;
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+            return 2;
+        } catch (IOException e) {
+            out.println("Failed: " + e.getMessage());
+            return 1;
+        } catch (RuntimeException e) {
+            out.println("Failed: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * @return option values by name, "true" for options without a value
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            }
+            int eq = args[i].indexOf('=');
+            if (eq >= 0) {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            } else {
+                options.put(args[i].substring(2), "true");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Configure and initialize a plugin from a properties file, in which the property names may have the
+     * {@link #PROPERTY_PREFIX}
+     */
+    static S3LogFileStoragePlugin createPlugin(String config) throws IOException {
+        if (null == config) {
+            throw new IllegalArgumentException("--config is required");
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(config);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        Map<String, String> values = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            String property = name.startsWith(PROPERTY_PREFIX) ? name.substring(PROPERTY_PREFIX.length()) : name;
+            values.put(property, properties.getProperty(name));
+        }
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        configure(plugin, values);
+        //the operations use the path before expansion
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "0");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    /**
+     * Set the plugin properties to the values, or to their default values, as Rundeck does
+     */
+    static void configure(S3LogFileStoragePlugin plugin, Map<String, String> values) {
+        for (Field field : S3LogFileStoragePlugin.class.getDeclaredFields()) {
+            PluginProperty annotation = field.getAnnotation(PluginProperty.class);
+            if (null == annotation) {
+                continue;
+            }
+            String value = values.get(field.getName());
+            if (null == value && !"".equals(annotation.defaultValue())) {
+                value = annotation.defaultValue();
+            }
+            if (null == value) {
+                continue;
+            }
+            Class<?> type = field.getType();
+            Object converted;
+            try {
+                if (String.class.equals(type)) {
+                    converted = value;
+                } else if (int.class.equals(type) || Integer.class.equals(type)) {
+                    converted = Integer.valueOf(value.trim());
+                } else if (long.class.equals(type) || Long.class.equals(type)) {
+                    converted = Long.valueOf(value.trim());
+                } else if (boolean.class.equals(type) || Boolean.class.equals(type)) {
+                    converted = Boolean.valueOf(value.trim());
+                } else {
+                    throw new IllegalStateException("Unsupported property type: " + type);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(field.getName() + " was not a number: " + value);
+            }
+            field.setAccessible(true);
+            try {
+                field.set(plugin, converted);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static int purge(S3LogFileStoragePlugin plugin, Map<String, String> options, PrintStream out) throws
+            IOException {
+        String days = options.get("older-than-days");
+        String project = options.get("project");
+        if (null == days && null == project) {
+            throw new IllegalArgumentException("purge requires --older-than-days or --project");
+        }
+        RetentionPurge purge = new RetentionPurge(plugin.getObjectStore(), plugin.getBucket(),
+                plugin.getKeyTemplate());
+        if (null != days) {
+            purge.setOlderThan(new Date(System.currentTimeMillis() - Long.parseLong(days) * DAY_MILLIS));
+        }
+        purge.setProject(project);
+        if (null != options.get("checkpoint")) {
+            purge.setCheckpointFile(new File(options.get("checkpoint")));
+        }
+        if (null != options.get("concurrency")) {
+            purge.setConcurrency(Integer.parseInt(options.get("concurrency")));
+        }
+        purge.setDryRun(options.containsKey("dry-run"));
+
+        RetentionPurge.Result result = purge.run();
+        double seconds = result.getElapsedNanos() / 1000000000.0;
+        out.printf("%s %d of %d logs listed under %s, %d failed, in %.1f s (%.0f keys/s)%n",
+                options.containsKey("dry-run") ? "Would delete" : "Deleted",
+                options.containsKey("dry-run") ? result.getSelected() : result.getDeleted(), result.getListed(),
+                plugin.getBucket() + "/" + LogKeys.prefix(plugin.getKeyTemplate(), new HashMap<String, String>()),
+                result.getFailed(), seconds, result.getListed() / Math.max(seconds, 0.001));
+        return result.getFailed() > 0 ? 1 : 0;
+    }
+
+    private static int backfill(S3LogFileStoragePlugin plugin, Map<String, String> options, PrintStream out) throws
+            IOException {
+        if (null == options.get("logs-dir")) {
+            throw new IllegalArgumentException("backfill requires --logs-dir");
+        }
+        File logsDir = new File(options.get("logs-dir"));
+        LogBackfill backfill = new LogBackfill(plugin, logsDir);
+        backfill.setProject(options.get("project"));
+        if (null != options.get("journal")) {
+            backfill.setJournalFile(new File(options.get("journal")));
+        }
+        if (null != options.get("concurrency")) {
+            backfill.setConcurrency(Integer.parseInt(options.get("concurrency")));
+        }
+        if (null != options.get("filetypes")) {
+            backfill.setFiletypes(Arrays.asList(options.get("filetypes").split(",")));
+        }
+        backfill.setDryRun(options.containsKey("dry-run"));
+
+        LogBackfill.Result result = backfill.run();
+        double seconds = result.getElapsedNanos() / 1000000000.0;
+        double megabytes = result.getUploadedBytes() / (1024.0 * 1024.0);
+        out.printf("%s %d of %d logs found under %s (%.1f MB), %d already stored, %d in the journal, %d failed, " +
+                "in %.1f s (%.1f logs/s, %.2f MB/s)%n",
+                options.containsKey("dry-run") ? "Would upload" : "Uploaded",
+                result.getUploaded(), result.getFound(), logsDir, megabytes, result.getExisting(),
+                result.getJournaled(), result.getFailed(), seconds, result.getUploaded() / Math.max(seconds, 0.001),
+                megabytes / Math.max(seconds, 0.001));
+        return result.getFailed() > 0 ? 1 : 0;
+    }
+
+    private static int audit(S3LogFileStoragePlugin plugin, Map<String, String> options, PrintStream out) throws
+            IOException {
+        if (null == options.get("executions")) {
+            throw new IllegalArgumentException("audit requires --executions");
+        }
+        List<LogAudit.Execution> executions;
+        Reader reader = new InputStreamReader(new FileInputStream(options.get("executions")), "UTF-8");
+        try {
+            executions = LogAudit.Execution.read(reader);
+        } finally {
+            reader.close();
+        }
+        LogAudit audit = new LogAudit(plugin.getObjectStore(), plugin.getBucket(), plugin.getKeyTemplate());
+        audit.setProject(options.get("project"));
+        if (null != options.get("concurrency")) {
+            audit.setConcurrency(Integer.parseInt(options.get("concurrency")));
+        }
+        if (null != options.get("filetypes")) {
+            audit.setFiletypes(Arrays.asList(options.get("filetypes").split(",")));
+        }
+        audit.setCheckMetadata(!options.containsKey("no-metadata"));
+
+        LogAudit.Result result = audit.run(executions);
+        for (String key : result.getMissing()) {
+            out.println("missing " + key);
+        }
+        for (String key : result.getOrphaned()) {
+            out.println("orphaned " + key);
+        }
+        for (Map.Entry<String, String> entry : result.getMismatched().entrySet()) {
+            out.println("mismatched " + entry.getKey() + " rundeck.execid=" + entry.getValue());
+        }
+        double seconds = result.getElapsedNanos() / 1000000000.0;
+        out.printf("Found %d of %d expected logs, %d missing, %d orphaned, %d mismatched; listed %d keys under %s " +
+                "in %d pages in %.1f s (%.0f keys/s)%n",
+                result.getFound(), result.getExpected(), result.getMissing().size(), result.getOrphaned().size(),
+                result.getMismatched().size(), result.getListed(),
+                plugin.getBucket() + "/" + LogKeys.prefix(plugin.getKeyTemplate(), new HashMap<String, String>()),
+                result.getPages(), seconds, result.getListed() / Math.max(seconds, 0.001));
+        return result.isConsistent() ? 0 : 1;
+    }
+}
@@ -0,0 +1,232 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Records the multipart uploads in progress in a local directory, so that an upload interrupted by a restart can be
+ * resumed by the next upload of the same key. Each upload has a {@link Checkpoint} file with its upload ID and the
+ * offset and size of each part it started, and the ETag of each part which completed. The journal also records a
+ * fingerprint of the metadata the upload was initiated with, since a resumed upload completes with that metadata.
+ */
+class MultipartJournal {
+    private static final String UPLOAD_ID = "uploadId";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "key";
+    private static final String PART = "part.";
+    private static final String SUFFIX = ".upload";
+
+    private final File directory;
+
+    /**
+     * @param directory existing directory
+     */
+    MultipartJournal(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * A part of an upload
+     */
+    static class Part {
+        final int partNumber;
+        final long offset;
+        final long size;
+        /**
+         * ETag without quotes, or null if the part did not complete
+         */
+        final String etag;
+
+        Part(int partNumber, long offset, long size, String etag) {
+            this.partNumber = partNumber;
+            this.offset = offset;
+            this.size = size;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * The journal of the upload of one key
+     */
+    class Entry {
+        private final File file;
+        private Checkpoint checkpoint;
+
+        private Entry(File file) throws IOException {
+            this.file = file;
+            this.checkpoint = new Checkpoint(file);
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return upload ID of the recorded upload, or null
+         */
+        String getUploadId() {
+            return checkpoint.get(UPLOAD_ID);
+        }
+
+        /**
+         * @return fingerprint of the metadata of the recorded upload, or null
+         */
+        String getFingerprint() {
+            return checkpoint.get(FINGERPRINT);
+        }
+
+        /**
+         * @return the recorded parts, in part number order until the first part which was not started
+         */
+        List<Part> getParts() {
+            List<Part> parts = new ArrayList<Part>();
+            for (int number = 1; ; number++) {
+                String offset = checkpoint.get(PART + number + ".offset");
+                String size = checkpoint.get(PART + number + ".size");
+                if (null == offset || null == size) {
+                    return parts;
+                }
+                parts.add(new Part(number, Long.parseLong(offset), Long.parseLong(size), checkpoint.get(PART +
+                        number + ".etag")));
+            }
+        }
+
+        /**
+         * Replace the recorded upload with a new one
+         */
+        synchronized void start(String bucket, String key, String uploadId, String fingerprint) throws IOException {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            checkpoint = new Checkpoint(file);
+            checkpoint.set(BUCKET, bucket);
+            checkpoint.set(KEY, key);
+            checkpoint.set(UPLOAD_ID, uploadId);
+            checkpoint.set(FINGERPRINT, fingerprint);
+            checkpoint.save();
+        }
+
+        /**
+         * Record the content of a part before it is uploaded
+         */
+        synchronized void started(int partNumber, long offset, long size) throws IOException {
+            checkpoint.set(PART + partNumber + ".offset", Long.toString(offset));
+            checkpoint.set(PART + partNumber + ".size", Long.toString(size));
+            checkpoint.remove(PART + partNumber + ".etag");
+            checkpoint.save();
+        }
+
+        /**
+         * Record a completed part
+         */
+        synchronized void completed(int partNumber, String etag) throws IOException {
+            checkpoint.set(PART + partNumber + ".etag", unquote(etag));
+            checkpoint.save();
+        }
+
+        /**
+         * Forget the upload, after it was completed or aborted
+         */
+        synchronized void delete() {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return the journal of the upload of the key, which is empty if there is no recorded upload
+     */
+    Entry open(String bucket, String key) throws IOException {
+        return new Entry(new File(directory, fileName(bucket, key)));
+    }
+
+    /**
+     * @return the journal files of every recorded upload
+     */
+    File[] listFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        return null != files ? files : new File[0];
+    }
+
+    /**
+     * @return the upload ID of every recorded upload
+     */
+    Set<String> listUploadIds() {
+        Set<String> ids = new HashSet<String>();
+        for (File file : listFiles()) {
+            try {
+                String id = new Checkpoint(file).get(UPLOAD_ID);
+                if (null != id) {
+                    ids.add(id);
+                }
+            } catch (IOException e) {
+                //deleted or replaced while it was read
+            }
+        }
+        return ids;
+    }
+
+    static String fileName(String bucket, String key) {
+        return sha256Hex(bucket + "/" + key) + SUFFIX;
+    }
+
+    /**
+     * @return a hash of the user metadata and headers an upload is initiated with, other than the length and MD5 of
+     *         the content
+     */
+    static String fingerprint(ObjectMetadata metadata) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> header : new TreeMap<String, Object>(metadata.getRawMetadata()).entrySet()) {
+            if (!Headers.CONTENT_LENGTH.equals(header.getKey()) && !Headers.CONTENT_MD5.equals(header.getKey())) {
+                text.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+            }
+        }
+        for (Map.Entry<String, String> user : new TreeMap<String, String>(metadata.getUserMetadata()).entrySet()) {
+            text.append("x-amz-meta-").append(user.getKey()).append(':').append(user.getValue()).append('\n');
+        }
+        return sha256Hex(text.toString());
+    }
+
+    private static String sha256Hex(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String unquote(String etag) {
+        if (null != etag && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            return etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+}
@@ -0,0 +1,547 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploads content to S3 as a multipart upload, with part size and concurrency chosen per part by a {@link
+ * PartSizer}. Parts are read from a file when the content was spooled, otherwise from the stream into memory, in
+ * which case at most one buffer per concurrent part is held.
+ * <p/>
+ * With a {@link MultipartJournal}, a failed upload is not aborted. The next upload of the same key continues it with
+ * the same part sizes, and skips each part which S3 already holds with the MD5 of the new content of the part. An
+ * upload initiated with different metadata is aborted and started anew.
+ */
+class MultipartUploader {
+    static final int PART_ATTEMPTS = 3;
+
+    private static final Logger logger = Logger.getLogger(MultipartUploader.class.getName());
+
+    private final AmazonS3 amazonS3;
+    private final ExecutorService executor;
+    private final PartSizer sizer;
+
+    /**
+     * One permit per part which may be in flight at the maximum concurrency
+     */
+    private final Semaphore slots;
+    private final int maxConcurrency;
+    private Deadline deadline = Deadline.NONE;
+    private MultipartJournal journal;
+
+    MultipartUploader(AmazonS3 amazonS3, ExecutorService executor, PartSizer sizer) {
+        this.amazonS3 = amazonS3;
+        this.executor = executor;
+        this.sizer = sizer;
+        this.maxConcurrency = sizer.getMaxConcurrency();
+        this.slots = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * @param deadline deadline of the upload, after which the parts in flight fail and the upload is aborted
+     */
+    void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param journal journal to record uploads in and resume them from, or null to abort failed uploads
+     */
+    void setJournal(MultipartJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Upload a file
+     *
+     * @return ETag of the completed object
+     */
+    String upload(String bucket, String key, ObjectMetadata metadata, File file) throws IOException {
+        return upload(bucket, key, metadata, file, null, file.length());
+    }
+
+    /**
+     * Upload a stream
+     *
+     * @param length expected length, used to size parts
+     *
+     * @return ETag of the completed object
+     */
+    String upload(String bucket, String key, ObjectMetadata metadata, InputStream stream, long length)
+            throws IOException {
+        return upload(bucket, key, metadata, null, stream, length);
+    }
+
+    private String upload(String bucket, String key, ObjectMetadata metadata, File file, InputStream stream,
+            long length) throws IOException {
+        if (null != stream && !stream.markSupported()) {
+            stream = new BufferedInputStream(stream);
+        }
+        MultipartJournal.Entry entry = null != journal ? journal.open(bucket, key) : null;
+        List<MultipartJournal.Part> plan = Collections.emptyList();
+        String uploadId = null;
+        String fingerprint = null != entry ? MultipartJournal.fingerprint(metadata) : null;
+        if (null != entry && null != entry.getUploadId() && !fingerprint.equals(entry.getFingerprint())) {
+            //the upload would complete with the metadata of the earlier attempt
+            logger.log(Level.FINE, "Metadata changed, aborting multipart upload {0} for {1}:{2}", new Object[]{entry
+                    .getUploadId(), bucket, key});
+            abort(bucket, key, entry.getUploadId());
+            entry.delete();
+        } else if (null != entry && null != entry.getUploadId()) {
+            Map<Integer, PartSummary> uploaded = listParts(bucket, key, entry.getUploadId());
+            if (null != uploaded) {
+                uploadId = entry.getUploadId();
+                plan = resumablePlan(entry.getParts(), uploaded);
+                logger.log(Level.FINE, "Resuming multipart upload {0} for {1}:{2}", new Object[]{uploadId, bucket,
+                        key});
+            }
+        }
+        if (null == uploadId) {
+            InitiateMultipartUploadResult initiated = amazonS3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, key, metadata)
+            );
+            uploadId = initiated.getUploadId();
+            if (null != entry) {
+                entry.start(bucket, key, uploadId, fingerprint);
+            }
+            logger.log(Level.FINE, "Started multipart upload {0} for {1}:{2}", new Object[]{uploadId, bucket, key});
+        }
+        List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+        boolean complete = false;
+        try {
+            long offset = 0;
+            int partNumber = 0;
+            boolean more = true;
+            while (more) {
+                MultipartJournal.Part planned = partNumber < plan.size() ? plan.get(partNumber) : null;
+                if (null != planned && (planned.offset != offset || (null == planned.etag && planned.size < sizer
+                        .getMinPartSize()))) {
+                    //the rest of the content is split anew
+                    plan = Collections.emptyList();
+                    planned = null;
+                }
+                PartSizer.Decision decision = sizer.decide(length - offset, partNumber);
+                if (partNumber >= PartSizer.MAX_PARTS) {
+                    throw new IOException("Content exceeds the maximum of " + PartSizer.MAX_PARTS + " parts");
+                }
+                partNumber++;
+                long partSize = null != planned ? planned.size : decision.partSize;
+                logger.log(Level.FINE, "Part {0} of {1}: {2}", new Object[]{partNumber, key, null != planned ?
+                        "resumed size " + partSize : decision});
+                boolean reusable = null != planned && null != planned.etag;
+                if (!reusable) {
+                    awaitSlot(bucket, key, decision, futures);
+                }
+                long partOffset = offset;
+                PartTask task;
+                if (null != file) {
+                    long size = Math.min(partSize, length - offset);
+                    offset += size;
+                    more = offset < length;
+                    if (reusable && size == planned.size && reusableSize(planned, more) && planned.etag.equals(
+                            md5Hex(file, partOffset, size))) {
+                        futures.add(completed(partNumber, planned.etag));
+                        continue;
+                    }
+                    task = new PartTask(bucket, key, uploadId, partNumber, file, partOffset, size, null, entry);
+                } else {
+                    //the reported length may be wrong, so read at least a minimum size part
+                    long size = null != planned ? partSize : Math.min(partSize, Math.max(length - offset,
+                            sizer.getMinPartSize()));
+                    byte[] buffer = new byte[(int) Math.min(size, Integer.MAX_VALUE - 8)];
+                    int read = readFully(stream, buffer);
+                    offset += read;
+                    more = read == buffer.length && hasMore(stream);
+                    if (reusable && read == planned.size && reusableSize(planned, more) && planned.etag.equals(
+                            md5Hex(buffer, read))) {
+                        futures.add(completed(partNumber, planned.etag));
+                        continue;
+                    }
+                    task = new PartTask(bucket, key, uploadId, partNumber, null, partOffset, read, buffer, entry);
+                }
+                if (reusable) {
+                    //the content changed, so the parts after this one are split anew
+                    plan = Collections.emptyList();
+                    awaitSlot(bucket, key, decision, futures);
+                }
+                if (null != entry) {
+                    entry.started(partNumber, partOffset, task.size);
+                }
+                futures.add(executor.submit(task));
+            }
+            List<PartETag> etags = new ArrayList<PartETag>();
+            for (Future<PartETag> future : futures) {
+                etags.add(getResult(future));
+            }
+            Collections.sort(etags, new Comparator<PartETag>() {
+                public int compare(PartETag a, PartETag b) {
+                    return a.getPartNumber() - b.getPartNumber();
+                }
+            });
+            CompleteMultipartUploadResult result = amazonS3.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, key, uploadId, etags)
+            );
+            complete = true;
+            if (null != entry) {
+                entry.delete();
+            }
+            return null != result ? result.getETag() : null;
+        } finally {
+            if (!complete) {
+                for (Future<PartETag> future : futures) {
+                    future.cancel(true);
+                }
+                if (null != entry) {
+                    logger.log(Level.FINE, "Kept multipart upload {0} for {1}:{2} to resume", new Object[]{uploadId,
+                            bucket, key});
+                } else {
+                    //abort even if the upload was interrupted at its deadline
+                    boolean interrupted = Thread.interrupted();
+                    abort(bucket, key, uploadId);
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the parts of the upload by part number, or null if the upload cannot be resumed
+     */
+    private Map<Integer, PartSummary> listParts(String bucket, String key, String uploadId) {
+        Map<Integer, PartSummary> parts = new HashMap<Integer, PartSummary>();
+        ListPartsRequest request = new ListPartsRequest(bucket, key, uploadId);
+        try {
+            PartListing listing;
+            do {
+                listing = amazonS3.listParts(request);
+                for (PartSummary part : listing.getParts()) {
+                    parts.put(part.getPartNumber(), part);
+                }
+                request.setPartNumberMarker(listing.getNextPartNumberMarker());
+            } while (listing.isTruncated());
+        } catch (AmazonServiceException e) {
+            logger.log(Level.WARNING, "Cannot resume multipart upload " + uploadId + " for " + key + ": " + e
+                    .getMessage());
+            return null;
+        }
+        return parts;
+    }
+
+    /**
+     * @return the recorded parts, with the ETag of each part which S3 holds with the same size and ETag
+     */
+    private static List<MultipartJournal.Part> resumablePlan(List<MultipartJournal.Part> parts, Map<Integer,
+            PartSummary> uploaded) {
+        List<MultipartJournal.Part> plan = new ArrayList<MultipartJournal.Part>();
+        for (MultipartJournal.Part part : parts) {
+            PartSummary summary = uploaded.get(part.partNumber);
+            boolean held = null != part.etag && null != summary && summary.getSize() == part.size
+                    && part.etag.equals(MultipartJournal.unquote(summary.getETag()));
+            plan.add(new MultipartJournal.Part(part.partNumber, part.offset, part.size, held ? part.etag : null));
+        }
+        return plan;
+    }
+
+    /**
+     * @return false if the part is too small to be followed by more parts
+     */
+    private boolean reusableSize(MultipartJournal.Part part, boolean more) {
+        return !more || part.size >= sizer.getMinPartSize();
+    }
+
+    private static Future<PartETag> completed(int partNumber, String etag) {
+        FutureTask<PartETag> task = new FutureTask<PartETag>(new Runnable() {
+            public void run() {
+            }
+        }, new PartETag(partNumber, etag));
+        task.run();
+        return task;
+    }
+
+    private static String md5Hex(byte[] buffer, int length) {
+        MessageDigest md5 = createMD5();
+        md5.update(buffer, 0, length);
+        return BinaryUtils.toHex(md5.digest());
+    }
+
+    private static String md5Hex(File file, long offset, long size) throws IOException {
+        MessageDigest md5 = createMD5();
+        InputStream in = new FileSegmentInputStream(file, offset, size);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                md5.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return BinaryUtils.toHex(md5.digest());
+    }
+
+    private static MessageDigest createMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void abort(String bucket, String key, String uploadId) {
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+            logger.log(Level.WARNING, "Failed to abort multipart upload " + uploadId + " for " + key + ": " + e
+                    .getMessage(), e);
+        }
+    }
+
+    private void awaitSlot(String bucket, String key, PartSizer.Decision decision, List<Future<PartETag>> futures)
+            throws IOException {
+        FlightEvents.Event wait = FlightEvents.beginWait("multipartSlot", bucket, key);
+        if (awaitSlot(decision.concurrency, futures)) {
+            wait.commit(decision.partSize, "OK");
+        }
+    }
+
+    /**
+     * Wait until fewer than the given number of parts are in flight, failing early if a part failed, and take a
+     * slot for the next part
+     *
+     * @return true if it had to wait
+     */
+    private boolean awaitSlot(int concurrency, List<Future<PartETag>> futures) throws IOException {
+        //fewer than concurrency parts are in flight when more than maxConcurrency - concurrency slots are free
+        int needed = maxConcurrency - Math.min(concurrency, maxConcurrency) + 1;
+        boolean waited = false;
+        try {
+            while (!slots.tryAcquire(needed, 1, TimeUnit.SECONDS)) {
+                waited = true;
+                for (Future<PartETag> future : futures) {
+                    if (future.isDone()) {
+                        getResult(future);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deadline.check();
+            throw new IOException("Interrupted during multipart upload");
+        }
+        slots.release(needed - 1);
+        return waited;
+    }
+
+    private PartETag getResult(Future<PartETag> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deadline.check();
+            throw new IOException("Interrupted during multipart upload");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AmazonClientException) {
+                throw (AmazonClientException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Part upload failed: " + cause);
+        }
+    }
+
+    private static int readFully(InputStream stream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = stream.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static boolean hasMore(InputStream stream) throws IOException {
+        if (!stream.markSupported()) {
+            throw new IOException("stream must support mark");
+        }
+        stream.mark(1);
+        int next = stream.read();
+        stream.reset();
+        return next >= 0;
+    }
+
+    /**
+     * Uploads one part, retrying failed attempts
+     */
+    private class PartTask implements Callable<PartETag> {
+        private final String bucket;
+        private final String key;
+        private final String uploadId;
+        private final int partNumber;
+        private final File file;
+        private final long offset;
+        private final long size;
+        private final byte[] buffer;
+        private final MultipartJournal.Entry entry;
+
+        PartTask(String bucket, String key, String uploadId, int partNumber, File file, long offset, long size,
+                byte[] buffer, MultipartJournal.Entry entry) {
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.file = file;
+            this.offset = offset;
+            this.size = size;
+            this.buffer = buffer;
+            this.entry = entry;
+        }
+
+        public PartETag call() throws Exception {
+            try {
+                TransferExecutors.acquireTransfer(bucket, key);
+            } catch (IOException e) {
+                slots.release();
+                throw e;
+            }
+            try {
+                AmazonClientException failure = null;
+                for (int attempt = 1; attempt <= PART_ATTEMPTS; attempt++) {
+                    long start = System.nanoTime();
+                    InputStream stream = openStream();
+                    try {
+                        UploadPartRequest request = createRequest(stream);
+                        UploadPartResult result = amazonS3.uploadPart(request);
+                        sizer.recordSuccess(size, System.nanoTime() - start);
+                        if (!(stream instanceof ThrottledInputStream)) {
+                            S3LogMetrics.getInstance().addUpload(size, 0);
+                        }
+                        if (null != entry) {
+                            entry.completed(partNumber, result.getETag());
+                        }
+                        return result.getPartETag();
+                    } catch (AmazonClientException e) {
+                        sizer.recordFailure();
+                        failure = e;
+                        logger.log(Level.FINE, "Part {0} of {1} failed (attempt {2}): {3}", new Object[]{partNumber,
+                                key, attempt, e.getMessage()});
+                        if (Thread.currentThread().isInterrupted() || deadline.isExpired()) {
+                            break;
+                        }
+                    } finally {
+                        if (null != stream) {
+                            stream.close();
+                        }
+                    }
+                }
+                throw failure;
+            } finally {
+                TransferExecutors.releaseTransfer();
+                slots.release();
+            }
+        }
+
+        /**
+         * @return stream for the part content, or null if the SDK should read the file itself
+         */
+        private InputStream openStream() throws IOException {
+            BandwidthThrottle throttle = BandwidthThrottle.getUpload();
+            if (null != buffer) {
+                return deadline.wrap(new ThrottledInputStream(new ByteArrayInputStream(buffer, 0, (int) size),
+                        throttle, true));
+            } else if (throttle.isLimited() || deadline != Deadline.NONE) {
+                return deadline.wrap(new ThrottledInputStream(new FileSegmentInputStream(file, offset, size),
+                        throttle, true));
+            }
+            return null;
+        }
+
+        private UploadPartRequest createRequest(InputStream stream) {
+            UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withPartSize(size);
+            if (null != stream) {
+                request.withInputStream(stream);
+            } else {
+                request.withFile(file).withFileOffset(offset);
+            }
+            return request;
+        }
+    }
+
+    /**
+     * Reads a range of a file
+     */
+    private static class FileSegmentInputStream extends FilterInputStream {
+        private long remaining;
+
+        FileSegmentInputStream(File file, long offset, long length) throws IOException {
+            super(new FileInputStream(file));
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) {
+                    close();
+                    throw new IOException("Unable to seek to offset " + offset + " of " + file);
+                }
+                skipped += n;
+            }
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The object storage operations used for logs, so that the same code path can store logs in S3 or elsewhere.
+ * Objects are addressed by bucket and key, and described with the S3 client's model types. Backends may fail with
+ * {@link IOException} or {@link com.amazonaws.AmazonClientException}. Every backend reports a missing object the same
+ * way: {@link #head} returns null, and {@link #get} and {@link #getRange} throw {@link FileNotFoundException}.
+ */
+interface ObjectStore {
+    /**
+     * @return the object's metadata, with the content length and ETag, or null if the object does not exist
+     */
+    ObjectMetadata head(String bucket, String key) throws IOException;
+
+    /**
+     * @return the object's metadata and content, which the caller must close
+     *
+     * @throws FileNotFoundException if the object does not exist
+     */
+    S3Object get(String bucket, String key) throws IOException;
+
+    /**
+     * @param start        offset of the first byte
+     * @param endInclusive offset of the last byte, which may be past the end of the object
+     *
+     * @return the content of the range, which the caller must close
+     *
+     * @throws FileNotFoundException if the object does not exist
+     */
+    InputStream getRange(String bucket, String key, long start, long endInclusive) throws IOException;
+
+    /**
+     * Store an object, replacing any existing object at the key. Readers see either the old or the new object.
+     *
+     * @param content  content
+     * @param metadata metadata, with the content length if known
+     *
+     * @return ETag of the stored object, or null if unknown
+     */
+    String put(String bucket, String key, InputStream content, ObjectMetadata metadata) throws IOException;
+
+    /**
+     * @return keys of the objects whose keys start with the prefix
+     */
+    List<String> list(String bucket, String prefix) throws IOException;
+
+    /**
+     * List one page of the objects whose keys start with the prefix, in key order
+     *
+     * @param delimiter if not null, keys containing the delimiter after the prefix are grouped into common prefixes
+     * @param marker    list the keys after this key, or null to start at the first key
+     * @param maxKeys   maximum number of objects and common prefixes
+     *
+     * @return the objects with their key, size and last modified date, and the common prefixes. If the listing is
+     * truncated, the next page starts after the last key or common prefix
+     */
+    ObjectListing listPage(String bucket, String prefix, String delimiter, String marker, int maxKeys) throws
+            IOException;
+
+    /**
+     * Delete an object, if it exists
+     */
+    void delete(String bucket, String key) throws IOException;
+
+    /**
+     * Delete several objects, skipping those which do not exist
+     *
+     * @param keys at most 1000 keys
+     *
+     * @return the keys which could not be deleted
+     */
+    List<String> deleteAll(String bucket, List<String> keys) throws IOException;
+}
@@ -0,0 +1,198 @@
+package org.rundeck.plugins;
+
+/**
+ * Chooses multipart upload part sizes and concurrency from the throughput and error rate observed for recent part
+ * uploads. Measurements are shared by all uploads in the JVM, configuration is per upload.
+ * <p/>
+ * Part size aims for parts which take {@link #getTargetPartSeconds()} to upload at the observed per-part
+ * throughput, so fast links use fewer, larger requests. A rising error rate shrinks parts, so a failed part costs
+ * less to retry, and lowers concurrency. Sizes always respect the S3 limits of {@link #MAX_PARTS} parts and a
+ * minimum of {@link #MIN_PART_SIZE} bytes for all but the last part.
+ */
+class PartSizer {
+    static final long MB = 1024 * 1024;
+    static final long MIN_PART_SIZE = 5 * MB;
+    static final long MAX_PART_SIZE = 5L * 1024 * MB;
+    static final int MAX_PARTS = 10000;
+    static final long DEFAULT_INITIAL_PART_SIZE = 8 * MB;
+    static final long DEFAULT_MAX_PART_SIZE = 64 * MB;
+    static final int DEFAULT_MAX_CONCURRENCY = 4;
+    static final int DEFAULT_TARGET_PART_SECONDS = 10;
+    /**
+     * Weight of a new sample in the moving averages
+     */
+    static final double ALPHA = 0.2;
+
+    private static final Stats shared = new Stats();
+
+    /**
+     * Moving averages of per-part throughput and error rate
+     */
+    static class Stats {
+        private double throughput = -1;
+        private double errorRate;
+        private Decision lastDecision;
+
+        synchronized void recordSuccess(long bytes, long nanos) {
+            if (nanos <= 0) {
+                return;
+            }
+            double sample = bytes * 1000000000.0 / nanos;
+            throughput = throughput < 0 ? sample : ALPHA * sample + (1 - ALPHA) * throughput;
+            errorRate = (1 - ALPHA) * errorRate;
+        }
+
+        synchronized void recordFailure() {
+            errorRate = ALPHA + (1 - ALPHA) * errorRate;
+        }
+
+        /**
+         * @return per-part throughput in bytes per second, or -1 if nothing was measured yet
+         */
+        synchronized double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * @return fraction of recent part attempts which failed
+         */
+        synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized Decision getLastDecision() {
+            return lastDecision;
+        }
+
+        synchronized void setLastDecision(Decision lastDecision) {
+            this.lastDecision = lastDecision;
+        }
+
+        synchronized void reset() {
+            throughput = -1;
+            errorRate = 0;
+            lastDecision = null;
+        }
+    }
+
+    /**
+     * A part size and concurrency decision, and the measurements it was based on
+     */
+    static class Decision {
+        final long partSize;
+        final int concurrency;
+        final double throughput;
+        final double errorRate;
+
+        Decision(long partSize, int concurrency, double throughput, double errorRate) {
+            this.partSize = partSize;
+            this.concurrency = concurrency;
+            this.throughput = throughput;
+            this.errorRate = errorRate;
+        }
+
+        @Override
+        public String toString() {
+            return "partSize=" + partSize + ", concurrency=" + concurrency + ", throughput=" + (long) throughput +
+                    "B/s, errorRate=" + Math.round(errorRate * 1000) / 1000.0;
+        }
+    }
+
+    private final Stats stats;
+    private long minPartSize = MIN_PART_SIZE;
+    private long maxPartSize = DEFAULT_MAX_PART_SIZE;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int targetPartSeconds = DEFAULT_TARGET_PART_SECONDS;
+
+    PartSizer() {
+        this(shared);
+    }
+
+    PartSizer(Stats stats) {
+        this.stats = stats;
+    }
+
+    static Stats getSharedStats() {
+        return shared;
+    }
+
+    /**
+     * Decide the size of the next part and how many parts may be in flight
+     *
+     * @param remaining bytes remaining to upload
+     * @param partsUsed number of parts already started
+     *
+     * @return decision
+     */
+    Decision decide(long remaining, int partsUsed) {
+        double throughput = stats.getThroughput();
+        double errorRate = stats.getErrorRate();
+
+        long size = throughput > 0 ? (long) (throughput * targetPartSeconds) : DEFAULT_INITIAL_PART_SIZE;
+        //parts which are likely to fail should be cheap to retry
+        size = (long) (size * (1 - Math.min(errorRate, 0.75)));
+        size = Math.max(minPartSize, Math.min(maxPartSize, size));
+        if (size > MB) {
+            size = ((size + MB - 1) / MB) * MB;
+        }
+
+        //never run out of parts
+        int partsLeft = Math.max(1, MAX_PARTS - partsUsed);
+        long needed = (Math.max(0, remaining) + partsLeft - 1) / partsLeft;
+        size = Math.min(MAX_PART_SIZE, Math.max(size, needed));
+
+        int concurrency = maxConcurrency;
+        if (errorRate > 0.05) {
+            concurrency = (int) Math.round(maxConcurrency * (1 - Math.min(1, errorRate * 2)));
+        }
+        long partsRemaining = (Math.max(0, remaining) + size - 1) / size;
+        concurrency = (int) Math.max(1, Math.min(concurrency, partsRemaining));
+
+        Decision decision = new Decision(size, concurrency, throughput, errorRate);
+        stats.setLastDecision(decision);
+        return decision;
+    }
+
+    void recordSuccess(long bytes, long nanos) {
+        stats.recordSuccess(bytes, nanos);
+    }
+
+    void recordFailure() {
+        stats.recordFailure();
+    }
+
+    long getMinPartSize() {
+        return minPartSize;
+    }
+
+    /**
+     * Lower the minimum part size, only for testing, S3 rejects smaller parts
+     */
+    void setMinPartSize(long minPartSize) {
+        this.minPartSize = minPartSize;
+    }
+
+    long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    void setMaxPartSize(long maxPartSize) {
+        this.maxPartSize = Math.max(minPartSize, Math.min(MAX_PART_SIZE, maxPartSize));
+    }
+
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    int getTargetPartSeconds() {
+        return targetPartSeconds;
+    }
+
+    void setTargetPartSeconds(int targetPartSeconds) {
+        this.targetPartSeconds = Math.max(1, targetPartSeconds);
+    }
+}
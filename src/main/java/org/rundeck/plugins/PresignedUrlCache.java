@@ -0,0 +1,82 @@
+package org.rundeck.plugins;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches pre-signed URLs for the whole JVM, so that repeated downloads of the same log share one URL until shortly
+ * before it expires. The least recently used URLs are dropped when the cache is full.
+ */
+class PresignedUrlCache {
+    static final int MAX_ENTRIES = 1000;
+    /**
+     * Fraction of its lifetime a URL must still have left to be reused
+     */
+    static final double MIN_REMAINING = 0.1;
+
+    private static final PresignedUrlCache shared = new PresignedUrlCache();
+
+    private static class CachedUrl {
+        final URL url;
+        final long created;
+        final long expires;
+
+        CachedUrl(URL url, long created, long expires) {
+            this.url = url;
+            this.created = created;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<String, CachedUrl> entries = new LinkedHashMap<String, CachedUrl>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedUrl> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    static PresignedUrlCache getShared() {
+        return shared;
+    }
+
+    /**
+     * @param key cache key
+     * @param now current time in milliseconds
+     *
+     * @return the cached URL, or null if there is none with enough of its lifetime left
+     */
+    synchronized URL get(String key, long now) {
+        CachedUrl entry = entries.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.expires - now < (entry.expires - entry.created) * MIN_REMAINING) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.url;
+    }
+
+    /**
+     * @param key     cache key
+     * @param url     pre-signed URL
+     * @param created time the URL was signed, in milliseconds
+     * @param expires time the URL expires, in milliseconds
+     */
+    synchronized void put(String key, URL url, long created, long expires) {
+        entries.put(key, new CachedUrl(url, created, expires));
+    }
+
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,120 @@
+package org.rundeck.plugins;
+
+import java.util.*;
+
+/**
+ * Orders read replicas by their recently observed health and latency. Each replica's latency and error rate are
+ * tracked as exponentially weighted moving averages for the whole JVM, so that reads prefer the fastest healthy
+ * replica. A replica whose error rate is too high is tried only after the healthy ones, until it has not failed for
+ * a while.
+ */
+class ReplicaSelector {
+    /**
+     * Weight of the latest observation in the moving averages
+     */
+    static final double ALPHA = 0.2;
+    /**
+     * Error rate above which a replica is unhealthy
+     */
+    static final double MAX_ERROR_RATE = 0.5;
+    /**
+     * Time after its last failure when an unhealthy replica is tried again in order of latency
+     */
+    static final long RETRY_MILLIS = 30000;
+
+    private static final ReplicaSelector shared = new ReplicaSelector();
+
+    static class Stats {
+        double latencyNanos = -1;
+        double errorRate;
+        long lastFailure;
+    }
+
+    private final Map<String, Stats> stats = new HashMap<String, Stats>();
+
+    static ReplicaSelector getShared() {
+        return shared;
+    }
+
+    /**
+     * Record the outcome of a read
+     *
+     * @param name    replica name
+     * @param nanos   time to the first byte of a successful read, or time taken by a failed read
+     * @param success true if the read succeeded
+     */
+    synchronized void record(String name, long nanos, boolean success) {
+        Stats stat = getStats(name);
+        stat.errorRate = stat.errorRate * (1 - ALPHA) + (success ? 0 : ALPHA);
+        if (success) {
+            stat.latencyNanos = stat.latencyNanos < 0 ? nanos : stat.latencyNanos * (1 - ALPHA) + nanos * ALPHA;
+        } else {
+            stat.lastFailure = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Order replicas for a read: replicas without observations first, then healthy replicas by latency and error
+     * rate, then replicas which have only failed, then unhealthy replicas. Otherwise equal replicas keep the configured order.
+     *
+     * @param names replica names in configured order
+     *
+     * @return indexes of the names in the order they should be tried
+     */
+    synchronized List<Integer> order(List<String> names) {
+        final long now = System.currentTimeMillis();
+        final List<Stats> current = new ArrayList<Stats>();
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            Stats stat = getStats(names.get(i));
+            Stats copy = new Stats();
+            copy.latencyNanos = stat.latencyNanos;
+            copy.errorRate = stat.errorRate;
+            copy.lastFailure = stat.lastFailure;
+            current.add(copy);
+            order.add(i);
+        }
+        //stable sort keeps the configured order for ties
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                Stats sa = current.get(a);
+                Stats sb = current.get(b);
+                boolean healthyA = isHealthy(sa, now);
+                boolean healthyB = isHealthy(sb, now);
+                if (healthyA != healthyB) {
+                    return healthyA ? -1 : 1;
+                }
+                return Double.compare(score(sa), score(sb));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Expected time of a successful read, as the latency weighted by the chance of having to try another replica
+     */
+    private static double score(Stats stat) {
+        if (stat.latencyNanos < 0) {
+            //not measured yet, unless it has only failed
+            return stat.errorRate > 0 ? Double.MAX_VALUE : -1;
+        }
+        return stat.latencyNanos / Math.max(0.01, 1 - stat.errorRate);
+    }
+
+    synchronized Stats getStats(String name) {
+        Stats stat = stats.get(name);
+        if (null == stat) {
+            stat = new Stats();
+            stats.put(name, stat);
+        }
+        return stat;
+    }
+
+    synchronized void reset() {
+        stats.clear();
+    }
+
+    private static boolean isHealthy(Stats stat, long now) {
+        return stat.errorRate <= MAX_ERROR_RATE || now - stat.lastFailure >= RETRY_MILLIS;
+    }
+}
@@ -0,0 +1,111 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the uploads of the same content to several targets in parallel, and returns once a quorum of them has
+ * succeeded. The remaining uploads continue in the background.
+ */
+class ReplicatedUpload {
+    private static final Logger logger = Logger.getLogger(ReplicatedUpload.class.getName());
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<Callable<?>> uploads = new ArrayList<Callable<?>>();
+    private final Object lock = new Object();
+    private int succeeded;
+    private int failed;
+    private Exception failure;
+
+    /**
+     * @param name   target name, for logging
+     * @param upload upload to the target
+     */
+    void add(String name, Callable<?> upload) {
+        names.add(name);
+        uploads.add(upload);
+    }
+
+    int size() {
+        return uploads.size();
+    }
+
+    /**
+     * Start the uploads, and wait for a quorum of them to succeed
+     *
+     * @param quorum     number of uploads which must succeed
+     * @param executor   executor for the uploads
+     * @param onComplete run when every upload has finished, whether or not this method has returned
+     *
+     * @throws IOException           if the quorum cannot be reached, with the first upload failure
+     * @throws AmazonClientException if the quorum cannot be reached, with the first upload failure
+     */
+    void run(int quorum, ExecutorService executor, final Runnable onComplete) throws IOException {
+        if (quorum < 1 || quorum > uploads.size()) {
+            throw new IllegalArgumentException("quorum must be between 1 and " + uploads.size());
+        }
+        final AtomicInteger remaining = new AtomicInteger(uploads.size());
+        for (int i = 0; i < uploads.size(); i++) {
+            final String name = names.get(i);
+            final Callable<?> upload = uploads.get(i);
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        upload.call();
+                        finished(name, null);
+                    } catch (Exception e) {
+                        finished(name, e);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0 && null != onComplete) {
+                            onComplete.run();
+                        }
+                    }
+                }
+            });
+        }
+        synchronized (lock) {
+            while (succeeded < quorum && failed <= uploads.size() - quorum) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for replicated uploads");
+                }
+            }
+            if (succeeded >= quorum) {
+                logger.log(Level.FINE, "Replicated upload reached quorum {0} of {1}", new Object[]{quorum,
+                        uploads.size()});
+                return;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof AmazonClientException) {
+                throw (AmazonClientException) failure;
+            }
+            throw new IOException("Replicated upload failed: " + failure, failure);
+        }
+    }
+
+    private void finished(String name, Exception e) {
+        synchronized (lock) {
+            if (null == e) {
+                succeeded++;
+            } else {
+                failed++;
+                if (null == failure) {
+                    failure = e;
+                }
+                logger.log(Level.WARNING, "Upload to " + name + " failed: " + e.getMessage(), e);
+            }
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the content of an object, and when the connection fails or the content ends early, continues with a ranged
+ * request from the first byte which was not read yet, so that a dropped connection costs a new request instead of
+ * downloading the object again. The opener pins the requests to the ETag of the object, so that the content of an
+ * object which was replaced while it was read is never mixed.
+ */
+class ResumingInputStream extends InputStream {
+    private static final Logger logger = Logger.getLogger(ResumingInputStream.class.getName());
+
+    /**
+     * Requests the rest of the object
+     */
+    interface Opener {
+        /**
+         * @param offset offset of the first byte to read
+         *
+         * @return content from the offset to the end of the object, or null if the object has changed
+         */
+        InputStream open(long offset) throws IOException;
+    }
+
+    private final String name;
+    private final long length;
+    private final int maxAttempts;
+    private final Opener opener;
+    private InputStream in;
+    private long offset;
+    private int failures;
+    private int resumes;
+
+    /**
+     * @param name        name of the object, for messages
+     * @param in          content of the object
+     * @param length      length of the object
+     * @param maxAttempts number of times to resume without reading any content in between
+     * @param opener      opener for the rest of the object
+     */
+    ResumingInputStream(String name, InputStream in, long length, int maxAttempts, Opener opener) {
+        this.name = name;
+        this.in = in;
+        this.length = length;
+        this.maxAttempts = maxAttempts;
+        this.opener = opener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            int read;
+            try {
+                read = in.read(b, off, len);
+            } catch (Deadline.Exceeded e) {
+                throw e;
+            } catch (IOException e) {
+                resume(e);
+                continue;
+            }
+            if (read < 0 && offset < length) {
+                resume(new EOFException("Content of " + name + " ended at byte " + offset + " of " + length));
+                continue;
+            }
+            if (read > 0) {
+                offset += read;
+                failures = 0;
+            }
+            return read;
+        }
+    }
+
+    private void resume(IOException cause) throws IOException {
+        if (++failures > maxAttempts) {
+            throw cause;
+        }
+        abortQuietly(in);
+        logger.log(Level.WARNING, "Resuming {0} at byte {1} of {2} after: {3}", new Object[]{name, offset, length,
+                cause.getMessage()});
+        InputStream rest = opener.open(offset);
+        if (null == rest) {
+            IOException changed = new IOException("Object was replaced while it was read: " + name);
+            changed.initCause(cause);
+            throw changed;
+        }
+        in = rest;
+        resumes++;
+    }
+
+    private static void abortQuietly(InputStream stream) {
+        try {
+            if (stream instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) stream).abort();
+            } else {
+                stream.close();
+            }
+        } catch (IOException ignored) {
+        } catch (RuntimeException ignored) {
+        }
+    }
+
+    /**
+     * @return number of bytes read
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return number of times the content was requested again
+     */
+    int getResumes() {
+        return resumes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,315 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes the logs stored with a key template which are older than a date, or belong to a project.
+ * <p/>
+ * The keys under the template's literal prefix are split into {@link KeyRange}s which are listed in parallel. Each
+ * range is listed a page of {@link #PAGE_SIZE} keys at a time, and the selected keys of a page are deleted with one
+ * multi-object delete while the next page is listed. When the delete of a page has finished, the position in the
+ * range is saved to the checkpoint file, so an interrupted purge resumes after the last deleted page, with the same
+ * selection.
+ */
+class RetentionPurge {
+    static final int PAGE_SIZE = 1000;
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final String CHECKPOINT_SELECTION = "selection";
+    static final String CHECKPOINT_OLDER_THAN = "olderThan";
+    private static final String CHECKPOINT_AFTER = "after.";
+    private static final String CHECKPOINT_DONE = "done.";
+
+    private static final Logger logger = Logger.getLogger(RetentionPurge.class.getName());
+
+    private final ObjectStore store;
+    private final String bucket;
+    private final String template;
+    private Date olderThan;
+    private String project;
+    private File checkpointFile;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private boolean dryRun;
+
+    /**
+     * Counts of a purge
+     */
+    static class Result {
+        final AtomicLong listed = new AtomicLong();
+        final AtomicLong selected = new AtomicLong();
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        long elapsedNanos;
+
+        long getListed() {
+            return listed.get();
+        }
+
+        long getSelected() {
+            return selected.get();
+        }
+
+        long getDeleted() {
+            return deleted.get();
+        }
+
+        long getFailed() {
+            return failed.get();
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    /**
+     * @param store    store
+     * @param bucket   bucket
+     * @param template key template, see {@link LogKeys}
+     */
+    RetentionPurge(ObjectStore store, String bucket, String template) {
+        this.store = store;
+        this.bucket = bucket;
+        this.template = template;
+    }
+
+    /**
+     * @param olderThan delete logs last modified before this date, or null for any date
+     */
+    void setOlderThan(Date olderThan) {
+        this.olderThan = olderThan;
+    }
+
+    Date getOlderThan() {
+        return olderThan;
+    }
+
+    /**
+     * @param project delete only the logs of this project, or null for every project
+     */
+    void setProject(String project) {
+        this.project = project;
+    }
+
+    /**
+     * @param checkpointFile file to save progress to and resume from, or null
+     */
+    void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @param concurrency number of key ranges listed in parallel
+     */
+    void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param dryRun if true, count the selected logs without deleting them or saving progress
+     */
+    void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    Result run() throws IOException {
+        Map<String, String> context = new HashMap<String, String>();
+        if (null != project) {
+            context.put("project", project);
+        }
+        final Pattern pattern = LogKeys.pattern(template, context);
+        String prefix = LogKeys.prefix(template, context);
+        final Checkpoint checkpoint = null != checkpointFile ? new Checkpoint(checkpointFile) : null;
+        if (null != checkpoint) {
+            resume(checkpoint);
+        }
+
+        final Result result = new Result();
+        long start = System.nanoTime();
+        final ConcurrentLinkedQueue<KeyRange> ranges = new ConcurrentLinkedQueue<KeyRange>(KeyRange.split(prefix));
+        ExecutorService executor = TransferExecutors.getShared();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int i = 0; i < Math.min(concurrency, ranges.size()); i++) {
+            workers.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    KeyRange range;
+                    while (null != (range = ranges.poll())) {
+                        purge(range, pattern, checkpoint, result);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            await(workers);
+        } finally {
+            for (Future<Void> worker : workers) {
+                worker.cancel(true);
+            }
+            result.elapsedNanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /**
+     * Use the selection of an existing checkpoint, and record the selection in a new one
+     */
+    private void resume(Checkpoint checkpoint) throws IOException {
+        String selection = template + "|" + (null != project ? project : "");
+        if (checkpoint.isEmpty()) {
+            checkpoint.set(CHECKPOINT_SELECTION, selection);
+            if (null != olderThan) {
+                checkpoint.set(CHECKPOINT_OLDER_THAN, Long.toString(olderThan.getTime()));
+            }
+            if (!dryRun) {
+                checkpoint.save();
+            }
+            return;
+        }
+        if (!selection.equals(checkpoint.get(CHECKPOINT_SELECTION))) {
+            throw new IllegalArgumentException("Checkpoint is for a different path or project: " +
+                    checkpoint.getFile());
+        }
+        String saved = checkpoint.get(CHECKPOINT_OLDER_THAN);
+        olderThan = null != saved ? new Date(Long.parseLong(saved)) : null;
+        logger.log(Level.INFO, "Resuming purge of logs older than {0} from {1}", new Object[]{olderThan,
+                checkpoint.getFile()});
+    }
+
+    private void purge(KeyRange range, Pattern pattern, Checkpoint checkpoint, Result result) throws IOException {
+        String name = null != range.lower ? range.lower : "";
+        if (null != checkpoint && null != checkpoint.get(CHECKPOINT_DONE + name)) {
+            return;
+        }
+        String marker = null != checkpoint ? checkpoint.get(CHECKPOINT_AFTER + name) : null;
+        if (null == marker) {
+            marker = range.lower;
+        }
+        Future<List<String>> pending = null;
+        int pendingCount = 0;
+        String pendingMarker = null;
+        boolean end = false;
+        while (!end) {
+            ObjectListing page = listPage(range.prefix, marker);
+            end = !page.isTruncated();
+            final List<String> keys = new ArrayList<String>();
+            String last = null;
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                if (range.isAfter(summary.getKey())) {
+                    end = true;
+                    break;
+                }
+                last = summary.getKey();
+                result.listed.incrementAndGet();
+                if (pattern.matcher(summary.getKey()).matches()
+                        && (null == olderThan || summary.getLastModified().before(olderThan))) {
+                    keys.add(summary.getKey());
+                }
+            }
+            result.selected.addAndGet(keys.size());
+            //wait for the previous page to be deleted before recording progress
+            finish(pending, pendingCount, pendingMarker, name, checkpoint, result);
+            pending = null;
+            if (null == last) {
+                break;
+            }
+            if (!keys.isEmpty() && !dryRun) {
+                pending = TransferExecutors.getShared().submit(new Callable<List<String>>() {
+                    public List<String> call() throws IOException {
+                        return deleteAll(keys);
+                    }
+                });
+                pendingCount = keys.size();
+                pendingMarker = last;
+            } else {
+                save(checkpoint, CHECKPOINT_AFTER + name, last);
+            }
+            marker = last;
+        }
+        finish(pending, pendingCount, pendingMarker, name, checkpoint, result);
+        save(checkpoint, CHECKPOINT_DONE + name, "true");
+    }
+
+    /**
+     * Wait for the delete of a page, and record the position after the page
+     */
+    private void finish(Future<List<String>> pending, int count, String marker, String name, Checkpoint checkpoint,
+            Result result) throws IOException {
+        if (null == pending) {
+            return;
+        }
+        List<String> failed = await(pending);
+        result.deleted.addAndGet(count - failed.size());
+        result.failed.addAndGet(failed.size());
+        for (String key : failed) {
+            logger.log(Level.WARNING, "Could not delete {0}", key);
+        }
+        save(checkpoint, CHECKPOINT_AFTER + name, marker);
+    }
+
+    private void save(Checkpoint checkpoint, String name, String value) throws IOException {
+        if (null == checkpoint || dryRun) {
+            return;
+        }
+        checkpoint.set(name, value);
+        checkpoint.save();
+    }
+
+    private ObjectListing listPage(String prefix, String marker) throws IOException {
+        TransferExecutors.acquireTransfer(bucket, prefix);
+        try {
+            return store.listPage(bucket, prefix, null, marker, PAGE_SIZE);
+        } finally {
+            TransferExecutors.releaseTransfer();
+        }
+    }
+
+    private List<String> deleteAll(List<String> keys) throws IOException {
+        TransferExecutors.acquireTransfer(bucket, keys.get(0));
+        try {
+            return store.deleteAll(bucket, keys);
+        } finally {
+            TransferExecutors.releaseTransfer();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        return await(Collections.singletonList(future)).get(0);
+    }
+
+    /**
+     * Wait for every future, and throw the first failure
+     */
+    private static <T> List<T> await(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<T>();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,151 @@
+package org.rundeck.plugins;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM-wide metrics for the plugin, registered with the platform MBean server as {@link #OBJECT_NAME}.
+ */
+public class S3LogMetrics implements S3LogMetricsMBean {
+    public static final String OBJECT_NAME = "org.rundeck.plugins:type=S3LogFileStorage";
+
+    private static final Logger logger = Logger.getLogger(S3LogMetrics.class.getName());
+    private static S3LogMetrics instance;
+
+    private final AtomicLong uploadBytes = new AtomicLong();
+    private final AtomicLong downloadBytes = new AtomicLong();
+    private final AtomicLong uploadThrottledNanos = new AtomicLong();
+    private final AtomicLong downloadThrottledNanos = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    S3LogMetrics() {
+    }
+
+    /**
+     * @return the shared instance, registered with the platform MBean server on first use
+     */
+    public static synchronized S3LogMetrics getInstance() {
+        if (null == instance) {
+            instance = new S3LogMetrics();
+            register(instance);
+        }
+        return instance;
+    }
+
+    private static void register(S3LogMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            //a previous copy of the plugin may have registered
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to register metrics MBean: " + e.getMessage(), e);
+        }
+    }
+
+    void addUpload(long bytes, long throttledNanos) {
+        uploadBytes.addAndGet(bytes);
+        uploadThrottledNanos.addAndGet(throttledNanos);
+    }
+
+    void addDownload(long bytes, long throttledNanos) {
+        downloadBytes.addAndGet(bytes);
+        downloadThrottledNanos.addAndGet(throttledNanos);
+    }
+
+    void addHedge() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    void addHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    public long getUploadBytes() {
+        return uploadBytes.get();
+    }
+
+    public long getDownloadBytes() {
+        return downloadBytes.get();
+    }
+
+    public long getUploadThrottledMillis() {
+        return uploadThrottledNanos.get() / 1000000;
+    }
+
+    public long getDownloadThrottledMillis() {
+        return downloadThrottledNanos.get() / 1000000;
+    }
+
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return size of the last multipart upload part, or -1 if no part was sized yet
+     */
+    public long getMultipartPartSize() {
+        PartSizer.Decision decision = PartSizer.getSharedStats().getLastDecision();
+        return null != decision ? decision.partSize : -1;
+    }
+
+    /**
+     * @return number of parts the last multipart upload part was allowed in flight with, or -1 if no part was sized
+     *         yet
+     */
+    public int getMultipartConcurrency() {
+        PartSizer.Decision decision = PartSizer.getSharedStats().getLastDecision();
+        return null != decision ? decision.concurrency : -1;
+    }
+
+    /**
+     * @return moving average of the per-part upload throughput in bytes per second, or -1 if nothing was measured
+     *         yet
+     */
+    public double getMultipartThroughput() {
+        return PartSizer.getSharedStats().getThroughput();
+    }
+
+    /**
+     * @return moving average of the fraction of part uploads which failed
+     */
+    public double getMultipartErrorRate() {
+        return PartSizer.getSharedStats().getErrorRate();
+    }
+
+    public long getUploadRateLimit() {
+        return BandwidthThrottle.getUpload().getRate();
+    }
+
+    public void setUploadRateLimit(long bytesPerSecond) {
+        BandwidthThrottle.getUpload().setRate(bytesPerSecond);
+    }
+
+    public long getDownloadRateLimit() {
+        return BandwidthThrottle.getDownload().getRate();
+    }
+
+    public void setDownloadRateLimit(long bytesPerSecond) {
+        BandwidthThrottle.getDownload().setRate(bytesPerSecond);
+    }
+
+    public int getMaxConcurrentTransfers() {
+        return TransferExecutors.getMaxConcurrentTransfers();
+    }
+
+    public void setMaxConcurrentTransfers(int max) {
+        TransferExecutors.setMaxConcurrentTransfers(Math.max(1, max));
+    }
+}
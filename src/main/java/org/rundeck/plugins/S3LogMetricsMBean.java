@@ -0,0 +1,38 @@
+package org.rundeck.plugins;
+
+/**
+ * JMX view of the plugin's JVM-wide transfer metrics and runtime settings
+ */
+public interface S3LogMetricsMBean {
+    long getUploadBytes();
+
+    long getDownloadBytes();
+
+    long getUploadThrottledMillis();
+
+    long getDownloadThrottledMillis();
+
+    long getHedgedRequests();
+
+    long getHedgeWins();
+
+    long getMultipartPartSize();
+
+    int getMultipartConcurrency();
+
+    double getMultipartThroughput();
+
+    double getMultipartErrorRate();
+
+    long getUploadRateLimit();
+
+    void setUploadRateLimit(long bytesPerSecond);
+
+    long getDownloadRateLimit();
+
+    void setDownloadRateLimit(long bytesPerSecond);
+
+    int getMaxConcurrentTransfers();
+
+    void setMaxConcurrentTransfers(int max);
+}
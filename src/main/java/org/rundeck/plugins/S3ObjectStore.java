@@ -0,0 +1,114 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ObjectStore} backed by S3. The client is also available for the features only S3 provides, such as
+ * multipart uploads, server-side copies and pre-signed URLs.
+ */
+class S3ObjectStore implements ObjectStore {
+    private final AmazonS3 client;
+
+    S3ObjectStore(AmazonS3 client) {
+        this.client = client;
+    }
+
+    AmazonS3 getClient() {
+        return client;
+    }
+
+    public ObjectMetadata head(String bucket, String key) {
+        try {
+            return client.getObjectMetadata(new GetObjectMetadataRequest(bucket, key));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    public S3Object get(String bucket, String key) throws IOException {
+        try {
+            return client.getObject(bucket, key);
+        } catch (AmazonS3Exception e) {
+            throw notFound(bucket, key, e);
+        }
+    }
+
+    public InputStream getRange(String bucket, String key, long start, long endInclusive) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucket, key);
+        request.setRange(start, endInclusive);
+        try {
+            return client.getObject(request).getObjectContent();
+        } catch (AmazonS3Exception e) {
+            throw notFound(bucket, key, e);
+        }
+    }
+
+    /**
+     * @return a {@link FileNotFoundException} for a missing object, as the other backends report it
+     *
+     * @throws AmazonS3Exception the exception, for other errors
+     */
+    private static FileNotFoundException notFound(String bucket, String key, AmazonS3Exception e) {
+        if (e.getStatusCode() != 404) {
+            throw e;
+        }
+        FileNotFoundException notFound = new FileNotFoundException("Object not found: " + bucket + "/" + key);
+        notFound.initCause(e);
+        return notFound;
+    }
+
+    public String put(String bucket, String key, InputStream content, ObjectMetadata metadata) {
+        PutObjectResult result = client.putObject(new PutObjectRequest(bucket, key, content, metadata));
+        return null != result ? result.getETag() : null;
+    }
+
+    public List<String> list(String bucket, String prefix) {
+        List<String> keys = new ArrayList<String>();
+        ObjectListing listing = client.listObjects(bucket, prefix);
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                keys.add(summary.getKey());
+            }
+            if (!listing.isTruncated()) {
+                return keys;
+            }
+            listing = client.listNextBatchOfObjects(listing);
+        }
+    }
+
+    public ObjectListing listPage(String bucket, String prefix, String delimiter, String marker, int maxKeys) {
+        return client.listObjects(new ListObjectsRequest(bucket, prefix, marker, delimiter, maxKeys));
+    }
+
+    public void delete(String bucket, String key) {
+        client.deleteObject(bucket, key);
+    }
+
+    public List<String> deleteAll(String bucket, List<String> keys) {
+        List<String> failed = new ArrayList<String>();
+        if (keys.isEmpty()) {
+            return failed;
+        }
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keys.toArray(new String[keys.size()]));
+        //only report errors
+        request.setQuiet(true);
+        try {
+            client.deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                failed.add(error.getKey());
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,164 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aborts the multipart uploads which were started under the plugin's path longer ago than the maximum age, and were
+ * neither completed nor resumed, for example because Rundeck stopped during the upload, so that their parts are not
+ * stored and billed forever. Each bucket and path prefix is registered once for the JVM and cleaned every
+ * {@link #CLEAN_INTERVAL_SECONDS}. Uploads recorded in the journal are not aborted, since they may still be resumed,
+ * but journal files older than the maximum age are deleted, so their uploads are aborted by the next cleaning.
+ */
+class StaleUploadCleaner {
+    static final long FIRST_CLEAN_SECONDS = 60;
+    static final long CLEAN_INTERVAL_SECONDS = 3600;
+
+    private static final Logger logger = Logger.getLogger(StaleUploadCleaner.class.getName());
+    private static final StaleUploadCleaner shared = new StaleUploadCleaner();
+
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    /**
+     * A bucket and prefix to clean
+     */
+    static class Target {
+        final AmazonS3 client;
+        final String bucket;
+        final String prefix;
+        final MultipartJournal journal;
+        final long maxAgeMillis;
+
+        /**
+         * @param client       client
+         * @param bucket       bucket
+         * @param prefix       key prefix of the uploads to abort
+         * @param journal      journal of the uploads, or null
+         * @param maxAgeMillis age after which uploads are aborted
+         */
+        Target(AmazonS3 client, String bucket, String prefix, MultipartJournal journal, long maxAgeMillis) {
+            this.client = client;
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.journal = journal;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+    }
+
+    static StaleUploadCleaner getShared() {
+        return shared;
+    }
+
+    /**
+     * Register a bucket and prefix, replacing the client and maximum age of an earlier registration, and start the
+     * background cleaning if necessary
+     *
+     * @throws IllegalArgumentException if the prefix is empty, which would abort the uploads of the whole bucket
+     */
+    synchronized void register(Target target) {
+        if (null == target.prefix || "".equals(target.prefix)) {
+            throw new IllegalArgumentException("prefix must not be empty");
+        }
+        targets.put(target.bucket + "/" + target.prefix, target);
+        if (null == task) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new TransferExecutors.NamedThreadFactory("rundeck-s3-cleaner")
+            );
+            task = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    cleanAll(System.currentTimeMillis());
+                }
+            }, FIRST_CLEAN_SECONDS, CLEAN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop the background cleaning and forget all targets
+     */
+    synchronized void shutdown() {
+        targets.clear();
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            task = null;
+        }
+    }
+
+    /**
+     * Clean every registered target
+     *
+     * @param now current time in milliseconds
+     *
+     * @return number of uploads aborted
+     */
+    int cleanAll(long now) {
+        List<Target> current;
+        synchronized (this) {
+            current = new ArrayList<Target>(targets.values());
+        }
+        int aborted = 0;
+        for (Target target : current) {
+            try {
+                aborted += clean(target, now);
+            } catch (AmazonClientException e) {
+                logger.log(Level.WARNING, "Multipart upload cleanup failed for " + target.bucket + "/" + target
+                        .prefix + ": " + e.getMessage(), e);
+            }
+        }
+        return aborted;
+    }
+
+    /**
+     * Abort the uploads of a target which started before the maximum age and are not in the journal, and delete the
+     * old journal files
+     *
+     * @return number of uploads aborted
+     */
+    static int clean(Target target, long now) {
+        Date cutoff = new Date(now - target.maxAgeMillis);
+        Set<String> journaled = null != target.journal ? target.journal.listUploadIds() : Collections
+                .<String>emptySet();
+        int aborted = 0;
+        ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(target.bucket).withPrefix(
+                target.prefix);
+        MultipartUploadListing listing;
+        do {
+            listing = target.client.listMultipartUploads(request);
+            for (MultipartUpload upload : listing.getMultipartUploads()) {
+                if (null == upload.getInitiated() || !upload.getInitiated().before(cutoff) || journaled.contains(
+                        upload.getUploadId())) {
+                    continue;
+                }
+                try {
+                    target.client.abortMultipartUpload(new AbortMultipartUploadRequest(target.bucket,
+                            upload.getKey(), upload.getUploadId()));
+                    aborted++;
+                    logger.log(Level.INFO, "Aborted multipart upload {0} for {1}:{2} started {3}", new Object[]{
+                            upload.getUploadId(), target.bucket, upload.getKey(), upload.getInitiated()});
+                } catch (AmazonClientException e) {
+                    logger.log(Level.WARNING, "Failed to abort multipart upload " + upload.getUploadId() + " for " +
+                            upload.getKey() + ": " + e.getMessage());
+                }
+            }
+            request.setKeyMarker(listing.getNextKeyMarker());
+            request.setUploadIdMarker(listing.getNextUploadIdMarker());
+        } while (listing.isTruncated());
+        if (null != target.journal) {
+            for (File file : target.journal.listFiles()) {
+                if (file.lastModified() < cutoff.getTime() && file.delete()) {
+                    logger.log(Level.FINE, "Deleted multipart journal {0}", file);
+                }
+            }
+        }
+        return aborted;
+    }
+}
@@ -0,0 +1,184 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies an input stream to a temporary file, so that content of unknown length can be uploaded with a known
+ * content length instead of letting the S3 client buffer the whole stream in memory.
+ */
+class StreamSpool {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Transforms content as it is written to the spool file
+     */
+    interface Encoder {
+        /**
+         * @param out stream writing to the spool file
+         *
+         * @return stream which encodes content written to it, and closes the underlying stream when closed
+         */
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    private final File file;
+    private final long length;
+    private final long contentLength;
+    private final byte[] digest;
+    private final List<InputStream> opened = new ArrayList<InputStream>();
+
+    private StreamSpool(File file, long length, long contentLength, byte[] digest) {
+        this.file = file;
+        this.length = length;
+        this.contentLength = contentLength;
+        this.digest = digest;
+    }
+
+    /**
+     * Copy the stream to a new temp file
+     *
+     * @param stream    input
+     * @param directory directory for the temp file, or null to use the default temp dir
+     *
+     * @return the spool
+     *
+     * @throws IOException if the copy fails, in which case the temp file is removed
+     */
+    static StreamSpool spool(InputStream stream, File directory) throws IOException {
+        return spool(stream, directory, null);
+    }
+
+    /**
+     * Copy the stream to a new temp file, updating a digest with the content as it is copied
+     *
+     * @param stream    input
+     * @param directory directory for the temp file, or null to use the default temp dir
+     * @param digest    digest to update, or null
+     *
+     * @return the spool
+     *
+     * @throws IOException if the copy fails, in which case the temp file is removed
+     */
+    static StreamSpool spool(InputStream stream, File directory, MessageDigest digest) throws IOException {
+        return spool(stream, directory, digest, null);
+    }
+
+    /**
+     * Copy the stream to a new temp file through an encoder, updating a digest with the encoded content as it is
+     * written
+     *
+     * @param stream    input
+     * @param directory directory for the temp file, or null to use the default temp dir
+     * @param digest    digest to update, or null
+     * @param encoder   encoder for the content, or null to store it unchanged
+     *
+     * @return the spool
+     *
+     * @throws IOException if the copy fails, in which case the temp file is removed
+     */
+    static StreamSpool spool(InputStream stream, File directory, MessageDigest digest, Encoder encoder)
+            throws IOException {
+        if (null == stream) {
+            throw new IOException("Cannot spool a null stream");
+        }
+        File file = File.createTempFile("rundeck-s3-spool", ".tmp", directory);
+        long count = 0;
+        boolean done = false;
+        try {
+            OutputStream fileOut = new FileOutputStream(file);
+            if (null != digest) {
+                fileOut = new DigestOutputStream(fileOut, digest);
+            }
+            OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE);
+            try {
+                if (null != encoder) {
+                    out = encoder.wrap(out);
+                }
+                byte[] buf = new byte[BUFFER_SIZE];
+                int len = stream.read(buf);
+                while (len >= 0) {
+                    out.write(buf, 0, len);
+                    count += len;
+                    len = stream.read(buf);
+                }
+            } finally {
+                out.close();
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                file.delete();
+            }
+        }
+        return new StreamSpool(file, file.length(), count, null != digest ? digest.digest() : null);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of bytes in the spool file
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return number of bytes read from the input, before encoding
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return the digest of the spooled content, or null if no digest was requested
+     */
+    byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the digest of the content as lowercase hex, or null if no digest was requested
+     */
+    String getDigestHex() {
+        return null != digest ? BinaryUtils.toHex(digest).toLowerCase() : null;
+    }
+
+    /**
+     * @return a new stream reading the spooled content, which may be read concurrently with other streams
+     *
+     * @throws IOException
+     */
+    synchronized InputStream openStream() throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        opened.add(stream);
+        return stream;
+    }
+
+    /**
+     * Close any opened stream and delete the temp file
+     */
+    void release() {
+        closeOpened();
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private synchronized void closeOpened() {
+        for (InputStream stream : opened) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        opened.clear();
+    }
+}
@@ -0,0 +1,72 @@
+package org.rundeck.plugins;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input stream which limits its read rate with a {@link BandwidthThrottle}, and records throttled time and bytes
+ * read in the {@link S3LogMetrics} and as {@link FlightEvents}.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private final BandwidthThrottle throttle;
+    private final boolean upload;
+
+    /**
+     * @param in       stream
+     * @param throttle throttle
+     * @param upload   true if the bytes are being uploaded, false if downloaded
+     */
+    ThrottledInputStream(InputStream in, BandwidthThrottle throttle, boolean upload) {
+        super(in);
+        this.throttle = throttle;
+        this.upload = upload;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = super.read();
+        if (read >= 0) {
+            consumed(1);
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            consumed(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            consumed(skipped);
+        }
+        return skipped;
+    }
+
+    private void consumed(long bytes) throws IOException {
+        FlightEvents.Event wait = throttle.isLimited() ? FlightEvents.beginWait(
+                upload ? "uploadRateLimit" : "downloadRateLimit", null, null) : FlightEvents.Event.NONE;
+        try {
+            long waited = throttle.acquire(bytes);
+            if (waited > 0) {
+                wait.commit(bytes, "OK");
+            }
+            if (upload) {
+                S3LogMetrics.getInstance().addUpload(bytes, waited);
+            } else {
+                S3LogMetrics.getInstance().addDownload(bytes, waited);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * {@link ObjectStore} with a local hot tier in front of a cold store. Objects are written to the hot tier, and read
+ * from the hot tier if they are still there, otherwise from the cold store. {@link HotTierMover} moves objects from
+ * the hot tier to the cold store in the background, copying each one before deleting it, so an object is always in
+ * at least one tier.
+ */
+class TieredObjectStore implements ObjectStore {
+    private final FileObjectStore hot;
+    private final ObjectStore cold;
+
+    TieredObjectStore(FileObjectStore hot, ObjectStore cold) {
+        this.hot = hot;
+        this.cold = cold;
+    }
+
+    FileObjectStore getHot() {
+        return hot;
+    }
+
+    ObjectStore getCold() {
+        return cold;
+    }
+
+    public ObjectMetadata head(String bucket, String key) throws IOException {
+        ObjectMetadata metadata = hot.head(bucket, key);
+        return null != metadata ? metadata : cold.head(bucket, key);
+    }
+
+    public S3Object get(String bucket, String key) throws IOException {
+        try {
+            return hot.get(bucket, key);
+        } catch (FileNotFoundException e) {
+            //not in the hot tier, or moved since
+            return cold.get(bucket, key);
+        }
+    }
+
+    public InputStream getRange(String bucket, String key, long start, long endInclusive) throws IOException {
+        try {
+            return hot.getRange(bucket, key, start, endInclusive);
+        } catch (FileNotFoundException e) {
+            return cold.getRange(bucket, key, start, endInclusive);
+        }
+    }
+
+    public String put(String bucket, String key, InputStream content, ObjectMetadata metadata) throws IOException {
+        return hot.put(bucket, key, content, metadata);
+    }
+
+    public List<String> list(String bucket, String prefix) throws IOException {
+        TreeSet<String> keys = new TreeSet<String>(hot.list(bucket, prefix));
+        keys.addAll(cold.list(bucket, prefix));
+        return new ArrayList<String>(keys);
+    }
+
+    /**
+     * Merge a page of each tier. Entries past the end of a truncated page may be missing from it, so the merged page
+     * ends at the earliest end of a truncated page.
+     */
+    public ObjectListing listPage(String bucket, String prefix, String delimiter, String marker, int maxKeys) throws
+            IOException {
+        ObjectListing coldPage = cold.listPage(bucket, prefix, delimiter, marker, maxKeys);
+        ObjectListing hotPage = hot.listPage(bucket, prefix, delimiter, marker, maxKeys);
+        //common prefixes map to null
+        TreeMap<String, S3ObjectSummary> entries = new TreeMap<String, S3ObjectSummary>();
+        String end = null;
+        for (ObjectListing page : new ObjectListing[]{coldPage, hotPage}) {
+            String pageLast = null;
+            for (String commonPrefix : page.getCommonPrefixes()) {
+                entries.put(commonPrefix, null);
+                pageLast = max(pageLast, commonPrefix);
+            }
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                entries.put(summary.getKey(), summary);
+                pageLast = max(pageLast, summary.getKey());
+            }
+            if (page.isTruncated() && (null == end || pageLast.compareTo(end) < 0)) {
+                end = pageLast;
+            }
+        }
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(bucket);
+        listing.setPrefix(prefix);
+        listing.setDelimiter(delimiter);
+        listing.setMarker(marker);
+        listing.setMaxKeys(maxKeys);
+        listing.setTruncated(null != end);
+        List<String> commonPrefixes = new ArrayList<String>();
+        String last = null;
+        int count = 0;
+        for (Map.Entry<String, S3ObjectSummary> entry : entries.entrySet()) {
+            if (null != end && entry.getKey().compareTo(end) > 0) {
+                break;
+            }
+            if (count == maxKeys) {
+                listing.setTruncated(true);
+                break;
+            }
+            if (null == entry.getValue()) {
+                commonPrefixes.add(entry.getKey());
+            } else {
+                listing.getObjectSummaries().add(entry.getValue());
+            }
+            last = entry.getKey();
+            count++;
+        }
+        listing.setCommonPrefixes(commonPrefixes);
+        if (listing.isTruncated()) {
+            listing.setNextMarker(last);
+        }
+        return listing;
+    }
+
+    private static String max(String a, String b) {
+        return null == a || b.compareTo(a) > 0 ? b : a;
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        hot.delete(bucket, key);
+        cold.delete(bucket, key);
+    }
+
+    public List<String> deleteAll(String bucket, List<String> keys) throws IOException {
+        TreeSet<String> failed = new TreeSet<String>(hot.deleteAll(bucket, keys));
+        failed.addAll(cold.deleteAll(bucket, keys));
+        return new ArrayList<String>(failed);
+    }
+}
@@ -0,0 +1,183 @@
+package org.rundeck.plugins;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared executors for the plugin's internal parallel transfers and compression. Callers limit their own
+ * concurrency, the executors only supply threads.
+ * <p/>
+ * Transfers are blocking S3 requests, so on a JVM with virtual threads each transfer task runs on a new virtual
+ * thread. Otherwise they run on a pool of platform threads which starts a thread whenever every thread is busy, so
+ * a task never runs on the submitting thread, where a deadline or hedge waiting for it could not act. Idle threads
+ * stop after {@link #IDLE_SECONDS}. The number of transfers in flight across the JVM is capped by a semaphore, see
+ * {@link #acquireTransfer(String, String)}.
+ */
+class TransferExecutors {
+    static final long IDLE_SECONDS = 60;
+    static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 64;
+
+    private static final Logger logger = Logger.getLogger(TransferExecutors.class.getName());
+    private static ExecutorService shared;
+    private static ExecutorService compression;
+    private static boolean virtual;
+    private static final TransferPermits transfers = new TransferPermits(DEFAULT_MAX_CONCURRENT_TRANSFERS);
+    private static Integer configuredMaxConcurrentTransfers;
+
+    static synchronized ExecutorService getShared() {
+        if (null == shared) {
+            shared = createVirtualExecutor("rundeck-s3-transfer-");
+            virtual = null != shared;
+            if (null == shared) {
+                //unbounded, the transfer permits and each caller's own limits bound the threads in use
+                shared = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_SECONDS, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new NamedThreadFactory("rundeck-s3-transfer"));
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return true if transfers run on virtual threads
+     */
+    static synchronized boolean isVirtual() {
+        getShared();
+        return virtual;
+    }
+
+    /**
+     * @return executor for CPU bound compression, with one thread per processor
+     */
+    static synchronized ExecutorService getCompression() {
+        if (null == compression) {
+            compression = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new NamedThreadFactory("rundeck-s3-compress"));
+        }
+        return compression;
+    }
+
+    /**
+     * Create an executor which starts a virtual thread per task, if the JVM supports virtual threads. Looked up
+     * reflectively, as the plugin is compiled for older Java versions.
+     *
+     * @param prefix thread name prefix
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    static ExecutorService createVirtualExecutor(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method create = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) create.invoke(null, factory);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            //e.g. virtual threads are a disabled preview feature
+            logger.log(Level.FINE, "Virtual threads are not available: " + e, e);
+            return null;
+        }
+    }
+
+    /**
+     * Set the maximum number of transfers in flight across the JVM. Transfers already in flight are not affected.
+     */
+    static void setMaxConcurrentTransfers(int max) {
+        transfers.setLimit(max);
+    }
+
+    /**
+     * Apply the configured maximum number of transfers in flight if it differs from the last configured maximum, so
+     * that a maximum changed at runtime is kept until the configuration changes
+     */
+    static synchronized void configureMaxConcurrentTransfers(int max) {
+        if (null == configuredMaxConcurrentTransfers || configuredMaxConcurrentTransfers != max) {
+            configuredMaxConcurrentTransfers = max;
+            setMaxConcurrentTransfers(max);
+        }
+    }
+
+    static int getMaxConcurrentTransfers() {
+        return transfers.getLimit();
+    }
+
+    /**
+     * Wait for a transfer permit. Only requests which do not wait for other transfers may hold a permit, so that
+     * holders cannot wait for each other.
+     *
+     * @param bucket bucket, for the wait event
+     * @param key    key, for the wait event
+     *
+     * @throws IOException if interrupted
+     */
+    static void acquireTransfer(String bucket, String key) throws IOException {
+        if (transfers.tryAcquire()) {
+            return;
+        }
+        FlightEvents.Event wait = FlightEvents.beginWait("transferSlot", bucket, key);
+        try {
+            transfers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a transfer slot");
+        }
+        wait.commit(0, "OK");
+    }
+
+    static void releaseTransfer() {
+        transfers.release();
+    }
+
+    /**
+     * Semaphore whose number of permits can be changed while permits are held
+     */
+    static class TransferPermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int limit;
+
+        TransferPermits(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        synchronized void setLimit(int newLimit) {
+            if (newLimit > limit) {
+                release(newLimit - limit);
+            } else if (newLimit < limit) {
+                reducePermits(limit - newLimit);
+            }
+            limit = newLimit;
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+    }
+
+    /**
+     * Creates daemon threads with a name prefix
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
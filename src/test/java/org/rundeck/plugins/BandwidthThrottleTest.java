@@ -0,0 +1,60 @@
+package org.rundeck.plugins;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class BandwidthThrottleTest {
+
+    @Test
+    public void unlimitedDoesNotWait() throws InterruptedException {
+        BandwidthThrottle throttle = new BandwidthThrottle();
+        Assert.assertFalse(throttle.isLimited());
+        Assert.assertEquals(0, throttle.acquire(100000000));
+    }
+
+    @Test
+    public void limitedWaitsForTokens() throws InterruptedException {
+        BandwidthThrottle throttle = new BandwidthThrottle();
+        throttle.setRate(10000);
+        Assert.assertTrue(throttle.isLimited());
+        long start = System.nanoTime();
+        throttle.acquire(2500);
+        throttle.acquire(2500);
+        long waited = System.nanoTime() - start;
+        //bucket starts empty, 5000 bytes at 10000 bytes/sec takes about half a second
+        Assert.assertTrue("waited " + waited, waited >= 400000000L);
+        Assert.assertTrue("waited " + waited, waited < 2000000000L);
+    }
+
+    @Test
+    public void rateChangeAppliesImmediately() throws InterruptedException {
+        BandwidthThrottle throttle = new BandwidthThrottle();
+        throttle.setRate(1);
+        throttle.setRate(0);
+        Assert.assertEquals(0, throttle.acquire(1000000));
+    }
+
+    @Test
+    public void throttledStreamRecordsMetrics() throws IOException {
+        BandwidthThrottle throttle = new BandwidthThrottle();
+        throttle.setRate(20000);
+        S3LogMetrics metrics = S3LogMetrics.getInstance();
+        long bytes = metrics.getDownloadBytes();
+        long throttled = metrics.getDownloadThrottledMillis();
+
+        ThrottledInputStream stream = new ThrottledInputStream(new ByteArrayInputStream(new byte[5000]), throttle,
+                false);
+        byte[] buf = new byte[1000];
+        while (stream.read(buf) >= 0) {
+        }
+
+        Assert.assertEquals(bytes + 5000, metrics.getDownloadBytes());
+        Assert.assertTrue(metrics.getDownloadThrottledMillis() - throttled >= 150);
+    }
+}
@@ -0,0 +1,219 @@
+package org.rundeck.plugins;
+
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import com.dtolabs.utils.Streams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+@RunWith(JUnit4.class)
+public class BlockGzipTest {
+
+    class rangeSource implements BlockGzipIndex.RangeSource {
+        final byte[] data;
+        final List<long[]> ranges = new ArrayList<long[]>();
+
+        rangeSource(byte[] data) {
+            this.data = data;
+        }
+
+        public long getLength() {
+            return data.length;
+        }
+
+        public InputStream open(long start, long end) {
+            ranges.add(new long[]{start, end});
+            return new ByteArrayInputStream(data, (int) start, (int) (end - start + 1));
+        }
+    }
+
+    private static byte[] testData(int lines) {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(lines);
+        for (int i = 0; i < lines; i++) {
+            sb.append("line ").append(i).append(": ").append(random.nextInt()).append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockGzipOutputStream out = new BlockGzipOutputStream(baos, blockSize);
+        out.write(data);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Streams.copyStream(in, baos);
+        in.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] copyRange(BlockGzipIndex index, rangeSource source, long offset, long length)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        index.copyRange(source, offset, length, baos);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void compressedIsValidGzip() throws IOException {
+        byte[] data = testData(5000);
+        byte[] compressed = compress(data, 4096);
+
+        Assert.assertTrue(compressed.length < data.length);
+        Assert.assertArrayEquals(data, readAll(new GzipMembersInputStream(new ByteArrayInputStream(compressed))));
+        Assert.assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void parallelCompressionMatchesSerial() throws IOException {
+        byte[] data = testData(20000);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BlockGzipOutputStream out = new BlockGzipOutputStream(baos, 4096, TransferExecutors.getCompression(), 3);
+        //uneven writes cross block boundaries
+        for (int off = 0; off < data.length; off += 1000) {
+            out.write(data, off, Math.min(1000, data.length - off));
+        }
+        out.close();
+
+        Assert.assertArrayEquals(compress(data, 4096), baos.toByteArray());
+        Assert.assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+    }
+
+    @Test
+    public void parallelCompressionFailure() throws IOException {
+        OutputStream failing = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("write failed");
+            }
+        };
+        BlockGzipOutputStream out = new BlockGzipOutputStream(failing, 1024, TransferExecutors.getCompression(), 2);
+        try {
+            out.write(testData(2000));
+            out.close();
+            Assert.fail("should throw");
+        } catch (IOException e) {
+            Assert.assertEquals("write failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void emptyContent() throws IOException {
+        byte[] compressed = compress(new byte[0], 4096);
+        rangeSource source = new rangeSource(compressed);
+        BlockGzipIndex index = BlockGzipIndex.read(source);
+
+        Assert.assertEquals(0, index.getBlockCount());
+        Assert.assertEquals(0, index.getUncompressedLength());
+        Assert.assertEquals(0, copyRange(index, source, -100, -1).length);
+        Assert.assertEquals(0, readAll(new GzipMembersInputStream(new ByteArrayInputStream(compressed))).length);
+    }
+
+    @Test
+    public void indexSpansMultipleMembers() throws IOException {
+        byte[] data = testData(3000);
+        byte[] compressed = compress(data, data.length / (BlockGzipOutputStream.ENTRIES_PER_INDEX_MEMBER * 2));
+        rangeSource source = new rangeSource(compressed);
+        BlockGzipIndex index = BlockGzipIndex.read(source);
+
+        Assert.assertTrue(index.getBlockCount() > BlockGzipOutputStream.ENTRIES_PER_INDEX_MEMBER);
+        Assert.assertEquals(data.length, index.getUncompressedLength());
+        Assert.assertArrayEquals(data, copyRange(index, source, 0, -1));
+    }
+
+    @Test
+    public void rangeReadsOnlyCoveringBlocks() throws IOException {
+        byte[] data = testData(5000);
+        byte[] compressed = compress(data, 4096);
+        rangeSource source = new rangeSource(compressed);
+        BlockGzipIndex index = BlockGzipIndex.read(source);
+        Assert.assertEquals(4096, index.getBlockSize());
+        Assert.assertEquals((data.length + 4095) / 4096, index.getBlockCount());
+        source.ranges.clear();
+
+        byte[] range = copyRange(index, source, 5000, 3000);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 5000, 8000), range);
+        Assert.assertEquals(1, source.ranges.size());
+        long fetched = source.ranges.get(0)[1] - source.ranges.get(0)[0] + 1;
+        Assert.assertTrue(fetched < compressed.length / 4);
+    }
+
+    @Test
+    public void tailRead() throws IOException {
+        byte[] data = testData(5000);
+        rangeSource source = new rangeSource(compress(data, 4096));
+        BlockGzipIndex index = BlockGzipIndex.read(source);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, data.length - 100, data.length),
+                copyRange(index, source, -100, -1));
+        Assert.assertArrayEquals(data, copyRange(index, source, -data.length * 2, -1));
+        Assert.assertEquals(0, copyRange(index, source, data.length, 10).length);
+    }
+
+    private MemoryS3.plugin initPlugin(String format) {
+        MemoryS3.plugin plugin = new MemoryS3.plugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStorageFormat(format);
+        plugin.setCompressionBlockSize(4096);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    @Test
+    public void storeAndRetrieveBlockGzip() throws IOException, ExecutionFileStorageException {
+        MemoryS3.plugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_BLOCKGZIP);
+        byte[] data = testData(5000);
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date()));
+
+        Map<String, String> userMetadata = plugin.s3.metadata.getUserMetadata();
+        Assert.assertEquals("blockgzip", userMetadata.get(S3LogFileStoragePlugin.USER_METADATA_FORMAT));
+        Assert.assertEquals(Integer.toString(data.length), userMetadata.get(
+                S3LogFileStoragePlugin.USER_METADATA_LENGTH));
+        Assert.assertTrue(plugin.s3.content.length < data.length);
+
+        ByteArrayOutputStream retrieved = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", retrieved));
+        Assert.assertArrayEquals(data, retrieved.toByteArray());
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        Assert.assertEquals(200, plugin.retrieveRange("rdlog", tail, -200, -1));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, data.length - 200, data.length), tail.toByteArray());
+    }
+
+    @Test
+    public void retrieveRangePlain() throws IOException, ExecutionFileStorageException {
+        MemoryS3.plugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN);
+        byte[] data = testData(100);
+        plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date());
+        Assert.assertArrayEquals(data, plugin.s3.content);
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        Assert.assertEquals(50, plugin.retrieveRange("rdlog", range, 10, 50));
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 10, 60), range.toByteArray());
+        Assert.assertEquals(10, plugin.s3.ranges.get(0)[0]);
+        Assert.assertEquals(59, plugin.s3.ranges.get(0)[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidStorageFormat() {
+        initPlugin("zip");
+    }
+}
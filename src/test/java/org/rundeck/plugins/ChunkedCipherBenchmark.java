@@ -0,0 +1,66 @@
+package org.rundeck.plugins;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Measures the throughput of chunked AES-GCM encryption and decryption compared with copying the plaintext.
+ * <p/>
+ * Usage: ChunkedCipherBenchmark [sizeMB] [chunkSize] [iterations]
+ */
+public class ChunkedCipherBenchmark {
+    private static final OutputStream NULL = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : ChunkedCipher.DEFAULT_CHUNK_SIZE;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        byte[] data = new byte[sizeMB * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        byte[] keyBytes = new byte[32];
+        new Random(2).nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(data.length + data.length / chunkSize * 16 + 64);
+        OutputStream out = new ChunkedCipher.EncryptingOutputStream(encrypted, ChunkedCipher.create(key, chunkSize));
+        out.write(data);
+        out.close();
+        byte[] ciphertext = encrypted.toByteArray();
+
+        System.out.printf("%d MB, chunk size %d, %d iterations%n", sizeMB, chunkSize, iterations);
+        for (int i = 0; i <= iterations; i++) {
+            //first round warms up
+            long plain = time(new ByteArrayInputStream(data));
+            long encrypt = time(new ChunkedCipher.EncryptingInputStream(new ByteArrayInputStream(data),
+                    ChunkedCipher.create(key, chunkSize)));
+            long decrypt = time(new ChunkedCipher.DecryptingInputStream(new ByteArrayInputStream(ciphertext), key));
+            if (i > 0) {
+                System.out.printf("plaintext %8.1f MB/s   encrypt %8.1f MB/s   decrypt %8.1f MB/s%n",
+                        rate(sizeMB, plain), rate(sizeMB, encrypt), rate(sizeMB, decrypt));
+            }
+        }
+    }
+
+    private static long time(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        byte[] buf = new byte[64 * 1024];
+        int len;
+        while ((len = in.read(buf)) >= 0) {
+            NULL.write(buf, 0, len);
+        }
+        in.close();
+        return System.nanoTime() - start;
+    }
+
+    private static double rate(int sizeMB, long nanos) {
+        return sizeMB / (nanos / 1000000000.0);
+    }
+}
@@ -0,0 +1,231 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.util.BinaryUtils;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import com.dtolabs.utils.Streams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class ChunkedCipherTest {
+    static final String TEST_KEY = BinaryUtils.toBase64(new byte[]{
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16
+    });
+
+    class rangeSource implements BlockGzipIndex.RangeSource {
+        final byte[] data;
+
+        rangeSource(byte[] data) {
+            this.data = data;
+        }
+
+        public long getLength() {
+            return data.length;
+        }
+
+        public InputStream open(long start, long end) {
+            return new ByteArrayInputStream(data, (int) start, (int) (end - start + 1));
+        }
+    }
+
+    private static byte[] testData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] encrypt(ChunkedCipher cipher, byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream out = new ChunkedCipher.EncryptingOutputStream(baos, cipher);
+        out.write(data);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Streams.copyStream(in, baos);
+        in.close();
+        return baos.toByteArray();
+    }
+
+    private static byte[] decrypt(SecretKey key, byte[] encrypted) throws IOException {
+        return readAll(new ChunkedCipher.DecryptingInputStream(new ByteArrayInputStream(encrypted), key));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        SecretKey key = ChunkedCipher.decodeKey(TEST_KEY);
+        for (int size : new int[]{0, 1, 99, 100, 101, 1000, 12345}) {
+            byte[] data = testData(size);
+            ChunkedCipher cipher = ChunkedCipher.create(key, 100);
+            byte[] encrypted = encrypt(cipher, data);
+
+            Assert.assertEquals(cipher.encryptedLength(size), encrypted.length);
+            Assert.assertEquals(size, cipher.contentLength(encrypted.length));
+            Assert.assertArrayEquals(data, decrypt(key, encrypted));
+        }
+    }
+
+    @Test
+    public void encryptingInputStreamMatchesOutputStream() throws IOException {
+        SecretKey key = ChunkedCipher.decodeKey(TEST_KEY);
+        byte[] data = testData(1000);
+        byte[] header = ChunkedCipher.create(key, 100).getHeader();
+        ChunkedCipher cipher = ChunkedCipher.fromHeader(key, header);
+
+        byte[] streamed = readAll(new ChunkedCipher.EncryptingInputStream(new ByteArrayInputStream(data), cipher));
+
+        Assert.assertArrayEquals(encrypt(cipher, data), streamed);
+        Assert.assertArrayEquals(data, decrypt(key, streamed));
+    }
+
+    @Test
+    public void tamperedChunkFails() throws IOException {
+        SecretKey key = ChunkedCipher.decodeKey(TEST_KEY);
+        byte[] encrypted = encrypt(ChunkedCipher.create(key, 100), testData(1000));
+        encrypted[ChunkedCipher.HEADER_SIZE + 150] ^= 1;
+        try {
+            decrypt(key, encrypted);
+            Assert.fail("should throw");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Chunk 1 could not be decrypted"));
+        }
+    }
+
+    @Test
+    public void truncatedAtChunkBoundaryFails() throws IOException {
+        SecretKey key = ChunkedCipher.decodeKey(TEST_KEY);
+        ChunkedCipher cipher = ChunkedCipher.create(key, 100);
+        byte[] encrypted = encrypt(cipher, testData(1000));
+        byte[] truncated = Arrays.copyOf(encrypted, (int) cipher.chunkOffset(5));
+        try {
+            decrypt(key, truncated);
+            Assert.fail("should throw");
+        } catch (EOFException e) {
+            Assert.assertEquals("Encrypted content is truncated", e.getMessage());
+        }
+    }
+
+    @Test
+    public void wrongKeyFails() throws IOException {
+        byte[] encrypted = encrypt(ChunkedCipher.create(ChunkedCipher.decodeKey(TEST_KEY), 100), testData(10));
+        SecretKey other = ChunkedCipher.decodeKey(BinaryUtils.toBase64(new byte[16]));
+        try {
+            decrypt(other, encrypted);
+            Assert.fail("should throw");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Chunk 0 could not be decrypted"));
+        }
+    }
+
+    @Test
+    public void rangeSourceDecryptsRanges() throws IOException {
+        SecretKey key = ChunkedCipher.decodeKey(TEST_KEY);
+        byte[] data = testData(1000);
+        ChunkedCipher.DecryptingRangeSource source = new ChunkedCipher.DecryptingRangeSource(
+                new rangeSource(encrypt(ChunkedCipher.create(key, 100), data)), key);
+
+        Assert.assertEquals(1000, source.getLength());
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 150, 420), readAll(source.open(150, 419)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 0, 100), readAll(source.open(0, 99)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 950, 1000), readAll(source.open(950, 2000)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidKey() {
+        ChunkedCipher.decodeKey(BinaryUtils.toBase64(new byte[10]));
+    }
+
+    private MemoryS3.plugin initPlugin(String format, String spoolMode) {
+        MemoryS3.plugin plugin = new MemoryS3.plugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStorageFormat(format);
+        plugin.setSpoolMode(spoolMode);
+        plugin.setCompressionBlockSize(4096);
+        plugin.setEncryptionKey(TEST_KEY);
+        plugin.setEncryptionChunkSize(1000);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private void storeAndRetrieve(MemoryS3.plugin plugin, byte[] data) throws IOException,
+            ExecutionFileStorageException {
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertEquals(ChunkedCipher.ALGORITHM, plugin.s3.metadata.getUserMetadata().get(
+                S3LogFileStoragePlugin.USER_METADATA_ENCRYPTION));
+        Assert.assertEquals(Integer.toString(data.length), plugin.s3.metadata.getUserMetadata().get(
+                S3LogFileStoragePlugin.USER_METADATA_LENGTH));
+
+        ByteArrayOutputStream retrieved = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", retrieved));
+        Assert.assertArrayEquals(data, retrieved.toByteArray());
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        Assert.assertEquals(3000, plugin.retrieveRange("rdlog", range, 5000, 3000));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 5000, 8000), range.toByteArray());
+    }
+
+    @Test
+    public void storeEncryptedStreaming() throws IOException, ExecutionFileStorageException {
+        MemoryS3.plugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN,
+                S3LogFileStoragePlugin.SPOOL_MODE_NEVER);
+        byte[] data = testData(20000);
+        storeAndRetrieve(plugin, data);
+        Assert.assertEquals(ChunkedCipher.create(ChunkedCipher.decodeKey(TEST_KEY), 1000).encryptedLength(
+                data.length), plugin.s3.content.length);
+    }
+
+    @Test
+    public void storeEncryptedSpooled() throws IOException, ExecutionFileStorageException {
+        storeAndRetrieve(initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN,
+                S3LogFileStoragePlugin.SPOOL_MODE_ALWAYS), testData(20000));
+    }
+
+    @Test
+    public void storeEncryptedBlockGzip() throws IOException, ExecutionFileStorageException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 20000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        MemoryS3.plugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_BLOCKGZIP, null);
+        byte[] data = sb.toString().getBytes();
+        storeAndRetrieve(plugin, data);
+        Assert.assertTrue(plugin.s3.content.length < data.length);
+    }
+
+    @Test
+    public void retrieveEncryptedWithoutKey() throws IOException, ExecutionFileStorageException {
+        MemoryS3.plugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, null);
+        plugin.store("rdlog", new ByteArrayInputStream(testData(100)), 100, new Date());
+        MemoryS3.plugin other = new MemoryS3.plugin();
+        other.setBucket("testBucket");
+        other.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        other.setPath("project/${job.project}/${job.execid}");
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        other.initialize(context);
+        other.s3.content = plugin.s3.content;
+        other.s3.metadata = plugin.s3.metadata;
+        try {
+            other.retrieve("rdlog", new ByteArrayOutputStream());
+            Assert.fail("should throw");
+        } catch (ExecutionFileStorageException e) {
+            Assert.assertEquals("Log is encrypted, but encryptionKey is not configured", e.getMessage());
+        }
+    }
+}
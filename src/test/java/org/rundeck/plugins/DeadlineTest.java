@@ -0,0 +1,220 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import com.dtolabs.utils.Streams;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class DeadlineTest {
+    private static final long STALL_MILLIS = 10000;
+
+    @After
+    public void tearDown() {
+        Deadline.shutdown();
+    }
+
+    /**
+     * Blocks reads until it is closed
+     */
+    static class stalledStream extends InputStream {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        public int read() throws IOException {
+            try {
+                closed.await(STALL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            throw new IOException("Connection closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * Never responds to puts, and sends the headers but no content for gets
+     */
+    static class stalledS3 extends MemoryS3 {
+        final CountDownLatch putReleased = new CountDownLatch(1);
+        final stalledStream content = new stalledStream();
+
+        public PutObjectResult putObject(PutObjectRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            try {
+                Streams.copyStream(request.getInputStream(), new ByteArrayOutputStream());
+                Thread.sleep(STALL_MILLIS);
+            } catch (IOException e) {
+                throw new AmazonClientException("read", e);
+            } catch (InterruptedException e) {
+                throw new AmazonClientException("interrupted", e);
+            } finally {
+                putReleased.countDown();
+            }
+            return new PutObjectResult();
+        }
+
+        public S3Object getObject(GetObjectRequest request) throws AmazonClientException, AmazonServiceException {
+            S3Object object = new S3Object();
+            object.setObjectMetadata(new ObjectMetadata());
+            object.setObjectContent(new S3ObjectInputStream(content, new HttpGet("http://localhost/")));
+            return object;
+        }
+    }
+
+    static class plugin extends S3LogFileStoragePlugin {
+        final stalledS3 s3 = new stalledS3();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    private static plugin initPlugin() {
+        plugin plugin = new plugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStoreTimeout(1);
+        plugin.setRetrieveTimeout(1);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    @Test
+    public void storeTimeout() throws Exception {
+        plugin plugin = initPlugin();
+        long start = System.currentTimeMillis();
+        try {
+            plugin.store("rdlog", new ByteArrayInputStream("log".getBytes()), 3, new Date());
+            Assert.fail("should time out");
+        } catch (ExecutionFileStorageTimeoutException expected) {
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < STALL_MILLIS / 2);
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+        //the stalled request was cancelled
+        Assert.assertTrue(plugin.s3.putReleased.await(STALL_MILLIS / 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void retrieveTimeout() throws Exception {
+        plugin plugin = initPlugin();
+        long start = System.currentTimeMillis();
+        try {
+            plugin.retrieve("rdlog", new ByteArrayOutputStream());
+            Assert.fail("should time out");
+        } catch (ExecutionFileStorageTimeoutException expected) {
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < STALL_MILLIS / 2);
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+        //the response was aborted
+        Assert.assertEquals(0, plugin.s3.content.closed.getCount());
+    }
+
+    @Test
+    public void otherFailuresAreNotTimeouts() throws Exception {
+        S3LogFileStoragePlugin plugin = initPlugin();
+        try {
+            plugin.getPresignedUrl("rdlog");
+        } catch (ExecutionFileStorageTimeoutException e) {
+            Assert.fail("should not time out");
+        } catch (ExecutionFileStorageException expected) {
+        }
+    }
+
+    @Test
+    public void callBeforeDeadline() throws IOException {
+        Deadline deadline = Deadline.start("test", 5000);
+        try {
+            String result = deadline.call(new Callable<String>() {
+                public String call() {
+                    return "result";
+                }
+            }, null, TransferExecutors.getShared());
+            Assert.assertEquals("result", result);
+            Assert.assertFalse(deadline.isExpired());
+        } finally {
+            deadline.finish();
+        }
+        Assert.assertSame(Deadline.NONE, Deadline.start("test", 0));
+    }
+
+    @Test
+    public void lateResultIsDiscarded() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch discarded = new CountDownLatch(1);
+        Deadline deadline = Deadline.start("test", 100);
+        try {
+            deadline.call(new Callable<String>() {
+                public String call() {
+                    //ignores interrupts, like a blocked socket
+                    while (true) {
+                        try {
+                            release.await();
+                            return "late";
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+            }, new Deadline.Discard<String>() {
+                public void discard(String result) {
+                    Assert.assertEquals("late", result);
+                    discarded.countDown();
+                }
+            }, TransferExecutors.getShared());
+            Assert.fail("should time out");
+        } catch (Deadline.Exceeded expected) {
+            Assert.assertTrue(deadline.isExpired());
+        } finally {
+            deadline.finish();
+        }
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+        release.countDown();
+        Assert.assertTrue(discarded.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void streamFailsAfterDeadline() throws Exception {
+        stalledStream stalled = new stalledStream();
+        Deadline deadline = Deadline.start("test", 100);
+        InputStream stream = deadline.wrap(stalled);
+        deadline.onExpiry(stalled);
+        try {
+            stream.read();
+            Assert.fail("should time out");
+        } catch (Deadline.Exceeded expected) {
+        } finally {
+            deadline.finish();
+        }
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+}
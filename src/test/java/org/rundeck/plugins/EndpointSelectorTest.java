@@ -0,0 +1,226 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+@RunWith(JUnit4.class)
+public class EndpointSelectorTest {
+
+    @After
+    public void tearDown() {
+        EndpointSelector.shutdownAll();
+    }
+
+    /**
+     * Responds to HEAD requests after a delay, or fails without a response
+     */
+    static class endpointS3 extends MemoryS3 {
+        String endpoint;
+        S3ClientOptions options;
+        long delayMillis;
+        boolean down;
+        int heads;
+
+        public void setEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public void setS3ClientOptions(S3ClientOptions options) {
+            this.options = options;
+        }
+
+        public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            heads++;
+            if (down) {
+                throw new AmazonClientException("Connection refused");
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new AmazonClientException("interrupted", e);
+            }
+            if (null == metadata) {
+                AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+                notFound.setStatusCode(404);
+                throw notFound;
+            }
+            return metadata;
+        }
+    }
+
+    private static EndpointSelector.Endpoint endpoint(String url, long delayMillis, boolean down) {
+        endpointS3 s3 = new endpointS3();
+        s3.delayMillis = delayMillis;
+        s3.down = down;
+        return new EndpointSelector.Endpoint(url, s3);
+    }
+
+    @Test
+    public void probeSelectsFastestHealthy() {
+        EndpointSelector.Endpoint slow = endpoint("slow", 200, false);
+        EndpointSelector.Endpoint fast = endpoint("fast", 10, false);
+        EndpointSelector.Endpoint down = endpoint("down", 0, true);
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(down, slow, fast), "bucket");
+        Assert.assertEquals("down", selector.getCurrent());
+
+        selector.probe();
+
+        Assert.assertEquals("fast", selector.getCurrent());
+        Assert.assertFalse(down.healthy);
+        Assert.assertTrue(slow.latencyNanos > fast.latencyNanos);
+    }
+
+    @Test
+    public void requestFailureSelectsNextEndpoint() {
+        EndpointSelector.Endpoint slow = endpoint("slow", 100, false);
+        EndpointSelector.Endpoint fast = endpoint("fast", 0, false);
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(slow, fast), "bucket");
+        selector.probe();
+        Assert.assertEquals("fast", selector.getCurrent());
+
+        ((endpointS3) fast.client).down = true;
+        try {
+            selector.getClient().getObjectMetadata(new GetObjectMetadataRequest("bucket", "key"));
+            Assert.fail("should fail");
+        } catch (AmazonServiceException e) {
+            Assert.fail("should fail without a response");
+        } catch (AmazonClientException expected) {
+            Assert.assertEquals("Connection refused", expected.getMessage());
+        }
+        Assert.assertEquals("slow", selector.getCurrent());
+        //an error response does not change the endpoint
+        try {
+            selector.getClient().getObjectMetadata(new GetObjectMetadataRequest("bucket", "key"));
+            Assert.fail("should fail");
+        } catch (AmazonServiceException expected) {
+            Assert.assertEquals(404, expected.getStatusCode());
+        }
+        Assert.assertEquals("slow", selector.getCurrent());
+
+        ((endpointS3) fast.client).down = false;
+        selector.probe();
+        Assert.assertEquals("fast", selector.getCurrent());
+    }
+
+    @Test
+    public void interruptedRequestKeepsEndpoint() throws Exception {
+        EndpointSelector.Endpoint slow = endpoint("slow", 100, false);
+        EndpointSelector.Endpoint fast = endpoint("fast", 0, false);
+        final EndpointSelector selector = new EndpointSelector(Arrays.asList(slow, fast), "bucket");
+        selector.probe();
+        Assert.assertEquals("fast", selector.getCurrent());
+
+        //a hedged or timed out request is cancelled while it waits for the endpoint
+        ((endpointS3) fast.client).delayMillis = 5000;
+        Future<?> request = TransferExecutors.getShared().submit(new Callable<Object>() {
+            public Object call() {
+                return selector.getClient().getObjectMetadata(new GetObjectMetadataRequest("bucket", "key"));
+            }
+        });
+        Thread.sleep(100);
+        request.cancel(true);
+        try {
+            request.get();
+            Assert.fail("should be cancelled");
+        } catch (CancellationException expected) {
+        }
+        Thread.sleep(100);
+        Assert.assertTrue(fast.healthy);
+        Assert.assertEquals("fast", selector.getCurrent());
+
+        Assert.assertTrue(EndpointSelector.isInterrupted(new AmazonClientException("interrupted",
+                new InterruptedException())));
+        Assert.assertFalse(EndpointSelector.isInterrupted(new AmazonClientException("timed out",
+                new java.net.SocketTimeoutException())));
+    }
+
+    @Test
+    public void unhealthyEndpointIsRetriedWithoutProbes() throws Exception {
+        EndpointSelector.Endpoint first = endpoint("first", 0, false);
+        EndpointSelector.Endpoint second = endpoint("second", 0, false);
+        EndpointSelector selector = new EndpointSelector(Arrays.asList(first, second), "bucket");
+        selector.setRetryUnhealthyMillis(100);
+        Assert.assertEquals("first", selector.getCurrent());
+
+        ((endpointS3) first.client).down = true;
+        try {
+            selector.getClient().getObjectMetadata(new GetObjectMetadataRequest("bucket", "key"));
+            Assert.fail("should fail");
+        } catch (AmazonClientException expected) {
+        }
+        Assert.assertEquals("second", selector.getCurrent());
+
+        //the first endpoint recovers, and is selected again after the backoff
+        ((endpointS3) first.client).down = false;
+        Thread.sleep(150);
+        try {
+            selector.getClient().getObjectMetadata(new GetObjectMetadataRequest("bucket", "key"));
+        } catch (AmazonServiceException ignored) {
+        }
+        Assert.assertTrue(first.healthy);
+        Assert.assertEquals("first", selector.getCurrent());
+    }
+
+    static class plugin extends S3LogFileStoragePlugin {
+        final List<endpointS3> clients = new ArrayList<endpointS3>();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return createAmazonS3Client();
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            endpointS3 s3 = new endpointS3();
+            clients.add(s3);
+            return s3;
+        }
+    }
+
+    @Test
+    public void pluginUsesEndpoints() throws Exception {
+        plugin plugin = new plugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setEndpoints("https://s3.dualstack.us-east-1.amazonaws.com, http://minio.local:9000");
+        plugin.setPathStyleAccess(true);
+        plugin.setEndpointProbeInterval(0);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+
+        Assert.assertEquals(2, plugin.clients.size());
+        Assert.assertEquals("https://s3.dualstack.us-east-1.amazonaws.com", plugin.clients.get(0).endpoint);
+        Assert.assertEquals("http://minio.local:9000", plugin.clients.get(1).endpoint);
+        for (endpointS3 client : plugin.clients) {
+            Assert.assertTrue(client.options.isPathStyleAccess());
+            Assert.assertEquals(1, client.heads);
+        }
+        byte[] data = "log content".getBytes();
+        plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", output));
+        Assert.assertArrayEquals(data, output.toByteArray());
+    }
+}
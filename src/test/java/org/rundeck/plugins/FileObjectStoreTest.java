@@ -0,0 +1,301 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import com.dtolabs.utils.Streams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class FileObjectStoreTest {
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("file-object-store-test", "");
+        root.delete();
+        root.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] testData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Streams.copyStream(in, baos);
+        in.close();
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void putAndGet() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        byte[] data = testData(1000);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.length);
+        metadata.setContentType("text/plain");
+        metadata.addUserMetadata("rundeck.execid", "123");
+
+        String etag = store.put("bucket", "a/b/c.rdlog", new ByteArrayInputStream(data), metadata);
+
+        Assert.assertEquals(32, etag.length());
+        ObjectMetadata head = store.head("bucket", "a/b/c.rdlog");
+        Assert.assertEquals(1000, head.getContentLength());
+        Assert.assertEquals("text/plain", head.getContentType());
+        Assert.assertEquals(etag, head.getETag());
+        Assert.assertEquals("123", head.getUserMetadata().get("rundeck.execid"));
+        Assert.assertNotNull(head.getLastModified());
+
+        S3Object object = store.get("bucket", "a/b/c.rdlog");
+        Assert.assertEquals("123", object.getObjectMetadata().getUserMetadata().get("rundeck.execid"));
+        Assert.assertArrayEquals(data, readAll(object.getObjectContent()));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, 200), readAll(store.getRange("bucket", "a/b/c.rdlog",
+                100, 199)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 900, 1000), readAll(store.getRange("bucket",
+                "a/b/c.rdlog", 900, 5000)));
+        //no temporary files are left behind
+        Assert.assertEquals(0, new File(root, FileObjectStore.TEMP_DIR).list().length);
+    }
+
+    @Test
+    public void replace() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        ObjectMetadata first = new ObjectMetadata();
+        first.addUserMetadata("version", "1");
+        store.put("bucket", "key", new ByteArrayInputStream(testData(100)), first);
+        ObjectMetadata second = new ObjectMetadata();
+        store.put("bucket", "key", new ByteArrayInputStream(testData(50)), second);
+
+        ObjectMetadata head = store.head("bucket", "key");
+        Assert.assertEquals(50, head.getContentLength());
+        Assert.assertNull(head.getUserMetadata().get("version"));
+    }
+
+    @Test
+    public void missing() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        assertMissing(store);
+        Assert.assertEquals(Collections.<String>emptyList(), store.list("bucket", ""));
+    }
+
+    @Test
+    public void missingInS3() throws IOException {
+        assertMissing(new S3ObjectStore(new MemoryS3()));
+    }
+
+    private static void assertMissing(ObjectStore store) throws IOException {
+        Assert.assertNull(store.head("bucket", "missing"));
+        try {
+            store.get("bucket", "missing");
+            Assert.fail("should throw");
+        } catch (FileNotFoundException expected) {
+        }
+        try {
+            store.getRange("bucket", "missing", 0, 10);
+            Assert.fail("should throw");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void listPagesInKeyOrder() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        List<String> keys = new ArrayList<String>();
+        for (String dir : new String[]{"logs/a", "logs/a-b", "logs/a0", "logs/b/c", "other"}) {
+            for (int i = 0; i < 7; i++) {
+                keys.add(dir + "/" + i + ".rdlog");
+            }
+        }
+        keys.add("logs/a.rdlog");
+        keys.add("logs-1.rdlog");
+        for (String key : keys) {
+            store.put("bucket", key, new ByteArrayInputStream(testData(10)), new ObjectMetadata());
+        }
+        //an empty directory left by deletes
+        new File(root, "bucket/logs/aa").mkdirs();
+
+        for (String prefix : new String[]{"", "logs/", "logs/a", "logs/b/c/"}) {
+            for (String delimiter : new String[]{null, "/"}) {
+                List<String> expected = expectedListing(keys, prefix, delimiter);
+                for (int maxKeys : new int[]{1, 3, 1000}) {
+                    List<String> listed = new ArrayList<String>();
+                    String marker = null;
+                    ObjectListing listing;
+                    do {
+                        listing = store.listPage("bucket", prefix, delimiter, marker, maxKeys);
+                        Assert.assertTrue(listing.getObjectSummaries().size() + listing.getCommonPrefixes().size()
+                                <= maxKeys);
+                        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                            listed.add(summary.getKey());
+                        }
+                        listed.addAll(listing.getCommonPrefixes());
+                        marker = listing.getNextMarker();
+                    } while (listing.isTruncated());
+                    Collections.sort(listed);
+                    Assert.assertEquals(prefix + " " + delimiter + " " + maxKeys, expected, listed);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the keys and common prefixes S3 would list
+     */
+    private static List<String> expectedListing(List<String> keys, String prefix, String delimiter) {
+        SortedSet<String> listed = new TreeSet<String>();
+        for (String key : keys) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            int index = null != delimiter ? key.indexOf(delimiter, prefix.length()) : -1;
+            listed.add(index >= 0 ? key.substring(0, index + delimiter.length()) : key);
+        }
+        return new ArrayList<String>(listed);
+    }
+
+    @Test
+    public void listAndDelete() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        for (String key : new String[]{"logs/b/2.rdlog", "logs/a/1.rdlog", "other/3.rdlog"}) {
+            store.put("bucket", key, new ByteArrayInputStream(testData(10)), new ObjectMetadata());
+        }
+        store.put("bucket2", "logs/4.rdlog", new ByteArrayInputStream(testData(10)), new ObjectMetadata());
+
+        Assert.assertEquals(Arrays.asList("logs/a/1.rdlog", "logs/b/2.rdlog"), store.list("bucket", "logs/"));
+        Assert.assertEquals(3, store.list("bucket", null).size());
+
+        store.delete("bucket", "logs/a/1.rdlog");
+        store.delete("bucket", "logs/missing.rdlog");
+        Assert.assertNull(store.head("bucket", "logs/a/1.rdlog"));
+        Assert.assertEquals(Arrays.asList("logs/b/2.rdlog"), store.list("bucket", "logs/"));
+    }
+
+    @Test
+    public void invalidKeys() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        for (String key : new String[]{"../escape", "a/../../escape", "/absolute", "a//b", "dir/"}) {
+            try {
+                store.head("bucket", key);
+                Assert.fail("should throw: " + key);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        for (String bucket : new String[]{"..", FileObjectStore.METADATA_DIR, "a/b", ""}) {
+            try {
+                store.head(bucket, "key");
+                Assert.fail("should throw: " + bucket);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private S3LogFileStoragePlugin initPlugin(String format, String encryptionKey) {
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+        plugin.setFilesystemRoot(root.getAbsolutePath());
+        plugin.setBucket("logs");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStorageFormat(format);
+        plugin.setCompressionBlockSize(4096);
+        plugin.setEncryptionKey(encryptionKey);
+        plugin.setDeduplicate(true);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private void storeAndRetrieve(S3LogFileStoragePlugin plugin) throws IOException, ExecutionFileStorageException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 20000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        byte[] data = sb.toString().getBytes();
+        Assert.assertFalse(plugin.isAvailable("rdlog"));
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertTrue(plugin.isAvailable("rdlog"));
+        Assert.assertTrue(new File(root, "logs/project/testproject/testexecid.rdlog").isFile());
+
+        ByteArrayOutputStream retrieved = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", retrieved));
+        Assert.assertArrayEquals(data, retrieved.toByteArray());
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        Assert.assertEquals(3000, plugin.retrieveRange("rdlog", range, 5000, 3000));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 5000, 8000), range.toByteArray());
+    }
+
+    @Test
+    public void pluginPlain() throws Exception {
+        S3LogFileStoragePlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, null);
+        storeAndRetrieve(plugin);
+
+        //unchanged content is not written again
+        File file = new File(root, "logs/project/testproject/testexecid.rdlog");
+        long modified = file.lastModified() - 10000;
+        file.setLastModified(modified);
+        ByteArrayOutputStream retrieved = new ByteArrayOutputStream();
+        plugin.retrieve("rdlog", retrieved);
+        byte[] data = retrieved.toByteArray();
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertEquals(modified, file.lastModified());
+    }
+
+    @Test
+    public void pluginBlockGzipEncrypted() throws Exception {
+        storeAndRetrieve(initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_BLOCKGZIP, ChunkedCipherTest.TEST_KEY));
+    }
+
+    @Test
+    public void pluginPresignNotSupported() throws Exception {
+        S3LogFileStoragePlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, null);
+        try {
+            plugin.getPresignedUrl("rdlog");
+            Assert.fail("should throw");
+        } catch (ExecutionFileStorageException e) {
+            Assert.assertEquals("Pre-signed URLs require the s3 backend", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pluginMissingRoot() {
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+        plugin.setFilesystemRoot(new File(root, "missing").getAbsolutePath());
+        plugin.setBucket("logs");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.initialize(new HashMap<String, Object>());
+    }
+}
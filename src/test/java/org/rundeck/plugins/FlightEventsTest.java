@@ -0,0 +1,192 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.handlers.RequestHandler;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class FlightEventsTest {
+
+    /**
+     * Minimal reflective access to a JFR recording, as the tests compile for Java versions without JFR
+     */
+    class testRecording {
+        final Object recording;
+
+        testRecording() throws Exception {
+            recording = Class.forName("jdk.jfr.Recording").newInstance();
+            for (String name : new String[]{FlightEvents.OPERATION, FlightEvents.REQUEST, FlightEvents.RETRY,
+                    FlightEvents.WAIT}) {
+                recording.getClass().getMethod("enable", String.class).invoke(recording, name);
+            }
+            recording.getClass().getMethod("start").invoke(recording);
+        }
+
+        /**
+         * Stop the recording and return the values of the named fields of each event
+         */
+        List<Map<String, Object>> stop(String eventName, String... fields) throws Exception {
+            recording.getClass().getMethod("stop").invoke(recording);
+            File file = File.createTempFile("flight-events-test", ".jfr");
+            file.deleteOnExit();
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Object filePath = File.class.getMethod("toPath").invoke(file);
+            recording.getClass().getMethod("dump", path).invoke(recording, filePath);
+            recording.getClass().getMethod("close").invoke(recording);
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents",
+                    path).invoke(null, filePath);
+            List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+            for (Object event : events) {
+                Object type = event.getClass().getMethod("getEventType").invoke(event);
+                if (!eventName.equals(type.getClass().getMethod("getName").invoke(type))) {
+                    continue;
+                }
+                Method getValue = event.getClass().getMethod("getValue", String.class);
+                Map<String, Object> values = new HashMap<String, Object>();
+                for (String field : fields) {
+                    values.put(field, getValue.invoke(event, field));
+                }
+                result.add(values);
+            }
+            return result;
+        }
+    }
+
+    @Before
+    public void requireFlightRecorder() {
+        boolean jfr;
+        try {
+            Class.forName("jdk.jfr.consumer.RecordingFile");
+            jfr = true;
+        } catch (ClassNotFoundException e) {
+            jfr = false;
+        }
+        Assume.assumeTrue(jfr);
+        Assert.assertTrue(FlightEvents.isAvailable());
+    }
+
+    private MemoryS3.plugin initPlugin() {
+        MemoryS3.plugin plugin = new MemoryS3.plugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    @Test
+    public void operationEvents() throws Exception {
+        MemoryS3.plugin plugin = initPlugin();
+        testRecording recording = new testRecording();
+
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[1234]), 1234, new Date());
+        plugin.retrieve("rdlog", new java.io.ByteArrayOutputStream());
+
+        List<Map<String, Object>> events = recording.stop(FlightEvents.OPERATION, "operation", "bucket", "key",
+                "bytes", "status");
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("store", events.get(0).get("operation"));
+        Assert.assertEquals("testBucket", events.get(0).get("bucket"));
+        Assert.assertEquals("project/testproject/testexecid.rdlog", events.get(0).get("key"));
+        Assert.assertEquals(1234L, events.get(0).get("bytes"));
+        Assert.assertEquals("OK", events.get(0).get("status"));
+        Assert.assertEquals("retrieve", events.get(1).get("operation"));
+        Assert.assertEquals(1234L, events.get(1).get("bytes"));
+    }
+
+    @Test
+    public void failedOperationEvent() throws Exception {
+        MemoryS3.plugin plugin = initPlugin();
+        testRecording recording = new testRecording();
+        try {
+            plugin.retrieveRange("rdlog", new java.io.ByteArrayOutputStream(), 0, 10);
+        } catch (RuntimeException ignored) {
+            //no object stored
+        } catch (IOException ignored) {
+        } catch (ExecutionFileStorageException ignored) {
+        }
+
+        List<Map<String, Object>> events = recording.stop(FlightEvents.OPERATION, "operation", "status");
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("retrieveRange", events.get(0).get("operation"));
+        Assert.assertEquals("failed", events.get(0).get("status"));
+    }
+
+    @Test
+    public void requestAndRetryEvents() throws Exception {
+        RequestHandler handler = FlightEvents.getRequestHandler();
+        testRecording recording = new testRecording();
+
+        GetObjectMetadataRequest original = new GetObjectMetadataRequest("testBucket", "some/key");
+        DefaultRequest<GetObjectMetadataRequest> request = new DefaultRequest<GetObjectMetadataRequest>(original,
+                "Amazon S3");
+        request.setHttpMethod(HttpMethodName.HEAD);
+        handler.beforeRequest(request);
+        TimingInfo timing = new TimingInfo();
+        timing.setCounter(AWSRequestMetrics.Field.AttemptCount.name(), 2);
+        timing.addSubMeasurement(AWSRequestMetrics.Field.HttpRequestTime.name(), new TimingInfo(0, 30));
+        timing.addSubMeasurement(AWSRequestMetrics.Field.RetryPauseTime.name(), new TimingInfo(30, 130));
+        timing.addSubMeasurement(AWSRequestMetrics.Field.HttpRequestTime.name(), new TimingInfo(130, 150));
+        handler.afterResponse(request, null, timing);
+
+        DefaultRequest<GetObjectMetadataRequest> failed = new DefaultRequest<GetObjectMetadataRequest>(original,
+                "Amazon S3");
+        failed.setHttpMethod(HttpMethodName.HEAD);
+        handler.beforeRequest(failed);
+        AmazonServiceException error = new AmazonServiceException("not found");
+        error.setStatusCode(404);
+        error.setErrorCode("NoSuchKey");
+        handler.afterError(failed, error);
+
+        List<Map<String, Object>> events = recording.stop(FlightEvents.REQUEST, "operation", "method", "bucket",
+                "key", "status", "attempts");
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("GetObjectMetadata", events.get(0).get("operation"));
+        Assert.assertEquals("HEAD", events.get(0).get("method"));
+        Assert.assertEquals("testBucket", events.get(0).get("bucket"));
+        Assert.assertEquals("some/key", events.get(0).get("key"));
+        Assert.assertEquals("OK", events.get(0).get("status"));
+        Assert.assertEquals(2, events.get(0).get("attempts"));
+        Assert.assertEquals("404 NoSuchKey", events.get(1).get("status"));
+    }
+
+    @Test
+    public void retryEvents() throws Exception {
+        RequestHandler handler = FlightEvents.getRequestHandler();
+        testRecording recording = new testRecording();
+
+        DefaultRequest<GetObjectMetadataRequest> request = new DefaultRequest<GetObjectMetadataRequest>(
+                new GetObjectMetadataRequest("testBucket", "some/key"), "Amazon S3");
+        handler.beforeRequest(request);
+        TimingInfo timing = new TimingInfo();
+        timing.addSubMeasurement(AWSRequestMetrics.Field.RetryPauseTime.name(), new TimingInfo(30, 130));
+        handler.afterResponse(request, null, timing);
+
+        List<Map<String, Object>> events = recording.stop(FlightEvents.RETRY, "key", "attempt", "pauseTime");
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("some/key", events.get(0).get("key"));
+        Assert.assertEquals(2, events.get(0).get("attempt"));
+    }
+}
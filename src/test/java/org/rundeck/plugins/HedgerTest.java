@@ -0,0 +1,118 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class HedgerTest {
+
+    /**
+     * First call is slow and, like a blocking http request, ignores interruption. Later calls are fast
+     */
+    class slowFirstRequest implements Callable<String> {
+        final AtomicInteger calls = new AtomicInteger();
+        final long slowMillis;
+
+        slowFirstRequest(long slowMillis) {
+            this.slowMillis = slowMillis;
+        }
+
+        public String call() throws Exception {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                long end = System.currentTimeMillis() + slowMillis;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(Math.max(1, end - System.currentTimeMillis()));
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            return "response" + call;
+        }
+    }
+
+    class countingDiscard implements Hedger.Discard<String> {
+        final CountDownLatch discarded = new CountDownLatch(1);
+        String result;
+
+        public void discard(String result) {
+            this.result = result;
+            discarded.countDown();
+        }
+    }
+
+    private static Hedger warmHedger() {
+        Hedger hedger = new Hedger("test");
+        for (int i = 0; i < Hedger.MIN_SAMPLES; i++) {
+            hedger.record(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        return hedger;
+    }
+
+    @Test
+    public void noHedgeWithoutSamples() {
+        Hedger hedger = new Hedger("test");
+        slowFirstRequest request = new slowFirstRequest(100);
+        Assert.assertEquals(-1, hedger.getDelay(95));
+        Assert.assertEquals("response1", hedger.call(request, null, 95, 1.0, TransferExecutors.getShared()));
+        Assert.assertEquals(1, request.calls.get());
+    }
+
+    @Test
+    public void delayIsPercentile() {
+        Hedger hedger = new Hedger("test");
+        for (int i = 1; i <= 100; i++) {
+            hedger.record(i);
+        }
+        Assert.assertEquals(95, hedger.getDelay(95));
+        Assert.assertEquals(50, hedger.getDelay(50));
+        Assert.assertEquals(100, hedger.getDelay(100));
+    }
+
+    @Test
+    public void slowRequestIsHedged() throws InterruptedException {
+        Hedger hedger = warmHedger();
+        slowFirstRequest request = new slowFirstRequest(500);
+        countingDiscard discard = new countingDiscard();
+        long hedges = S3LogMetrics.getInstance().getHedgedRequests();
+
+        Assert.assertEquals("response2", hedger.call(request, discard, 95, 1.0, TransferExecutors.getShared()));
+        Assert.assertEquals(2, request.calls.get());
+        Assert.assertEquals(hedges + 1, S3LogMetrics.getInstance().getHedgedRequests());
+        //the slow response is released when it arrives
+        Assert.assertTrue(discard.discarded.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("response1", discard.result);
+    }
+
+    @Test
+    public void hedgeRateIsCapped() {
+        Hedger hedger = warmHedger();
+        slowFirstRequest request = new slowFirstRequest(100);
+        Assert.assertEquals("response1", hedger.call(request, null, 95, 0.0, TransferExecutors.getShared()));
+        Assert.assertEquals(1, request.calls.get());
+    }
+
+    @Test
+    public void failureBeforeHedgeIsThrown() {
+        Hedger hedger = warmHedger();
+        try {
+            hedger.call(new Callable<String>() {
+                public String call() {
+                    throw new AmazonClientException("failed");
+                }
+            }, null, 95, 1.0, TransferExecutors.getShared());
+            Assert.fail("should throw");
+        } catch (AmazonClientException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+    }
+}
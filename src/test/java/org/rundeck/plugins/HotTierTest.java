@@ -0,0 +1,278 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class HotTierTest {
+    private static final long DAY = 24 * 3600 * 1000L;
+    private File hotRoot;
+    private File coldRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        hotRoot = createDirectory("hot-tier-test");
+        coldRoot = createDirectory("cold-tier-test");
+    }
+
+    @After
+    public void tearDown() {
+        HotTierMover.getShared().shutdown();
+        delete(hotRoot);
+        delete(coldRoot);
+    }
+
+    private static File createDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Stores new content in the hot tier while an object is being moved
+     */
+    static class replacingStore extends FileObjectStore {
+        final FileObjectStore hot;
+
+        replacingStore(File root, FileObjectStore hot) {
+            super(root);
+            this.hot = hot;
+        }
+
+        public String put(String bucket, String key, InputStream content, ObjectMetadata metadata) throws
+                IOException {
+            String etag = super.put(bucket, key, content, metadata);
+            hot.put(bucket, key, new ByteArrayInputStream("replaced".getBytes()), new ObjectMetadata());
+            return etag;
+        }
+    }
+
+    /**
+     * Records single and multipart uploads
+     */
+    static class multipartS3 extends MemoryS3 {
+        int puts;
+        int parts;
+        CompleteMultipartUploadRequest complete;
+
+        public PutObjectResult putObject(PutObjectRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            puts++;
+            return super.putObject(request);
+        }
+
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request)
+                throws AmazonClientException, AmazonServiceException {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("uploadId");
+            return result;
+        }
+
+        public synchronized UploadPartResult uploadPart(UploadPartRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            parts++;
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        }
+
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) throws
+                AmazonClientException, AmazonServiceException {
+            complete = request;
+            return new CompleteMultipartUploadResult();
+        }
+    }
+
+    private S3LogFileStoragePlugin initPlugin() {
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+        plugin.setFilesystemRoot(coldRoot.getAbsolutePath());
+        plugin.setHotTierDirectory(hotRoot.getAbsolutePath());
+        plugin.setBucket("logs");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private static void put(FileObjectStore store, String key, int size, long lastModified, File root) throws
+            IOException {
+        store.put("logs", key, new ByteArrayInputStream(new byte[size]), new ObjectMetadata());
+        new File(root, "logs/" + key).setLastModified(lastModified);
+    }
+
+    @Test
+    public void pluginStoresHotThenReadsCold() throws Exception {
+        S3LogFileStoragePlugin plugin = initPlugin();
+        byte[] data = "line 1\nline 2\nline 3\n".getBytes();
+        File hotFile = new File(hotRoot, "logs/project/testproject/testexecid.rdlog");
+        File coldFile = new File(coldRoot, "logs/project/testproject/testexecid.rdlog");
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertTrue(hotFile.isFile());
+        Assert.assertFalse(coldFile.exists());
+        Assert.assertTrue(plugin.isAvailable("rdlog"));
+        ByteArrayOutputStream retrieved = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", retrieved));
+        Assert.assertArrayEquals(data, retrieved.toByteArray());
+
+        //not old enough yet
+        Assert.assertEquals(0, HotTierMover.getShared().moveAll(System.currentTimeMillis()));
+        Assert.assertEquals(1, HotTierMover.getShared().moveAll(System.currentTimeMillis() + 3 * DAY));
+        Assert.assertFalse(hotFile.exists());
+        Assert.assertTrue(coldFile.isFile());
+
+        Assert.assertTrue(plugin.isAvailable("rdlog"));
+        retrieved = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", retrieved));
+        Assert.assertArrayEquals(data, retrieved.toByteArray());
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        Assert.assertEquals(6, plugin.retrieveRange("rdlog", range, 7, 6));
+        Assert.assertEquals("line 2", range.toString());
+        Assert.assertEquals("testexecid", new FileObjectStore(coldRoot).head("logs",
+                "project/testproject/testexecid.rdlog").getUserMetadata().get("rundeck.execid"));
+    }
+
+    @Test
+    public void moveOldestOverSize() throws IOException {
+        FileObjectStore hot = new FileObjectStore(hotRoot);
+        FileObjectStore cold = new FileObjectStore(coldRoot);
+        long now = System.currentTimeMillis();
+        put(hot, "a", 100, now - 3000, hotRoot);
+        put(hot, "b", 100, now - 1000, hotRoot);
+        put(hot, "c", 100, now - 2000, hotRoot);
+
+        Assert.assertEquals(2, HotTierMover.move(new HotTierMover.Tier(hot, cold, "logs", DAY, 150), now));
+        Assert.assertEquals(Arrays.asList("b"), hot.list("logs", null));
+        Assert.assertEquals(Arrays.asList("a", "c"), cold.list("logs", null));
+
+        Assert.assertEquals(0, HotTierMover.move(new HotTierMover.Tier(hot, cold, "logs", 0, 0), now + 10 * DAY));
+        Assert.assertEquals(1, HotTierMover.move(new HotTierMover.Tier(hot, cold, "logs", DAY, 0), now + DAY));
+        Assert.assertEquals(Collections.<String>emptyList(), hot.list("logs", null));
+    }
+
+    @Test
+    public void replacedWhileMoving() throws IOException {
+        FileObjectStore hot = new FileObjectStore(hotRoot);
+        FileObjectStore cold = new replacingStore(coldRoot, hot);
+        long now = System.currentTimeMillis();
+        put(hot, "a", 100, now - 2 * DAY, hotRoot);
+
+        Assert.assertEquals(0, HotTierMover.move(new HotTierMover.Tier(hot, cold, "logs", DAY, 0), now));
+        Assert.assertEquals(8, hot.head("logs", "a").getContentLength());
+        Assert.assertEquals(100, cold.head("logs", "a").getContentLength());
+    }
+
+    @Test
+    public void deleteIfUnchangedKeepsNewContent() throws IOException {
+        FileObjectStore hot = new FileObjectStore(hotRoot);
+        put(hot, "a", 100, System.currentTimeMillis() - DAY, hotRoot);
+        ObjectMetadata moved = hot.head("logs", "a");
+        FileObjectStore.Snapshot snapshot = hot.snapshot("logs", "a");
+        hot.put("logs", "a", new ByteArrayInputStream("replaced".getBytes()), new ObjectMetadata());
+
+        Assert.assertEquals(100, snapshot.file.length());
+        snapshot.delete();
+        Assert.assertFalse(hot.deleteIfUnchanged("logs", "a", moved));
+        Assert.assertEquals(8, hot.head("logs", "a").getContentLength());
+        Assert.assertTrue(hot.deleteIfUnchanged("logs", "a", hot.head("logs", "a")));
+        Assert.assertNull(hot.head("logs", "a"));
+    }
+
+    @Test
+    public void moveLargeLogAsMultipart() throws IOException {
+        FileObjectStore hot = new FileObjectStore(hotRoot);
+        multipartS3 s3 = new multipartS3();
+        long now = System.currentTimeMillis();
+        put(hot, "a", 300, now - 2 * DAY, hotRoot);
+        put(hot, "b", 50, now - 2 * DAY, hotRoot);
+        PartSizer sizer = new PartSizer(new PartSizer.Stats());
+        sizer.setMinPartSize(128);
+        sizer.setMaxPartSize(128);
+
+        Assert.assertEquals(2, HotTierMover.move(new HotTierMover.Tier(hot, new S3ObjectStore(s3), "logs", DAY, 0,
+                100, sizer), now));
+        Assert.assertEquals(3, s3.parts);
+        Assert.assertEquals(3, s3.complete.getPartETags().size());
+        Assert.assertEquals(1, s3.puts);
+        Assert.assertEquals(Collections.<String>emptyList(), hot.list("logs", null));
+        //the snapshots were deleted
+        Assert.assertEquals(0, new File(hotRoot, FileObjectStore.TEMP_DIR).list().length);
+    }
+
+    @Test
+    public void tieredReads() throws IOException {
+        FileObjectStore hot = new FileObjectStore(hotRoot);
+        FileObjectStore cold = new FileObjectStore(coldRoot);
+        TieredObjectStore store = new TieredObjectStore(hot, cold);
+        cold.put("logs", "a", new ByteArrayInputStream("cold".getBytes()), new ObjectMetadata());
+        store.put("logs", "b", new ByteArrayInputStream("hot".getBytes()), new ObjectMetadata());
+
+        Assert.assertNull(cold.head("logs", "b"));
+        Assert.assertEquals(4, store.head("logs", "a").getContentLength());
+        Assert.assertEquals(3, store.head("logs", "b").getContentLength());
+        Assert.assertEquals(Arrays.asList("a", "b"), store.list("logs", null));
+        InputStream range = store.getRange("logs", "a", 1, 2);
+        Assert.assertEquals('o', range.read());
+        range.close();
+        store.delete("logs", "a");
+        Assert.assertNull(store.head("logs", "a"));
+    }
+
+    @Test
+    public void invalidConfigurationRegistersNoTier() throws IOException {
+        put(new FileObjectStore(hotRoot), "project/testproject/old.rdlog", 10, System.currentTimeMillis(), hotRoot);
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+        plugin.setFilesystemRoot(coldRoot.getAbsolutePath());
+        plugin.setHotTierDirectory(hotRoot.getAbsolutePath());
+        plugin.setBucket("logs");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setHedgePercentile(0);
+        try {
+            plugin.initialize(new HashMap<String, Object>());
+            Assert.fail("should throw");
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertEquals(0, HotTierMover.getShared().moveAll(System.currentTimeMillis() + 3 * DAY));
+        Assert.assertNull(new FileObjectStore(coldRoot).head("logs", "project/testproject/old.rdlog"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hotTierIsBackendRoot() {
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+        plugin.setFilesystemRoot(coldRoot.getAbsolutePath());
+        plugin.setHotTierDirectory(coldRoot.getAbsolutePath());
+        plugin.setBucket("logs");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.initialize(new HashMap<String, Object>());
+    }
+}
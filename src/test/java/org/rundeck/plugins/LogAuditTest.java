@@ -0,0 +1,152 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class LogAuditTest {
+    private static final String TEMPLATE = "project/${job.project}/${job.execid}";
+    private File root;
+    private FileObjectStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("log-audit-test", "");
+        root.delete();
+        root.mkdir();
+        store = new FileObjectStore(root);
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void put(String key, String execid) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (null != execid) {
+            metadata.addUserMetadata("rundeck.execid", execid);
+        }
+        store.put("logs", key, new ByteArrayInputStream(key.getBytes()), metadata);
+    }
+
+    private static List<LogAudit.Execution> executions(String lines) throws IOException {
+        return LogAudit.Execution.read(new StringReader(lines));
+    }
+
+    @Test
+    public void readExecutions() throws IOException {
+        List<LogAudit.Execution> executions = executions("# execid project jobid\n1 A\n\n2,B,job-uuid\n");
+        Assert.assertEquals(2, executions.size());
+        Assert.assertEquals("1", executions.get(0).execid);
+        Assert.assertEquals("A", executions.get(0).project);
+        Assert.assertNull(executions.get(0).jobId);
+        Assert.assertEquals("job-uuid", executions.get(1).jobId);
+        try {
+            executions("1\n");
+            Assert.fail("should fail");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void audit() throws IOException {
+        put("project/A/1.rdlog", "1");
+        put("project/A/1.state.json", "1");
+        put("project/A/2.rdlog", "20");
+        put("project/A/6.rdlog", null);
+        put("project/B/3.rdlog", "3");
+        put("project/A/notes", null);
+        List<LogAudit.Execution> executions = executions("1 A\n2 A\n4 A\n5 C\n6 A\n");
+
+        LogAudit audit = new LogAudit(store, "logs", TEMPLATE);
+        LogAudit.Result result = audit.run(executions);
+        Assert.assertEquals(6, result.getListed());
+        Assert.assertEquals(5, result.getExpected());
+        Assert.assertEquals(3, result.getFound());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("project/A/4.rdlog", "project/C/5.rdlog")),
+                result.getMissing());
+        Assert.assertEquals(Collections.singleton("project/B/3.rdlog"), result.getOrphaned());
+        Map<String, String> mismatched = new TreeMap<String, String>();
+        mismatched.put("project/A/2.rdlog", "20");
+        mismatched.put("project/A/6.rdlog", "");
+        Assert.assertEquals(mismatched, result.getMismatched());
+        Assert.assertFalse(result.isConsistent());
+
+        audit.setProject("A");
+        audit.setFiletypes(Arrays.asList("rdlog", "state.json"));
+        audit.setCheckMetadata(false);
+        result = audit.run(executions);
+        Assert.assertEquals(5, result.getListed());
+        Assert.assertEquals(8, result.getExpected());
+        Assert.assertEquals(4, result.getFound());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("project/A/2.state.json", "project/A/4.rdlog",
+                "project/A/4.state.json", "project/A/6.state.json")), result.getMissing());
+        Assert.assertTrue(result.getOrphaned().isEmpty());
+        Assert.assertTrue(result.getMismatched().isEmpty());
+    }
+
+    @Test
+    public void auditPages() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1000; i < 3500; i++) {
+            put("project/P/" + i + ".rdlog", Integer.toString(i));
+            lines.append(i).append(" P\n");
+        }
+        LogAudit audit = new LogAudit(store, "logs", TEMPLATE);
+        audit.setConcurrency(4);
+        LogAudit.Result result = audit.run(executions(lines.toString()));
+        Assert.assertEquals(2500, result.getListed());
+        Assert.assertEquals(2500, result.getFound());
+        Assert.assertTrue(result.isConsistent());
+        //the keys starting with 1 and 2 need more than one page
+        Assert.assertTrue(Long.toString(result.getPages()), result.getPages() > KeyRange.SPLIT_CHARACTERS.length()
+                + 1);
+    }
+
+    @Test
+    public void tool() throws IOException {
+        put("project/A/1.rdlog", "1");
+        put("project/A/3.rdlog", "3");
+        File executions = new File(root, "executions.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(executions), "UTF-8");
+        writer.write("1 A\n2 A\n");
+        writer.close();
+        File config = new File(root, "framework.properties");
+        Properties properties = new Properties();
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "backend", "filesystem");
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "filesystemRoot", root.getAbsolutePath());
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "bucket", "logs");
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "path", TEMPLATE);
+        OutputStream out = new FileOutputStream(config);
+        properties.store(out, null);
+        out.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals(1, LogStorageTool.run(new String[]{"audit", "--config=" + config, "--executions=" +
+                executions}, new PrintStream(output)));
+        String text = output.toString();
+        Assert.assertTrue(text, text.contains("missing project/A/2.rdlog\n"));
+        Assert.assertTrue(text, text.contains("orphaned project/A/3.rdlog\n"));
+        Assert.assertTrue(text, text.contains("Found 1 of 2 expected logs, 1 missing, 1 orphaned, 0 mismatched; " +
+                "listed 2 keys under logs/project/"));
+    }
+}
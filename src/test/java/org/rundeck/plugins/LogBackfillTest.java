@@ -0,0 +1,194 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class LogBackfillTest {
+    private static final String TEMPLATE = "project/${job.project}/${job.execid}";
+    private File root;
+    private File logsDir;
+    private File storeRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("log-backfill-test", "");
+        root.delete();
+        root.mkdir();
+        logsDir = new File(root, "rundeck");
+        storeRoot = new File(root, "store");
+        storeRoot.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(logsDir, path);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private S3LogFileStoragePlugin initPlugin() {
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin();
+        plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+        plugin.setFilesystemRoot(storeRoot.getAbsolutePath());
+        plugin.setBucket("logs");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath(TEMPLATE);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "0");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    @Test
+    public void logPaths() {
+        LogBackfill.LogFile adhoc = LogBackfill.LogFile.parse(null, "P/run/logs/12.state.json");
+        Assert.assertEquals("P", adhoc.context.get("project"));
+        Assert.assertEquals("12", adhoc.context.get("execid"));
+        Assert.assertNull(adhoc.context.get("id"));
+        Assert.assertEquals("state.json", adhoc.filetype);
+
+        LogBackfill.LogFile job = LogBackfill.LogFile.parse(null, "P/job/abc-123/logs/7.rdlog");
+        Assert.assertEquals("P", job.context.get("project"));
+        Assert.assertEquals("abc-123", job.context.get("id"));
+        Assert.assertEquals("7", job.context.get("execid"));
+        Assert.assertEquals("rdlog", job.filetype);
+
+        Assert.assertNull(LogBackfill.LogFile.parse(null, "P/run/logs/notes.txt"));
+        Assert.assertNull(LogBackfill.LogFile.parse(null, "P/run/logs/sub/1.rdlog"));
+        Assert.assertNull(LogBackfill.LogFile.parse(null, "P/run/1.rdlog"));
+    }
+
+    @Test
+    public void backfill() throws IOException {
+        write("A/run/logs/1.rdlog", "log 1");
+        write("A/run/logs/1.state.json", "{}");
+        write("A/run/logs/1.rdlog.lck", "");
+        write("A/job/job-uuid/logs/2.rdlog", "log 2");
+        write("B/run/logs/3.rdlog", "log 3");
+        S3LogFileStoragePlugin plugin = initPlugin();
+        plugin.getObjectStore().put("logs", "project/B/3.rdlog", new ByteArrayInputStream("stored".getBytes()),
+                new ObjectMetadata());
+
+        File journal = new File(root, "backfill.journal");
+        LogBackfill backfill = new LogBackfill(plugin, logsDir);
+        backfill.setJournalFile(journal);
+        backfill.setConcurrency(2);
+        LogBackfill.Result result = backfill.run();
+
+        Assert.assertEquals(4, result.getFound());
+        Assert.assertEquals(3, result.getUploaded());
+        Assert.assertEquals(12, result.getUploadedBytes());
+        Assert.assertEquals(1, result.getExisting());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals("log 1", read(new File(storeRoot, "logs/project/A/1.rdlog")));
+        Assert.assertEquals("{}", read(new File(storeRoot, "logs/project/A/1.state.json")));
+        Assert.assertEquals("log 2", read(new File(storeRoot, "logs/project/A/2.rdlog")));
+        Assert.assertEquals("stored", read(new File(storeRoot, "logs/project/B/3.rdlog")));
+        ObjectMetadata metadata = plugin.getObjectStore().head("logs", "project/A/2.rdlog");
+        Assert.assertEquals("2", metadata.getUserMetadata().get("rundeck.execid"));
+        Assert.assertEquals("A", metadata.getUserMetadata().get("rundeck.project"));
+
+        //the existing log is journaled too
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("A/run/logs/1.rdlog", "A/run/logs/1.state.json",
+                "A/job/job-uuid/logs/2.rdlog", "B/run/logs/3.rdlog")), new HashSet<String>(Arrays.asList(read
+                (journal).split("\n"))));
+        result = backfill.run();
+        Assert.assertEquals(4, result.getJournaled());
+        Assert.assertEquals(0, result.getUploaded());
+    }
+
+    @Test
+    public void resumeFromJournal() throws IOException {
+        write("A/run/logs/1.rdlog", "log 1");
+        write("A/run/logs/2.rdlog", "log 2");
+        write("B/run/logs/3.rdlog", "log 3");
+        File journal = new File(root, "backfill.journal");
+        OutputStream out = new FileOutputStream(journal);
+        //interrupted while appending the second line
+        out.write("A/run/logs/1.rdlog\nA/run/lo".getBytes("UTF-8"));
+        out.close();
+
+        LogBackfill backfill = new LogBackfill(initPlugin(), logsDir);
+        backfill.setJournalFile(journal);
+        backfill.setProject("A");
+        LogBackfill.Result result = backfill.run();
+
+        Assert.assertEquals(2, result.getFound());
+        Assert.assertEquals(1, result.getJournaled());
+        Assert.assertEquals(1, result.getUploaded());
+        Assert.assertFalse(new File(storeRoot, "logs/project/A/1.rdlog").exists());
+        Assert.assertFalse(new File(storeRoot, "logs/project/B/3.rdlog").exists());
+        Assert.assertEquals("A/run/logs/1.rdlog\nA/run/lo\nA/run/logs/2.rdlog\n", read(journal));
+    }
+
+    @Test
+    public void tool() throws IOException {
+        write("A/run/logs/1.rdlog", "log 1");
+        write("A/run/logs/2.rdlog", "log 2");
+        File config = new File(root, "framework.properties");
+        Properties properties = new Properties();
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "backend", "filesystem");
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "filesystemRoot", storeRoot.getAbsolutePath());
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "bucket", "logs");
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "path", TEMPLATE);
+        OutputStream out = new FileOutputStream(config);
+        properties.store(out, null);
+        out.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals(2, LogStorageTool.run(new String[]{"backfill", "--config=" + config}, new PrintStream
+                (output)));
+        Assert.assertEquals(0, LogStorageTool.run(new String[]{"backfill", "--config=" + config, "--logs-dir=" +
+                logsDir, "--dry-run"}, new PrintStream(output)));
+        Assert.assertTrue(output.toString(), output.toString().contains("Would upload 2 of 2 logs found"));
+        Assert.assertFalse(new File(storeRoot, "logs/project/A/1.rdlog").exists());
+
+        Assert.assertEquals(0, LogStorageTool.run(new String[]{"backfill", "--config=" + config, "--logs-dir=" +
+                logsDir}, new PrintStream(output)));
+        Assert.assertTrue(output.toString(), output.toString().contains("Uploaded 2 of 2 logs found"));
+        Assert.assertEquals("log 2", read(new File(storeRoot, "logs/project/A/2.rdlog")));
+    }
+}
@@ -0,0 +1,293 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.dtolabs.utils.Streams;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class LogCacheTest {
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile("log-cache-test", "");
+        cacheDir.delete();
+        cacheDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : cacheDir.listFiles()) {
+            file.delete();
+        }
+        cacheDir.delete();
+    }
+
+    /**
+     * Gives each stored object a new ETag, and answers conditional gets
+     */
+    static class conditionalS3 extends MemoryS3 {
+        int version;
+        int notModified;
+        int downloads;
+
+        public PutObjectResult putObject(PutObjectRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            PutObjectResult result = super.putObject(request);
+            metadata.setHeader("ETag", "etag-" + ++version);
+            return result;
+        }
+
+        public S3Object getObject(GetObjectRequest request) throws AmazonClientException, AmazonServiceException {
+            List<String> constraints = request.getNonmatchingETagConstraints();
+            if (null != constraints && constraints.contains(metadata.getETag())) {
+                notModified++;
+                return null;
+            }
+            downloads++;
+            return super.getObject(request);
+        }
+    }
+
+    /**
+     * The first conditional get after {@link #slowNext} is set is slow, and its response records whether it was
+     * aborted
+     */
+    static class slowConditionalS3 extends conditionalS3 {
+        static final long SLOW_MILLIS = 2000;
+        volatile boolean slowNext;
+        volatile HttpGet slowRequest;
+        final AtomicInteger conditional = new AtomicInteger();
+
+        public S3Object getObject(GetObjectRequest request) throws AmazonClientException, AmazonServiceException {
+            boolean slow = false;
+            if (null != request.getNonmatchingETagConstraints()) {
+                conditional.incrementAndGet();
+                synchronized (this) {
+                    slow = slowNext;
+                    slowNext = false;
+                }
+            }
+            if (slow) {
+                long end = System.currentTimeMillis() + SLOW_MILLIS;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(Math.max(1, end - System.currentTimeMillis()));
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            S3Object object = super.getObject(request);
+            if (slow && null != object) {
+                slowRequest = new HttpGet("http://localhost/");
+                object.setObjectContent(new S3ObjectInputStream(object.getObjectContent(), slowRequest));
+            }
+            return object;
+        }
+    }
+
+    static class plugin extends S3LogFileStoragePlugin {
+        final conditionalS3 s3;
+
+        plugin() {
+            this(new conditionalS3());
+        }
+
+        plugin(conditionalS3 s3) {
+            this.s3 = s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    private plugin initPlugin(String format) {
+        return initPlugin(new plugin(), format);
+    }
+
+    private plugin initPlugin(plugin plugin, String format) {
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStorageFormat(format);
+        plugin.setRetrieveCacheDirectory(cacheDir.getAbsolutePath());
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private static byte[] retrieve(S3LogFileStoragePlugin plugin) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", output));
+        return output.toByteArray();
+    }
+
+    @Test
+    public void retrieveRevalidatesCopy() throws Exception {
+        revalidate(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN);
+    }
+
+    @Test
+    public void retrieveRevalidatesBlockGzipCopy() throws Exception {
+        revalidate(S3LogFileStoragePlugin.STORAGE_FORMAT_BLOCKGZIP);
+    }
+
+    private void revalidate(String format) throws Exception {
+        plugin plugin = initPlugin(format);
+        byte[] data = "first log content\n".getBytes();
+        plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date());
+
+        Assert.assertArrayEquals(format, data, retrieve(plugin));
+        Assert.assertEquals(1, plugin.s3.downloads);
+        Assert.assertArrayEquals(format, data, retrieve(plugin));
+        Assert.assertEquals(1, plugin.s3.downloads);
+        Assert.assertEquals(1, plugin.s3.notModified);
+
+        //a replaced log is downloaded again
+        byte[] replaced = "second log content\n".getBytes();
+        plugin.store("rdlog", new ByteArrayInputStream(replaced), replaced.length, new Date());
+        Assert.assertArrayEquals(format, replaced, retrieve(plugin));
+        Assert.assertEquals(2, plugin.s3.downloads);
+        Assert.assertArrayEquals(format, replaced, retrieve(plugin));
+        Assert.assertEquals(2, plugin.s3.downloads);
+        Assert.assertEquals(2, plugin.s3.notModified);
+        //the previous copy was deleted
+        Assert.assertEquals(2, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void revalidationIsHedged() throws Exception {
+        slowConditionalS3 s3 = new slowConditionalS3();
+        plugin plugin = new plugin(s3);
+        plugin.setHedgeRequests(true);
+        plugin.setHedgeMaxPercent(100);
+        initPlugin(plugin, S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN);
+        for (int i = 0; i < Hedger.WINDOW; i++) {
+            Hedger.getObject().record(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        byte[] data = "first log content\n".getBytes();
+        plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date());
+        Assert.assertArrayEquals(data, retrieve(plugin));
+
+        byte[] replaced = "second log content\n".getBytes();
+        plugin.store("rdlog", new ByteArrayInputStream(replaced), replaced.length, new Date());
+        int before = s3.conditional.get();
+        s3.slowNext = true;
+        long start = System.currentTimeMillis();
+        Assert.assertArrayEquals(replaced, retrieve(plugin));
+        Assert.assertTrue(System.currentTimeMillis() - start < slowConditionalS3.SLOW_MILLIS / 2);
+        Assert.assertEquals(before + 2, s3.conditional.get());
+
+        //the response of the slow request is aborted when it arrives
+        long end = System.currentTimeMillis() + 2 * slowConditionalS3.SLOW_MILLIS;
+        while ((null == s3.slowRequest || !s3.slowRequest.isAborted()) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertNotNull(s3.slowRequest);
+        Assert.assertTrue(s3.slowRequest.isAborted());
+    }
+
+    @Test
+    public void partialReadIsNotCached() throws IOException {
+        LogCache cache = new LogCache(cacheDir, 0);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "etag-1");
+        metadata.setContentLength(10);
+        InputStream in = cache.copying("bucket", "key", metadata, new ByteArrayInputStream(new byte[10]));
+        Assert.assertEquals(5, in.read(new byte[5]));
+        in.close();
+        Assert.assertNull(cache.head("bucket", "key"));
+        Assert.assertEquals(0, cacheDir.listFiles().length);
+
+        //shorter than the object
+        in = cache.copying("bucket", "key", metadata, new ByteArrayInputStream(new byte[8]));
+        Streams.copyStream(in, new ByteArrayOutputStream());
+        in.close();
+        Assert.assertNull(cache.head("bucket", "key"));
+    }
+
+    @Test
+    public void trimDeletesLeastRecentlyUsed() throws IOException {
+        LogCache cache = new LogCache(cacheDir, 250);
+        for (int i = 0; i < 3; i++) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setHeader("ETag", "etag-" + i);
+            metadata.addUserMetadata("rundeck.format", "plain");
+            metadata.setContentLength(100);
+            InputStream in = cache.copying("bucket", "key" + i, metadata, new ByteArrayInputStream(new byte[100]));
+            Streams.copyStream(in, new ByteArrayOutputStream());
+            in.close();
+            if (i == 0) {
+                Assert.assertEquals("etag-0", cache.head("bucket", "key0").getETag());
+                Assert.assertEquals("plain", cache.head("bucket", "key0").getUserMetadata().get("rundeck.format"));
+                Assert.assertEquals(100, cache.head("bucket", "key0").getContentLength());
+            }
+            for (File file : cacheDir.listFiles()) {
+                file.setLastModified(file.lastModified() - 10000);
+            }
+        }
+        Assert.assertNull(cache.head("bucket", "key0"));
+        Assert.assertNotNull(cache.head("bucket", "key1"));
+        S3Object copy = cache.get("bucket", "key2");
+        Assert.assertNotNull(copy);
+        copy.getObjectContent().close();
+        //the metadata of the deleted copy was deleted with it
+        Assert.assertEquals(4, cacheDir.listFiles().length);
+
+        //key1 is now the least recently used
+        cache.get("bucket", "key2").getObjectContent().close();
+        copy("bucket", "key3", cache);
+        Assert.assertNull(cache.head("bucket", "key1"));
+        Assert.assertNotNull(cache.head("bucket", "key2"));
+        Assert.assertEquals(4, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void existingCopiesAreReadOnce() throws IOException {
+        LogCache cache = new LogCache(cacheDir, 0);
+        copy("bucket", "key0", cache);
+        copy("bucket", "key1", cache);
+        //a data file which no metadata names
+        new FileOutputStream(new File(cacheDir, "orphan.data")).close();
+
+        cache = new LogCache(cacheDir, 150);
+        copy("bucket", "key2", cache);
+        Assert.assertNull(cache.head("bucket", "key0"));
+        Assert.assertNull(cache.head("bucket", "key1"));
+        Assert.assertNotNull(cache.head("bucket", "key2"));
+        Assert.assertEquals(2, cacheDir.listFiles().length);
+    }
+
+    private static void copy(String bucket, String key, LogCache cache) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader("ETag", "etag-" + key);
+        metadata.setContentLength(100);
+        InputStream in = cache.copying(bucket, key, metadata, new ByteArrayInputStream(new byte[100]));
+        Streams.copyStream(in, new ByteArrayOutputStream());
+        in.close();
+    }
+}
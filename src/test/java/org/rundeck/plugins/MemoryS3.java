@@ -0,0 +1,82 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.dtolabs.utils.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores one object in memory, and serves ranged gets
+ */
+class MemoryS3 extends FailS3 {
+    byte[] content;
+    ObjectMetadata metadata;
+    final List<long[]> ranges = new ArrayList<long[]>();
+
+    public PutObjectResult putObject(PutObjectRequest request) throws AmazonClientException,
+            AmazonServiceException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            Streams.copyStream(request.getInputStream(), baos);
+        } catch (IOException e) {
+            throw new AmazonClientException("read", e);
+        }
+        content = baos.toByteArray();
+        metadata = request.getMetadata();
+        metadata.setContentLength(content.length);
+        return new PutObjectResult();
+    }
+
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) throws AmazonClientException,
+            AmazonServiceException {
+        return metadata;
+    }
+
+    public S3Object getObject(String bucketName, String key) throws AmazonClientException,
+            AmazonServiceException {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+    public S3Object getObject(GetObjectRequest request) throws AmazonClientException, AmazonServiceException {
+        if (null == content) {
+            AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+            notFound.setStatusCode(404);
+            throw notFound;
+        }
+        long[] range = request.getRange();
+        int start = null != range ? (int) range[0] : 0;
+        int end = null != range ? (int) range[1] : content.length - 1;
+        ranges.add(new long[]{start, end});
+        S3Object object = new S3Object();
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new ByteArrayInputStream(content, start, end - start + 1));
+        return object;
+    }
+
+    public void setRegion(Region region) throws IllegalArgumentException {
+    }
+
+    /**
+     * Plugin using a {@link MemoryS3}
+     */
+    static class plugin extends S3LogFileStoragePlugin {
+        final MemoryS3 s3 = new MemoryS3();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+}
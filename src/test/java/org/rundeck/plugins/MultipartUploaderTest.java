@@ -0,0 +1,487 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.BinaryUtils;
+import com.dtolabs.utils.Streams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class MultipartUploaderTest {
+
+    class multipartS3 extends FailS3 {
+        final Map<Integer, byte[]> parts = Collections.synchronizedMap(new TreeMap<Integer, byte[]>());
+        InitiateMultipartUploadRequest initiateRequest;
+        CompleteMultipartUploadRequest completeRequest;
+        AbortMultipartUploadRequest abortRequest;
+        final List<Integer> uploaded = Collections.synchronizedList(new ArrayList<Integer>());
+        int initiated;
+        int fileParts;
+        int failPart = -1;
+        int failures;
+        long partDelayMillis;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request)
+                throws AmazonClientException, AmazonServiceException {
+            initiateRequest = request;
+            initiated++;
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("uploadId");
+            return result;
+        }
+
+        public UploadPartResult uploadPart(UploadPartRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            if (request.getPartNumber() == failPart) {
+                failures++;
+                throw new AmazonClientException("uploadPart");
+            }
+            int now = active.incrementAndGet();
+            synchronized (maxActive) {
+                maxActive.set(Math.max(maxActive.get(), now));
+            }
+            try {
+                Thread.sleep(partDelayMillis);
+            } catch (InterruptedException e) {
+                throw new AmazonClientException("interrupted", e);
+            } finally {
+                active.decrementAndGet();
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                InputStream in = request.getInputStream();
+                if (null == in) {
+                    fileParts++;
+                    RandomAccessFile raf = new RandomAccessFile(request.getFile(), "r");
+                    try {
+                        byte[] buf = new byte[(int) request.getPartSize()];
+                        raf.seek(request.getFileOffset());
+                        raf.readFully(buf);
+                        baos.write(buf);
+                    } finally {
+                        raf.close();
+                    }
+                } else {
+                    Streams.copyStream(in, baos);
+                }
+            } catch (IOException e) {
+                throw new AmazonClientException("read", e);
+            }
+            Assert.assertEquals(request.getPartSize(), baos.size());
+            parts.put(request.getPartNumber(), baos.toByteArray());
+            uploaded.add(request.getPartNumber());
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(etag(baos.toByteArray()));
+            return result;
+        }
+
+        public PartListing listParts(ListPartsRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            PartListing listing = new PartListing();
+            synchronized (parts) {
+                for (Map.Entry<Integer, byte[]> part : parts.entrySet()) {
+                    PartSummary summary = new PartSummary();
+                    summary.setPartNumber(part.getKey());
+                    summary.setSize(part.getValue().length);
+                    summary.setETag(etag(part.getValue()));
+                    listing.getParts().add(summary);
+                }
+            }
+            return listing;
+        }
+
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) throws
+                AmazonClientException, AmazonServiceException {
+            completeRequest = request;
+            CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+            result.setETag("complete-etag");
+            return result;
+        }
+
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            abortRequest = request;
+        }
+
+        byte[] content() {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            for (byte[] bytes : parts.values()) {
+                baos.write(bytes, 0, bytes.length);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private static String etag(byte[] bytes) {
+        try {
+            return "\"" + BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(bytes)) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] testData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static PartSizer testSizer(long partSize) {
+        PartSizer sizer = new PartSizer(new PartSizer.Stats());
+        sizer.setMinPartSize(partSize);
+        sizer.setMaxPartSize(partSize);
+        sizer.setMaxConcurrency(3);
+        return sizer;
+    }
+
+    @Test
+    public void deadlineAbortsUpload() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        s3.partDelayMillis = 10000;
+        byte[] data = testData(10000);
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+        Deadline deadline = Deadline.start("upload", 200);
+        uploader.setDeadline(deadline);
+        long start = System.currentTimeMillis();
+        try {
+            uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), data.length);
+            Assert.fail("should time out");
+        } catch (Deadline.Exceeded expected) {
+        } finally {
+            deadline.finish();
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertNotNull(s3.abortRequest);
+        Assert.assertNull(s3.completeRequest);
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void uploadStream() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        byte[] data = testData(10000);
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+
+        String etag = uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data),
+                data.length);
+
+        Assert.assertEquals("complete-etag", etag);
+        Assert.assertEquals(10, s3.parts.size());
+        Assert.assertArrayEquals(data, s3.content());
+        Assert.assertEquals(10, s3.completeRequest.getPartETags().size());
+        Assert.assertEquals(1, s3.completeRequest.getPartETags().get(0).getPartNumber());
+        Assert.assertNull(s3.abortRequest);
+    }
+
+    @Test
+    public void uploadStreamLongerThanReported() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        byte[] data = testData(5000);
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+
+        uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), 2000);
+
+        Assert.assertArrayEquals(data, s3.content());
+    }
+
+    @Test
+    public void uploadFile() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        byte[] data = testData(10000);
+        File file = File.createTempFile("multipart-test", ".tmp");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(4096));
+
+        uploader.upload("bucket", "key", new ObjectMetadata(), file);
+
+        Assert.assertEquals(3, s3.parts.size());
+        Assert.assertArrayEquals(data, s3.content());
+    }
+
+    @Test
+    public void pluginReadsPartsFromSpool() throws Exception {
+        final multipartS3 s3 = new multipartS3() {
+            public void setRegion(com.amazonaws.regions.Region region) {
+            }
+        };
+        S3LogFileStoragePlugin plugin = new S3LogFileStoragePlugin() {
+            protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+                return s3;
+            }
+
+            protected AmazonS3 createAmazonS3Client() {
+                return s3;
+            }
+        };
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setSpoolMode(S3LogFileStoragePlugin.SPOOL_MODE_NEVER);
+        plugin.setMultipartThreshold(1024);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        byte[] data = testData(10000);
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date()));
+
+        Assert.assertNotNull(s3.completeRequest);
+        Assert.assertArrayEquals(data, s3.content());
+        //the stream is not read into a buffer per part
+        Assert.assertEquals(s3.parts.size(), s3.fileParts);
+    }
+
+    @Test
+    public void uploadPartFailureAborts() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        s3.failPart = 2;
+        byte[] data = testData(10000);
+        PartSizer sizer = testSizer(1024);
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), sizer);
+
+        try {
+            uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), data.length);
+            Assert.fail("should throw");
+        } catch (AmazonClientException e) {
+            Assert.assertEquals("uploadPart", e.getMessage());
+        }
+        Assert.assertEquals(MultipartUploader.PART_ATTEMPTS, s3.failures);
+        Assert.assertNotNull(s3.abortRequest);
+        Assert.assertEquals("uploadId", s3.abortRequest.getUploadId());
+        Assert.assertNull(s3.completeRequest);
+    }
+
+    @Test
+    public void resumeFromJournal() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        s3.failPart = 6;
+        byte[] data = testData(10000);
+        File dir = File.createTempFile("multipart-journal", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            MultipartJournal journal = new MultipartJournal(dir);
+            MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+            uploader.setJournal(journal);
+            try {
+                uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), data.length);
+                Assert.fail("should throw");
+            } catch (AmazonClientException expected) {
+            }
+            //the upload was kept to be resumed
+            Assert.assertNull(s3.abortRequest);
+            Assert.assertEquals(1, journal.listFiles().length);
+            Assert.assertEquals("uploadId", journal.open("bucket", "key").getUploadId());
+
+            s3.failPart = -1;
+            s3.uploaded.clear();
+            uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+            uploader.setJournal(journal);
+            String etag = uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data),
+                    data.length);
+
+            Assert.assertEquals("complete-etag", etag);
+            Assert.assertEquals(1, s3.initiated);
+            for (int part = 1; part <= 5; part++) {
+                Assert.assertFalse(s3.uploaded.toString(), s3.uploaded.contains(part));
+            }
+            Assert.assertTrue(s3.uploaded.contains(6));
+            Assert.assertArrayEquals(data, s3.content());
+            Assert.assertEquals(10, s3.completeRequest.getPartETags().size());
+            Assert.assertEquals(0, journal.listFiles().length);
+
+            //parts which S3 holds with different content are uploaded again
+            byte[] changed = data.clone();
+            changed[5000] ^= 1;
+            s3.failPart = 8;
+            s3.uploaded.clear();
+            uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+            uploader.setJournal(journal);
+            try {
+                uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), data.length);
+                Assert.fail("should throw");
+            } catch (AmazonClientException expected) {
+            }
+            s3.failPart = -1;
+            s3.uploaded.clear();
+            uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+            uploader.setJournal(journal);
+            uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(changed),
+                    changed.length);
+            Assert.assertFalse(s3.uploaded.contains(1));
+            Assert.assertTrue(s3.uploaded.contains(5));
+            Assert.assertArrayEquals(changed, s3.content());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void resumeWithChangedMetadataStartsAnew() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        s3.failPart = 6;
+        byte[] data = testData(10000);
+        File dir = File.createTempFile("multipart-journal", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            MultipartJournal journal = new MultipartJournal(dir);
+            MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+            uploader.setJournal(journal);
+            ObjectMetadata plain = new ObjectMetadata();
+            plain.addUserMetadata("rundeck.execid", "1");
+            try {
+                uploader.upload("bucket", "key", plain, new ByteArrayInputStream(data), data.length);
+                Assert.fail("should throw");
+            } catch (AmazonClientException expected) {
+            }
+            Assert.assertNull(s3.abortRequest);
+
+            //the same content is stored with another format
+            s3.failPart = -1;
+            s3.uploaded.clear();
+            ObjectMetadata gzip = new ObjectMetadata();
+            gzip.addUserMetadata("rundeck.execid", "1");
+            gzip.addUserMetadata("rundeck.format", "blockgzip");
+            gzip.setContentType("application/gzip");
+            uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+            uploader.setJournal(journal);
+            uploader.upload("bucket", "key", gzip, new ByteArrayInputStream(data), data.length);
+
+            Assert.assertNotNull(s3.abortRequest);
+            Assert.assertEquals("uploadId", s3.abortRequest.getUploadId());
+            Assert.assertEquals(2, s3.initiated);
+            Assert.assertSame(gzip, s3.initiateRequest.getObjectMetadata());
+            for (int part = 1; part <= 10; part++) {
+                Assert.assertTrue(s3.uploaded.toString(), s3.uploaded.contains(part));
+            }
+            Assert.assertArrayEquals(data, s3.content());
+            Assert.assertEquals(0, journal.listFiles().length);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void uploadLimitsPartsInFlight() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        s3.partDelayMillis = 20;
+        byte[] data = testData(10000);
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+
+        uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), data.length);
+
+        Assert.assertArrayEquals(data, s3.content());
+        Assert.assertTrue(s3.maxActive.get() > 1);
+        Assert.assertTrue(s3.maxActive.get() <= 3);
+    }
+
+    @Test
+    public void uploadLimitsTransfersInJvm() throws IOException {
+        multipartS3 s3 = new multipartS3();
+        s3.partDelayMillis = 10;
+        byte[] data = testData(10000);
+        MultipartUploader uploader = new MultipartUploader(s3, TransferExecutors.getShared(), testSizer(1024));
+        TransferExecutors.setMaxConcurrentTransfers(1);
+        try {
+            uploader.upload("bucket", "key", new ObjectMetadata(), new ByteArrayInputStream(data), data.length);
+        } finally {
+            TransferExecutors.setMaxConcurrentTransfers(TransferExecutors.DEFAULT_MAX_CONCURRENT_TRANSFERS);
+        }
+
+        Assert.assertArrayEquals(data, s3.content());
+        Assert.assertEquals(1, s3.maxActive.get());
+    }
+
+    @Test
+    public void sizerRespectsMinimumPartSize() {
+        PartSizer.Stats stats = new PartSizer.Stats();
+        stats.recordSuccess(1024, 1000000000L);
+        PartSizer sizer = new PartSizer(stats);
+        Assert.assertEquals(PartSizer.MIN_PART_SIZE, sizer.decide(100 * PartSizer.MB, 0).partSize);
+    }
+
+    @Test
+    public void sizerDecisionsAreReportedByMetrics() {
+        PartSizer.getSharedStats().reset();
+        S3LogMetrics metrics = S3LogMetrics.getInstance();
+        Assert.assertEquals(-1, metrics.getMultipartPartSize());
+        Assert.assertEquals(-1.0, metrics.getMultipartThroughput(), 0);
+
+        PartSizer sizer = new PartSizer();
+        sizer.recordSuccess(10 * PartSizer.MB, 1000000000L);
+        sizer.recordFailure();
+        PartSizer.Decision decision = sizer.decide(1000 * PartSizer.MB, 0);
+
+        Assert.assertEquals(decision.partSize, metrics.getMultipartPartSize());
+        Assert.assertEquals(decision.concurrency, metrics.getMultipartConcurrency());
+        Assert.assertEquals(decision.throughput, metrics.getMultipartThroughput(), 0);
+        Assert.assertEquals(PartSizer.ALPHA, metrics.getMultipartErrorRate(), 1e-9);
+        PartSizer.getSharedStats().reset();
+    }
+
+    @Test
+    public void sizerRespectsMaximumPartCount() {
+        PartSizer sizer = new PartSizer(new PartSizer.Stats());
+        long length = 200L * 1024 * PartSizer.MB;
+        PartSizer.Decision decision = sizer.decide(length, 0);
+        Assert.assertTrue(decision.partSize * PartSizer.MAX_PARTS >= length);
+
+        //few parts left, size must grow to fit the remainder
+        decision = sizer.decide(100 * PartSizer.MB, PartSizer.MAX_PARTS - 2);
+        Assert.assertEquals(50 * PartSizer.MB, decision.partSize);
+    }
+
+    @Test
+    public void sizerGrowsPartsWithThroughput() {
+        PartSizer.Stats stats = new PartSizer.Stats();
+        PartSizer sizer = new PartSizer(stats);
+        sizer.setMaxPartSize(1024 * PartSizer.MB);
+        stats.recordSuccess(20 * PartSizer.MB, 1000000000L);
+        Assert.assertEquals(200 * PartSizer.MB, sizer.decide(10240 * PartSizer.MB, 0).partSize);
+    }
+
+    @Test
+    public void sizerReducesConcurrencyAndPartSizeOnErrors() {
+        PartSizer.Stats stats = new PartSizer.Stats();
+        PartSizer sizer = new PartSizer(stats);
+        sizer.setMaxPartSize(1024 * PartSizer.MB);
+        stats.recordSuccess(20 * PartSizer.MB, 1000000000L);
+        PartSizer.Decision healthy = sizer.decide(10240 * PartSizer.MB, 0);
+        stats.recordFailure();
+        stats.recordFailure();
+        PartSizer.Decision failing = sizer.decide(10240 * PartSizer.MB, 0);
+
+        Assert.assertEquals(PartSizer.DEFAULT_MAX_CONCURRENCY, healthy.concurrency);
+        Assert.assertTrue(failing.concurrency < healthy.concurrency);
+        Assert.assertTrue(failing.partSize < healthy.partSize);
+        Assert.assertSame(failing, stats.getLastDecision());
+    }
+}
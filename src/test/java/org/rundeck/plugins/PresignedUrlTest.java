@@ -0,0 +1,195 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class PresignedUrlTest {
+
+    /**
+     * Signs URLs with a real client and fixed credentials
+     */
+    class presignS3 extends MemoryS3 {
+        final AmazonS3Client signer = new AmazonS3Client(new BasicAWSCredentials("testKey", "testSecret"));
+        final List<GeneratePresignedUrlRequest> requests = new ArrayList<GeneratePresignedUrlRequest>();
+
+        public URL generatePresignedUrl(GeneratePresignedUrlRequest request) throws AmazonClientException {
+            requests.add(request);
+            return signer.generatePresignedUrl(request);
+        }
+    }
+
+    class testPlugin extends S3LogFileStoragePlugin {
+        final presignS3 s3 = new presignS3();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        PresignedUrlCache.getShared().clear();
+    }
+
+    private testPlugin initPlugin(String format, String encryptionKey) {
+        testPlugin plugin = new testPlugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStorageFormat(format);
+        plugin.setEncryptionKey(encryptionKey);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private static Map<String, String> queryParameters(URL url) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : url.getQuery().split("&")) {
+            int eq = param.indexOf('=');
+            params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1),
+                    "UTF-8"));
+        }
+        return params;
+    }
+
+    @Test
+    public void presignedUrlDisplaysInline() throws Exception {
+        testPlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, null);
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+
+        URL url = plugin.getPresignedUrl("rdlog");
+
+        Assert.assertTrue(url.toString(), url.getPath().endsWith("/project/testproject/testexecid.rdlog"));
+        Map<String, String> params = queryParameters(url);
+        Assert.assertEquals(S3LogFileStoragePlugin.PRESIGNED_URL_CONTENT_TYPE, params.get("response-content-type"));
+        Assert.assertEquals("inline", params.get("response-content-disposition"));
+        Assert.assertNull(params.get("response-content-encoding"));
+        long expires = plugin.s3.requests.get(0).getExpiration().getTime();
+        long expected = System.currentTimeMillis() + S3LogFileStoragePlugin.DEFAULT_PRESIGNED_URL_EXPIRATION * 1000L;
+        Assert.assertTrue(Math.abs(expected - expires) < 10000);
+    }
+
+    @Test
+    public void presignedUrlBlockGzip() throws Exception {
+        testPlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_BLOCKGZIP, null);
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+
+        Assert.assertEquals("gzip", queryParameters(plugin.getPresignedUrl("rdlog")).get("response-content-encoding"));
+    }
+
+    @Test
+    public void presignedUrlCached() throws Exception {
+        testPlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, null);
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+
+        URL url = plugin.getPresignedUrl("rdlog");
+        Assert.assertSame(url, plugin.getPresignedUrl("rdlog"));
+        Assert.assertEquals(1, plugin.s3.requests.size());
+
+        //storing the log again signs a new URL
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+        plugin.getPresignedUrl("rdlog");
+        Assert.assertEquals(2, plugin.s3.requests.size());
+    }
+
+    @Test
+    public void presignedUrlNotSharedAcrossRegions() throws Exception {
+        testPlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, null);
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+        plugin.getPresignedUrl("rdlog");
+
+        //the same bucket name and credentials, signed for another region
+        testPlugin other = new testPlugin();
+        other.setAWSAccessKeyId("blah");
+        other.setAWSSecretKey("blah");
+        other.setBucket("testBucket");
+        other.setRegion("eu-west-1");
+        other.setPath("project/${job.project}/${job.execid}");
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        other.initialize(context);
+        other.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+        plugin.getPresignedUrl("rdlog");
+        other.getPresignedUrl("rdlog");
+
+        Assert.assertEquals(1, plugin.s3.requests.size());
+        Assert.assertEquals(1, other.s3.requests.size());
+    }
+
+    @Test
+    public void presignedUrlEncrypted() throws Exception {
+        testPlugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN, ChunkedCipherTest.TEST_KEY);
+        plugin.store("rdlog", new ByteArrayInputStream(new byte[100]), 100, new Date());
+        try {
+            plugin.getPresignedUrl("rdlog");
+            Assert.fail("should throw");
+        } catch (ExecutionFileStorageException e) {
+            Assert.assertEquals("Encrypted logs cannot be retrieved with a pre-signed URL", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidExpiration() {
+        testPlugin plugin = new testPlugin();
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setPresignedUrlExpiration(0);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+    }
+
+    @Test
+    public void cacheExpiresBeforeUrl() throws Exception {
+        PresignedUrlCache cache = new PresignedUrlCache();
+        URL url = new URL("https://example.com/a");
+        cache.put("a", url, 0, 1000);
+
+        Assert.assertSame(url, cache.get("a", 500));
+        Assert.assertSame(url, cache.get("a", 900));
+        Assert.assertNull(cache.get("a", 901));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsed() throws Exception {
+        PresignedUrlCache cache = new PresignedUrlCache();
+        URL url = new URL("https://example.com/a");
+        for (int i = 0; i <= PresignedUrlCache.MAX_ENTRIES; i++) {
+            cache.put("key" + i, url, 0, 1000);
+            cache.get("key0", 0);
+        }
+
+        Assert.assertEquals(PresignedUrlCache.MAX_ENTRIES, cache.size());
+        Assert.assertNotNull(cache.get("key0", 0));
+        Assert.assertNull(cache.get("key1", 0));
+    }
+}
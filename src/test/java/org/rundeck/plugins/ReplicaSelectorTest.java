@@ -0,0 +1,211 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class ReplicaSelectorTest {
+    static final long MS = 1000000L;
+
+    @Before
+    public void setUp() {
+        ReplicaSelector.getShared().reset();
+    }
+
+    @Test
+    public void unmeasuredFirstThenByLatency() {
+        ReplicaSelector selector = new ReplicaSelector();
+        selector.record("a", 50 * MS, true);
+        selector.record("b", 10 * MS, true);
+
+        Assert.assertEquals(Arrays.asList(2, 1, 0), selector.order(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void tiesKeepConfiguredOrder() {
+        ReplicaSelector selector = new ReplicaSelector();
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2), selector.order(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void errorsPenalizeLatency() {
+        ReplicaSelector selector = new ReplicaSelector();
+        selector.record("a", 10 * MS, true);
+        selector.record("b", 15 * MS, true);
+        selector.record("a", 10 * MS, false);
+        selector.record("a", 10 * MS, false);
+
+        Assert.assertEquals(Arrays.asList(1, 0), selector.order(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void unhealthyLast() {
+        ReplicaSelector selector = new ReplicaSelector();
+        selector.record("a", 10 * MS, true);
+        for (int i = 0; i < 5; i++) {
+            selector.record("a", 10 * MS, false);
+        }
+        selector.record("b", 500 * MS, true);
+
+        Assert.assertTrue(selector.getStats("a").errorRate > ReplicaSelector.MAX_ERROR_RATE);
+        Assert.assertEquals(Arrays.asList(1, 0), selector.order(Arrays.asList("a", "b")));
+
+        //retried in order of latency once it has not failed for a while
+        selector.getStats("a").lastFailure -= ReplicaSelector.RETRY_MILLIS;
+        selector.getStats("a").errorRate = 0.6;
+        Assert.assertEquals(Arrays.asList(0, 1), selector.order(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void latencyIsMovingAverage() {
+        ReplicaSelector selector = new ReplicaSelector();
+        selector.record("a", 100, true);
+        selector.record("a", 200, true);
+
+        Assert.assertEquals(100 * (1 - ReplicaSelector.ALPHA) + 200 * ReplicaSelector.ALPHA,
+                selector.getStats("a").latencyNanos, 0.001);
+    }
+
+    /**
+     * Serves the same content from every bucket, except missing or failing buckets
+     */
+    class bucketS3 extends FailS3 {
+        final byte[] content = "test log content".getBytes();
+        final List<String> requested = new ArrayList<String>();
+        final Set<String> missing = new HashSet<String>();
+        final Set<String> failing = new HashSet<String>();
+
+        public S3Object getObject(String bucketName, String key) throws AmazonClientException,
+                AmazonServiceException {
+            requested.add(bucketName);
+            if (missing.contains(bucketName)) {
+                AmazonS3Exception exception = new AmazonS3Exception("not found " + bucketName);
+                exception.setStatusCode(404);
+                throw exception;
+            }
+            if (failing.contains(bucketName)) {
+                throw new AmazonClientException("failed " + bucketName);
+            }
+            S3Object object = new S3Object();
+            object.setObjectMetadata(new ObjectMetadata());
+            object.setObjectContent(new ByteArrayInputStream(content));
+            return object;
+        }
+
+        public void setRegion(Region region) throws IllegalArgumentException {
+        }
+    }
+
+    class testPlugin extends S3LogFileStoragePlugin {
+        final bucketS3 s3 = new bucketS3();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    private testPlugin initPlugin(boolean replicaReads) {
+        testPlugin plugin = new testPlugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setReplicaTargets("replica1,replica2@eu-west-1");
+        plugin.setReplicaReads(replicaReads);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    @Test
+    public void retrieveFailsOver() throws IOException, ExecutionFileStorageException {
+        testPlugin plugin = initPlugin(true);
+        plugin.s3.missing.add("testBucket");
+        plugin.s3.failing.add("replica1");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(plugin.retrieve("rdlog", out));
+
+        Assert.assertArrayEquals(plugin.s3.content, out.toByteArray());
+        Assert.assertEquals(Arrays.asList("testBucket", "replica1", "replica2"), plugin.s3.requested);
+
+        //the healthy replica is measured, and now preferred to the failing buckets
+        plugin.s3.requested.clear();
+        Assert.assertTrue(plugin.retrieve("rdlog", new ByteArrayOutputStream()));
+        Assert.assertEquals(Arrays.asList("replica2"), plugin.s3.requested);
+    }
+
+    @Test
+    public void retrieveRecordsTimeToFirstByte() throws IOException, ExecutionFileStorageException {
+        testPlugin plugin = initPlugin(true);
+        //a slow consumer does not make the bucket look slow
+        Assert.assertTrue(plugin.retrieve("rdlog", new OutputStream() {
+            public void write(int b) throws IOException {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+        }));
+
+        double latency = ReplicaSelector.getShared().getStats(plugin.s3.requested.get(0) + "@us-east-1")
+                .latencyNanos;
+        Assert.assertTrue(latency >= 0);
+        Assert.assertTrue(latency < 100 * MS);
+    }
+
+    @Test
+    public void retrieveAllFail() throws IOException {
+        testPlugin plugin = initPlugin(true);
+        plugin.s3.failing.add("testBucket");
+        plugin.s3.failing.add("replica1");
+        plugin.s3.failing.add("replica2");
+        try {
+            plugin.retrieve("rdlog", new ByteArrayOutputStream());
+            Assert.fail("should throw");
+        } catch (ExecutionFileStorageException e) {
+            Assert.assertEquals("failed replica2", e.getMessage());
+        }
+        Assert.assertEquals(3, plugin.s3.requested.size());
+    }
+
+    @Test
+    public void retrieveMainBucketOnly() throws IOException {
+        testPlugin plugin = initPlugin(false);
+        plugin.s3.failing.add("testBucket");
+        try {
+            plugin.retrieve("rdlog", new ByteArrayOutputStream());
+            Assert.fail("should throw");
+        } catch (ExecutionFileStorageException e) {
+            Assert.assertEquals("failed testBucket", e.getMessage());
+        }
+        Assert.assertEquals(Arrays.asList("testBucket"), plugin.s3.requested);
+    }
+}
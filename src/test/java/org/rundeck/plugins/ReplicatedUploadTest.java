@@ -0,0 +1,217 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.dtolabs.rundeck.core.logging.ExecutionFileStorageException;
+import com.dtolabs.utils.Streams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class ReplicatedUploadTest {
+    private File spoolDirectory;
+
+    /**
+     * Stores one object per bucket, and can fail or block puts to some buckets
+     */
+    class bucketS3 extends FailS3 {
+        final Map<String, byte[]> objects = Collections.synchronizedMap(new HashMap<String, byte[]>());
+        final Set<String> failing = new HashSet<String>();
+        final Map<String, CountDownLatch> blocked = new HashMap<String, CountDownLatch>();
+
+        public PutObjectResult putObject(PutObjectRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            CountDownLatch latch = blocked.get(request.getBucketName());
+            if (null != latch) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new AmazonClientException("interrupted", e);
+                }
+            }
+            if (failing.contains(request.getBucketName())) {
+                throw new AmazonClientException("failed " + request.getBucketName());
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                Streams.copyStream(request.getInputStream(), baos);
+            } catch (IOException e) {
+                throw new AmazonClientException("read", e);
+            }
+            objects.put(request.getBucketName(), baos.toByteArray());
+            return new PutObjectResult();
+        }
+
+        public void setRegion(Region region) throws IllegalArgumentException {
+        }
+    }
+
+    class testPlugin extends S3LogFileStoragePlugin {
+        final bucketS3 s3 = new bucketS3();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        spoolDirectory = File.createTempFile("replicated-upload-test", "");
+        spoolDirectory.delete();
+        spoolDirectory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : spoolDirectory.listFiles()) {
+            file.delete();
+        }
+        spoolDirectory.delete();
+    }
+
+    private testPlugin initPlugin(String replicaTargets, int quorum) {
+        testPlugin plugin = new testPlugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setSpoolDirectory(spoolDirectory.getAbsolutePath());
+        plugin.setReplicaTargets(replicaTargets);
+        plugin.setReplicaQuorum(quorum);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private static byte[] testData() {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private static void awaitEmpty(File directory) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (directory.list().length > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void storeToAllBuckets() throws Exception {
+        testPlugin plugin = initPlugin("replica1, replica2@eu-west-1", 0);
+        byte[] data = testData();
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), -1, new Date()));
+
+        Assert.assertEquals(3, plugin.s3.objects.size());
+        Assert.assertArrayEquals(data, plugin.s3.objects.get("testBucket"));
+        Assert.assertArrayEquals(data, plugin.s3.objects.get("replica1"));
+        Assert.assertArrayEquals(data, plugin.s3.objects.get("replica2"));
+        awaitEmpty(spoolDirectory);
+    }
+
+    @Test
+    public void quorumReachedWithFailure() throws Exception {
+        testPlugin plugin = initPlugin("replica1,replica2", 2);
+        plugin.s3.failing.add("replica1");
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(testData()), -1, new Date()));
+        awaitEmpty(spoolDirectory);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("testBucket", "replica2")),
+                plugin.s3.objects.keySet());
+    }
+
+    @Test
+    public void quorumNotReached() throws Exception {
+        testPlugin plugin = initPlugin("replica1,replica2", 2);
+        plugin.s3.failing.add("replica1");
+        plugin.s3.failing.add("testBucket");
+        try {
+            plugin.store("rdlog", new ByteArrayInputStream(testData()), -1, new Date());
+            Assert.fail("should throw");
+        } catch (ExecutionFileStorageException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("failed "));
+        }
+        awaitEmpty(spoolDirectory);
+    }
+
+    @Test
+    public void remainingUploadsFinishInBackground() throws Exception {
+        testPlugin plugin = initPlugin("replica1", 1);
+        CountDownLatch latch = new CountDownLatch(1);
+        plugin.s3.blocked.put("replica1", latch);
+        byte[] data = testData();
+
+        Assert.assertTrue(plugin.store("rdlog", new ByteArrayInputStream(data), -1, new Date()));
+        Assert.assertArrayEquals(data, plugin.s3.objects.get("testBucket"));
+        Assert.assertNull(plugin.s3.objects.get("replica1"));
+        //the spool is kept until the replica upload finishes
+        Assert.assertEquals(1, spoolDirectory.list().length);
+
+        latch.countDown();
+        awaitEmpty(spoolDirectory);
+        Assert.assertArrayEquals(data, plugin.s3.objects.get("replica1"));
+    }
+
+    @Test
+    public void replicatedUploadRunsCompletion() throws Exception {
+        final CountDownLatch complete = new CountDownLatch(1);
+        ReplicatedUpload upload = new ReplicatedUpload();
+        upload.add("a", new java.util.concurrent.Callable<Object>() {
+            public Object call() throws IOException {
+                throw new IOException("a failed");
+            }
+        });
+        upload.add("b", new java.util.concurrent.Callable<Object>() {
+            public Object call() {
+                return null;
+            }
+        });
+        try {
+            upload.run(2, TransferExecutors.getShared(), new Runnable() {
+                public void run() {
+                    complete.countDown();
+                }
+            });
+            Assert.fail("should throw");
+        } catch (IOException e) {
+            Assert.assertEquals("a failed", e.getMessage());
+        }
+        Assert.assertTrue(complete.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidQuorum() {
+        initPlugin("replica1,replica2", 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReplicaRegion() {
+        initPlugin("replica1@nowhere-1", 0);
+    }
+}
@@ -0,0 +1,193 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.dtolabs.utils.Streams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class ResumingInputStreamTest {
+
+    /**
+     * Fails the connection after a number of bytes for the first requests
+     */
+    static class droppingStream extends FilterInputStream {
+        private int remaining;
+
+        droppingStream(InputStream in, int remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Connection reset");
+            }
+            int read = super.read(b, off, Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Drops the connection of the first requests, and honors the ETag constraint
+     */
+    static class droppingS3 extends MemoryS3 {
+        int drops;
+        int dropAfter;
+        String etag = "etag-1";
+        final List<List<String>> constraints = new ArrayList<List<String>>();
+
+        public S3Object getObject(GetObjectRequest request) throws AmazonClientException, AmazonServiceException {
+            metadata.setHeader("ETag", etag);
+            if (null != request.getMatchingETagConstraints() && !request.getMatchingETagConstraints().isEmpty()) {
+                constraints.add(request.getMatchingETagConstraints());
+                if (!request.getMatchingETagConstraints().contains(etag)) {
+                    return null;
+                }
+            }
+            S3Object object = super.getObject(request);
+            if (drops > 0) {
+                drops--;
+                object.setObjectContent(new droppingStream(object.getObjectContent(), dropAfter));
+            }
+            return object;
+        }
+    }
+
+    static class plugin extends S3LogFileStoragePlugin {
+        final droppingS3 s3 = new droppingS3();
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    private static plugin initPlugin(String format) {
+        plugin plugin = new plugin();
+        plugin.setAWSAccessKeyId("blah");
+        plugin.setAWSSecretKey("blah");
+        plugin.setBucket("testBucket");
+        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+        plugin.setPath("project/${job.project}/${job.execid}");
+        plugin.setStorageFormat(format);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("execid", "testexecid");
+        context.put("project", "testproject");
+        plugin.initialize(context);
+        return plugin;
+    }
+
+    private static byte[] testData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void retrieveResumesAfterDrop() throws Exception {
+        for (String format : Arrays.asList(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN,
+                S3LogFileStoragePlugin.STORAGE_FORMAT_BLOCKGZIP)) {
+            plugin plugin = initPlugin(format);
+            byte[] data = testData(200000);
+            plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date());
+            int length = plugin.s3.content.length;
+            plugin.s3.drops = 2;
+            plugin.s3.dropAfter = length / 3;
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Assert.assertTrue(plugin.retrieve("rdlog", output));
+
+            Assert.assertArrayEquals(format, data, output.toByteArray());
+            Assert.assertEquals(3, plugin.s3.ranges.size());
+            Assert.assertEquals(length / 3, plugin.s3.ranges.get(1)[0]);
+            Assert.assertEquals(2 * (length / 3), plugin.s3.ranges.get(2)[0]);
+            Assert.assertEquals(length - 1, plugin.s3.ranges.get(2)[1]);
+            Assert.assertEquals(Arrays.asList(Collections.singletonList("etag-1"), Collections.singletonList(
+                    "etag-1")), plugin.s3.constraints);
+        }
+    }
+
+    @Test
+    public void retrieveFailsWhenObjectReplaced() throws Exception {
+        final plugin plugin = initPlugin(S3LogFileStoragePlugin.STORAGE_FORMAT_PLAIN);
+        byte[] data = testData(1000);
+        plugin.store("rdlog", new ByteArrayInputStream(data), data.length, new Date());
+        plugin.s3.drops = 1;
+        plugin.s3.dropAfter = 100;
+        OutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                //another store replaces the object
+                plugin.s3.etag = "etag-2";
+            }
+        };
+        try {
+            plugin.retrieve("rdlog", output);
+            Assert.fail("should fail");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("replaced"));
+        }
+    }
+
+    @Test
+    public void resumeAttemptsWithoutProgress() throws IOException {
+        final int[] opened = new int[1];
+        InputStream stream = new ResumingInputStream("test", new droppingStream(new ByteArrayInputStream(new
+                byte[100]), 10), 100, 2, new ResumingInputStream.Opener() {
+            public InputStream open(long offset) {
+                opened[0]++;
+                return new droppingStream(new ByteArrayInputStream(new byte[100]), 0);
+            }
+        });
+        byte[] buffer = new byte[100];
+        Assert.assertEquals(10, stream.read(buffer));
+        try {
+            stream.read(buffer);
+            Assert.fail("should fail");
+        } catch (IOException e) {
+            Assert.assertEquals("Connection reset", e.getMessage());
+        }
+        Assert.assertEquals(2, opened[0]);
+    }
+
+    @Test
+    public void prematureEndResumes() throws IOException {
+        final byte[] data = testData(100);
+        ResumingInputStream stream = new ResumingInputStream("test", new ByteArrayInputStream(data, 0, 40), 100, 1,
+                new ResumingInputStream.Opener() {
+                    public InputStream open(long offset) {
+                        return new ByteArrayInputStream(data, (int) offset, data.length - (int) offset);
+                    }
+                });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Streams.copyStream(stream, output);
+        Assert.assertArrayEquals(data, output.toByteArray());
+        Assert.assertEquals(1, stream.getResumes());
+        Assert.assertEquals(100, stream.getOffset());
+    }
+}
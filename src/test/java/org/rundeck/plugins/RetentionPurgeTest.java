@@ -0,0 +1,300 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.s3.model.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@RunWith(JUnit4.class)
+public class RetentionPurgeTest {
+    private static final long DAY = LogStorageTool.DAY_MILLIS;
+    private static final String TEMPLATE = "project/${job.project}/${job.execid}";
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("retention-purge-test", "");
+        root.delete();
+        root.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Lists and deletes keys held in memory, and fails to delete the keys in {@link #undeletable}
+     */
+    static class listingS3 extends FailS3 {
+        final TreeMap<String, Date> objects = new TreeMap<String, Date>();
+        final Set<String> undeletable = new HashSet<String>();
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public ObjectListing listObjects(ListObjectsRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            ObjectListing listing = new ObjectListing();
+            synchronized (objects) {
+                SortedMap<String, Date> after = null != request.getMarker() ? objects.tailMap(request.getMarker()
+                        + "\0") : objects;
+                for (Map.Entry<String, Date> entry : after.entrySet()) {
+                    if (!entry.getKey().startsWith(request.getPrefix())) {
+                        continue;
+                    }
+                    if (listing.getObjectSummaries().size() == request.getMaxKeys()) {
+                        listing.setTruncated(true);
+                        break;
+                    }
+                    S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setKey(entry.getKey());
+                    summary.setLastModified(entry.getValue());
+                    listing.getObjectSummaries().add(summary);
+                }
+            }
+            return listing;
+        }
+
+        public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            batches.add(request.getKeys().size());
+            List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<MultiObjectDeleteException
+                    .DeleteError>();
+            synchronized (objects) {
+                for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+                    if (undeletable.contains(key.getKey())) {
+                        MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                        error.setKey(key.getKey());
+                        errors.add(error);
+                    } else {
+                        objects.remove(key.getKey());
+                    }
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new MultiObjectDeleteException(errors, new ArrayList<DeleteObjectsResult.DeletedObject>());
+            }
+            return new DeleteObjectsResult(new ArrayList<DeleteObjectsResult.DeletedObject>());
+        }
+
+        public void setRegion(Region region) throws IllegalArgumentException {
+        }
+    }
+
+    /**
+     * Fails every delete after the first few
+     */
+    static class failingStore extends FileObjectStore {
+        int deletesLeft;
+
+        failingStore(File root, int deletesLeft) {
+            super(root);
+            this.deletesLeft = deletesLeft;
+        }
+
+        public List<String> deleteAll(String bucket, List<String> keys) {
+            synchronized (this) {
+                if (deletesLeft-- <= 0) {
+                    throw new AmazonClientException("connection reset");
+                }
+            }
+            return super.deleteAll(bucket, keys);
+        }
+    }
+
+    private void put(FileObjectStore store, String key, long lastModified) throws IOException {
+        store.put("logs", key, new ByteArrayInputStream(key.getBytes()), new ObjectMetadata());
+        new File(root, "logs/" + key).setLastModified(lastModified);
+    }
+
+    @Test
+    public void keyTemplates() {
+        Map<String, String> context = new HashMap<String, String>();
+        Assert.assertEquals("project/", LogKeys.prefix(TEMPLATE, context));
+        Assert.assertEquals(Arrays.asList("project", "execid"), LogKeys.variables(TEMPLATE));
+        Pattern pattern = LogKeys.pattern(TEMPLATE, context);
+        Matcher matcher = pattern.matcher("project/my.project/123.state.json");
+        Assert.assertTrue(matcher.matches());
+        Assert.assertEquals("my.project", matcher.group(1));
+        Assert.assertEquals("123", matcher.group(2));
+        Assert.assertEquals("state.json", matcher.group(3));
+        Assert.assertFalse(pattern.matcher("project/a/b/123.rdlog").matches());
+        Assert.assertFalse(pattern.matcher("project/a/notes").matches());
+
+        context.put("project", "a+b");
+        Assert.assertEquals("project/a+b/", LogKeys.prefix(TEMPLATE, context));
+        Assert.assertTrue(LogKeys.pattern(TEMPLATE, context).matcher("project/a+b/1.rdlog").matches());
+        Assert.assertFalse(LogKeys.pattern(TEMPLATE, context).matcher("project/aab/1.rdlog").matches());
+        context.put("execid", "1");
+        Assert.assertEquals("logs/1.log", LogKeys.prefix("logs/${job.execid}.log", context));
+    }
+
+    @Test
+    public void keyRanges() {
+        List<KeyRange> ranges = KeyRange.split("p/");
+        Assert.assertEquals(KeyRange.SPLIT_CHARACTERS.length() + 1, ranges.size());
+        for (String key : new String[]{"p/", "p/-x", "p/0", "p/05", "p/1", "p/Zz", "p/zz", "p/~"}) {
+            int count = 0;
+            for (KeyRange range : ranges) {
+                if ((null == range.lower || key.compareTo(range.lower) > 0) && !range.isAfter(key)) {
+                    count++;
+                }
+            }
+            Assert.assertEquals(key, 1, count);
+        }
+    }
+
+    @Test
+    public void purgeOlderThan() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        long now = System.currentTimeMillis();
+        put(store, "project/A/1.rdlog", now - 40 * DAY);
+        put(store, "project/A/1.state.json", now - 40 * DAY);
+        put(store, "project/A/2.rdlog", now - DAY);
+        put(store, "project/b/3.rdlog", now - 40 * DAY);
+        put(store, "project/b/notes", now - 40 * DAY);
+        put(store, "other/4.rdlog", now - 40 * DAY);
+
+        RetentionPurge purge = new RetentionPurge(store, "logs", TEMPLATE);
+        purge.setOlderThan(new Date(now - 30 * DAY));
+        RetentionPurge.Result result = purge.run();
+
+        Assert.assertEquals(5, result.getListed());
+        Assert.assertEquals(3, result.getDeleted());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(Arrays.asList("other/4.rdlog", "project/A/2.rdlog", "project/b/notes"), store.list("logs",
+                null));
+    }
+
+    @Test
+    public void purgeProject() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        long now = System.currentTimeMillis();
+        put(store, "project/A/1.rdlog", now);
+        put(store, "project/AB/2.rdlog", now);
+        put(store, "project/B/3.rdlog", now);
+
+        RetentionPurge purge = new RetentionPurge(store, "logs", TEMPLATE);
+        purge.setProject("A");
+        purge.setDryRun(true);
+        Assert.assertEquals(1, purge.run().getSelected());
+        Assert.assertEquals(3, store.list("logs", null).size());
+
+        purge.setDryRun(false);
+        Assert.assertEquals(1, purge.run().getDeleted());
+        Assert.assertEquals(Arrays.asList("project/AB/2.rdlog", "project/B/3.rdlog"), store.list("logs", null));
+    }
+
+    @Test
+    public void purgeInBatches() throws IOException {
+        listingS3 s3 = new listingS3();
+        Date old = new Date(System.currentTimeMillis() - 40 * DAY);
+        for (int i = 0; i < 2500; i++) {
+            s3.objects.put("project/P/" + i + ".rdlog", old);
+        }
+        s3.objects.put("project/P/recent.rdlog", new Date());
+        s3.undeletable.add("project/P/7.rdlog");
+
+        RetentionPurge purge = new RetentionPurge(new S3ObjectStore(s3), "logs", TEMPLATE);
+        purge.setOlderThan(new Date(System.currentTimeMillis() - 30 * DAY));
+        purge.setConcurrency(4);
+        RetentionPurge.Result result = purge.run();
+
+        Assert.assertEquals(2501, result.getListed());
+        Assert.assertEquals(2500, result.getSelected());
+        Assert.assertEquals(2499, result.getDeleted());
+        Assert.assertEquals(1, result.getFailed());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("project/P/7.rdlog", "project/P/recent.rdlog")),
+                s3.objects.keySet());
+        for (int batch : s3.batches) {
+            Assert.assertTrue(batch <= RetentionPurge.PAGE_SIZE);
+        }
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws IOException {
+        long old = System.currentTimeMillis() - 40 * DAY;
+        failingStore store = new failingStore(root, 1);
+        for (int i = 0; i < 2500; i++) {
+            put(store, "project/P/1" + i + ".rdlog", old);
+        }
+        File checkpointFile = new File(root, "purge.checkpoint");
+        RetentionPurge purge = new RetentionPurge(store, "logs", TEMPLATE);
+        purge.setOlderThan(new Date(System.currentTimeMillis() - 30 * DAY));
+        purge.setCheckpointFile(checkpointFile);
+        purge.setConcurrency(1);
+        try {
+            purge.run();
+            Assert.fail("should fail");
+        } catch (AmazonClientException expected) {
+        }
+        Assert.assertEquals(1500, store.list("logs", "project/").size());
+
+        store.deletesLeft = 10;
+        RetentionPurge resumed = new RetentionPurge(store, "logs", TEMPLATE);
+        resumed.setOlderThan(new Date(0));
+        resumed.setCheckpointFile(checkpointFile);
+        RetentionPurge.Result result = resumed.run();
+
+        //the first page was not listed again, and the saved date was used
+        Assert.assertEquals(1500, result.getListed());
+        Assert.assertEquals(1500, result.getDeleted());
+        Assert.assertEquals(0, store.list("logs", "project/").size());
+
+        RetentionPurge other = new RetentionPurge(store, "logs", TEMPLATE);
+        other.setProject("P");
+        other.setCheckpointFile(checkpointFile);
+        try {
+            other.run();
+            Assert.fail("should fail");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void tool() throws IOException {
+        FileObjectStore store = new FileObjectStore(root);
+        long now = System.currentTimeMillis();
+        put(store, "project/A/1.rdlog", now - 40 * DAY);
+        put(store, "project/A/2.rdlog", now);
+        File config = new File(root, "framework.properties");
+        Properties properties = new Properties();
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "backend", "filesystem");
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "filesystemRoot", root.getAbsolutePath());
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "bucket", "logs");
+        properties.setProperty(LogStorageTool.PROPERTY_PREFIX + "path", TEMPLATE);
+        properties.setProperty("framework.server.name", "localhost");
+        OutputStream out = new FileOutputStream(config);
+        properties.store(out, null);
+        out.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals(2, LogStorageTool.run(new String[]{"purge", "--config=" + config}, new PrintStream
+                (output)));
+        Assert.assertEquals(0, LogStorageTool.run(new String[]{"purge", "--config=" + config,
+                "--older-than-days=30"}, new PrintStream(output)));
+        Assert.assertTrue(output.toString(), output.toString().contains("Deleted 1 of 2 logs listed under " +
+                "logs/project/, 0 failed"));
+        Assert.assertEquals(Arrays.asList("project/A/2.rdlog"), store.list("logs", "project/"));
+    }
+}
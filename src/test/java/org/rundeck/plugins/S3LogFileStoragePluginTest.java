@@ -14,6 +14,9 @@ import org.junit.runners.JUnit4;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 
 /**
  * $INTERFACE is ... User: greg Date: 6/11/13 Time: 1:59 PM
@@ -91,9 +94,12 @@ public class S3LogFileStoragePluginTest {
         public boolean getObjectMetadataS3Exception = false;
         public boolean getObjectMetadataClientException = false;
         public ObjectMetadata getObjectMetadata;
+        public final java.util.concurrent.atomic.AtomicInteger getObjectMetadataCount =
+                new java.util.concurrent.atomic.AtomicInteger();
 
         public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest getObjectMetadataRequest) throws
                 AmazonClientException, AmazonServiceException {
+            getObjectMetadataCount.incrementAndGet();
             if (getObjectMetadata404) {
                 AmazonS3Exception ase = new AmazonS3Exception("test NOT Found");
                 ase.setStatusCode(404);
@@ -136,10 +142,21 @@ public class S3LogFileStoragePluginTest {
         public boolean putObjectS3Exception = false;
         public PutObjectResult putObject;
         public PutObjectRequest putObjectRequest;
+        public boolean putObjectReadContent = false;
+        public byte[] putObjectContent;
 
         public PutObjectResult putObject(PutObjectRequest putObjectRequest) throws AmazonClientException,
                 AmazonServiceException {
             this.putObjectRequest = putObjectRequest;
+            if (putObjectReadContent) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try {
+                    com.dtolabs.utils.Streams.copyStream(putObjectRequest.getInputStream(), baos);
+                } catch (IOException e) {
+                    throw new AmazonClientException("putObject read", e);
+                }
+                putObjectContent = baos.toByteArray();
+            }
             if (putObjectClientException) {
                 throw new AmazonClientException("putObject");
             }
@@ -150,6 +167,15 @@ public class S3LogFileStoragePluginTest {
         }
 
 
+        public CopyObjectRequest copyObjectRequest;
+        public CopyObjectResult copyObject;
+
+        public CopyObjectResult copyObject(CopyObjectRequest copyObjectRequest) throws AmazonClientException,
+                AmazonServiceException {
+            this.copyObjectRequest = copyObjectRequest;
+            return copyObject;
+        }
+
         public Region getRegion() {
             return region;
         }
@@ -443,6 +469,115 @@ public class S3LogFileStoragePluginTest {
         testPlugin.initialize(testContext());
     }
 
+    @Test
+    public void initializeMultipartStaleAgeWithoutPrefix() {
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setBucket("basdf");
+        testPlugin.setPath("${job.project}/${job.execid}");
+        testPlugin.setAWSAccessKeyId("blah");
+        testPlugin.setAWSSecretKey("blah");
+        testPlugin.setMultipartStaleAge(3600);
+        try {
+            testPlugin.initialize(testContext());
+            Assert.fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("multipartStaleAge requires a path which begins with a fixed " +
+                    "prefix"));
+        }
+    }
+
+    @Test
+    public void initializeConnectionPrewarmSharesClient() {
+        ConnectionWarmer.shutdownAll();
+        try {
+            testPlugin first = new S3LogFileStoragePluginTest.testPlugin();
+            first.setBucket("basdf");
+            first.setAWSAccessKeyId("blah");
+            first.setAWSSecretKey("blah");
+            first.setConnectionPrewarm(3);
+            first.setKeepAliveInterval(0);
+            first.initialize(testContext());
+            Assert.assertNotNull(first.getTestS3());
+            Assert.assertEquals(3, first.getTestS3().getObjectMetadataCount.get());
+
+            testPlugin second = new S3LogFileStoragePluginTest.testPlugin();
+            second.setBucket("basdf");
+            second.setAWSAccessKeyId("blah");
+            second.setAWSSecretKey("blah");
+            second.setConnectionPrewarm(3);
+            second.setKeepAliveInterval(0);
+            second.initialize(testContext());
+            //client was reused and not warmed again
+            Assert.assertNull(second.getTestS3());
+            Assert.assertEquals(3, first.getTestS3().getObjectMetadataCount.get());
+        } finally {
+            ConnectionWarmer.shutdownAll();
+        }
+    }
+
+    @Test
+    public void connectionPrewarmDoesNotBlockOtherClients() throws Exception {
+        ConnectionWarmer.shutdownAll();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<AmazonS3> slow = new Callable<AmazonS3>() {
+            public AmazonS3 call() throws Exception {
+                release.await();
+                return new MemoryS3();
+            }
+        };
+        Future<AmazonS3> first = TransferExecutors.getShared().submit(new Callable<AmazonS3>() {
+            public AmazonS3 call() {
+                return ConnectionWarmer.getSharedClient("slow", slow, "bucket", 1, 0);
+            }
+        });
+        try {
+            Thread.sleep(100);
+            final AmazonS3 fast = new MemoryS3();
+            AmazonS3 client = ConnectionWarmer.getSharedClient("fast", new Callable<AmazonS3>() {
+                public AmazonS3 call() {
+                    return fast;
+                }
+            }, "bucket", 1, 0);
+            Assert.assertSame(fast, client);
+            Assert.assertFalse(first.isDone());
+        } finally {
+            release.countDown();
+            Assert.assertNotNull(first.get());
+            ConnectionWarmer.shutdownAll();
+        }
+    }
+
+    @Test
+    public void initializeRateLimitsAreShared() {
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setBucket("basdf");
+        testPlugin.setUploadRateLimit(1234L);
+        testPlugin.setDownloadRateLimit(5678L);
+        try {
+            testPlugin.initialize(testContext());
+            Assert.assertEquals(1234L, S3LogMetrics.getInstance().getUploadRateLimit());
+            Assert.assertEquals(5678L, S3LogMetrics.getInstance().getDownloadRateLimit());
+
+            //unset limits are left unchanged
+            testPlugin other = new S3LogFileStoragePluginTest.testPlugin();
+            other.setBucket("basdf");
+            other.initialize(testContext());
+            Assert.assertEquals(1234L, S3LogMetrics.getInstance().getUploadRateLimit());
+
+            //a limit changed at runtime is kept until the configured limit changes
+            S3LogMetrics.getInstance().setUploadRateLimit(4321L);
+            testPlugin.initialize(testContext());
+            Assert.assertEquals(4321L, S3LogMetrics.getInstance().getUploadRateLimit());
+            Assert.assertEquals(5678L, S3LogMetrics.getInstance().getDownloadRateLimit());
+            testPlugin.setUploadRateLimit(2345L);
+            testPlugin.initialize(testContext());
+            Assert.assertEquals(2345L, S3LogMetrics.getInstance().getUploadRateLimit());
+        } finally {
+            S3LogMetrics.getInstance().setUploadRateLimit(0);
+            S3LogMetrics.getInstance().setDownloadRateLimit(0);
+        }
+    }
+
     @Test
     public void isAvailable404() throws ExecutionFileStorageException {
         testPlugin testPlugin = initializeTestPlugin();
@@ -529,6 +664,158 @@ public class S3LogFileStoragePluginTest {
         Assert.assertEquals(testContext().get("serverUUID"), userMetadata.get("rundeck.serverUUID"));
     }
 
+    @Test
+    public void storeUnknownLengthIsSpooled() throws IOException, ExecutionFileStorageException {
+        testPlugin testPlugin = initializeTestPlugin();
+        testPlugin.getTestS3().putObject = new PutObjectResult();
+        testPlugin.getTestS3().putObjectReadContent = true;
+        byte[] data = "some log content".getBytes("UTF-8");
+
+        boolean result = testPlugin.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), -1, new Date());
+        Assert.assertTrue(result);
+        Assert.assertEquals(data.length, testPlugin.getTestS3().putObjectRequest.getMetadata().getContentLength());
+        Assert.assertArrayEquals(data, testPlugin.getTestS3().putObjectContent);
+    }
+
+    @Test
+    public void storeSpoolModeAlways() throws IOException, ExecutionFileStorageException {
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setAWSAccessKeyId("blah");
+        testPlugin.setAWSSecretKey("blah");
+        testPlugin.setBucket("testBucket");
+        testPlugin.setSpoolMode(S3LogFileStoragePlugin.SPOOL_MODE_ALWAYS);
+        testPlugin.initialize(testContext());
+        testPlugin.getTestS3().putObject = new PutObjectResult();
+        testPlugin.getTestS3().putObjectReadContent = true;
+        byte[] data = "some log content".getBytes("UTF-8");
+
+        //reported length is wrong, spooled length is used
+        boolean result = testPlugin.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), 5, new Date());
+        Assert.assertTrue(result);
+        Assert.assertEquals(data.length, testPlugin.getTestS3().putObjectRequest.getMetadata().getContentLength());
+        Assert.assertArrayEquals(data, testPlugin.getTestS3().putObjectContent);
+    }
+
+    @Test
+    public void storeSpoolModeNever() throws IOException, ExecutionFileStorageException {
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setAWSAccessKeyId("blah");
+        testPlugin.setAWSSecretKey("blah");
+        testPlugin.setBucket("testBucket");
+        testPlugin.setSpoolMode(S3LogFileStoragePlugin.SPOOL_MODE_NEVER);
+        testPlugin.initialize(testContext());
+        testPlugin.getTestS3().putObject = new PutObjectResult();
+
+        boolean result = testPlugin.store(DEFAULT_FILETYPE, null, -1, new Date());
+        Assert.assertTrue(result);
+        Assert.assertNull(testPlugin.getTestS3().putObjectRequest.getInputStream());
+    }
+
+    @Test
+    public void initializeInvalidSpoolMode() {
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setBucket("basdf");
+        testPlugin.setSpoolMode("sometimes");
+        try {
+            testPlugin.initialize(testContext());
+            Assert.fail("Expected failure");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("spoolMode was not valid"));
+        }
+    }
+
+    private testPlugin initializeDeduplicatePlugin(HashMap<String, Object> context) {
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setAWSAccessKeyId("blah");
+        testPlugin.setAWSSecretKey("blah");
+        testPlugin.setBucket("testBucket");
+        testPlugin.setDeduplicate(true);
+        testPlugin.initialize(context);
+        testPlugin.getTestS3().putObject = new PutObjectResult();
+        return testPlugin;
+    }
+
+    @Test
+    public void storeDeduplicateSkipsExistingContent() throws IOException, ExecutionFileStorageException {
+        ContentIndex.getShared().clear();
+        testPlugin testPlugin = initializeDeduplicatePlugin(testContext());
+        byte[] data = "some log content".getBytes("UTF-8");
+        ObjectMetadata existing = new ObjectMetadata();
+        existing.setHeader("ETag", "93540cc2b71ee0f6587ab5c3e2813eab");
+        existing.setContentLength(data.length);
+        existing.addUserMetadata("rundeck.execid", "testexecid");
+        testPlugin.getTestS3().getObjectMetadata = existing;
+
+        boolean result = testPlugin.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), data.length, new Date());
+        Assert.assertTrue(result);
+        Assert.assertNull(testPlugin.getTestS3().putObjectRequest);
+        Assert.assertNull(testPlugin.getTestS3().copyObjectRequest);
+    }
+
+    @Test
+    public void storeDeduplicateUploadsChangedContent() throws IOException, ExecutionFileStorageException {
+        ContentIndex.getShared().clear();
+        testPlugin testPlugin = initializeDeduplicatePlugin(testContext());
+        byte[] data = "some log content".getBytes("UTF-8");
+        ObjectMetadata existing = new ObjectMetadata();
+        existing.setHeader("ETag", "00000000000000000000000000000000");
+        existing.setContentLength(data.length);
+        existing.addUserMetadata("rundeck.execid", "testexecid");
+        testPlugin.getTestS3().getObjectMetadata = existing;
+
+        boolean result = testPlugin.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), data.length, new Date());
+        Assert.assertTrue(result);
+        Assert.assertNotNull(testPlugin.getTestS3().putObjectRequest);
+        Assert.assertEquals("k1QMwrce4PZYerXD4oE+qw==",
+                testPlugin.getTestS3().putObjectRequest.getMetadata().getContentMD5());
+    }
+
+    @Test
+    public void storeDeduplicateCopiesKnownContent() throws IOException, ExecutionFileStorageException {
+        ContentIndex.getShared().clear();
+        byte[] data = "some log content".getBytes("UTF-8");
+        testPlugin first = initializeDeduplicatePlugin(testContext());
+        first.getTestS3().getObjectMetadata404 = true;
+        first.getTestS3().putObject.setETag("93540cc2b71ee0f6587ab5c3e2813eab");
+        Assert.assertTrue(first.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertNotNull(first.getTestS3().putObjectRequest);
+
+        HashMap<String, Object> context = testContext();
+        context.put("execid", "otherexecid");
+        testPlugin second = initializeDeduplicatePlugin(context);
+        second.getTestS3().getObjectMetadata404 = true;
+        second.getTestS3().copyObject = new CopyObjectResult();
+        second.getTestS3().copyObject.setETag("93540cc2b71ee0f6587ab5c3e2813eab");
+
+        Assert.assertTrue(second.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertNull(second.getTestS3().putObjectRequest);
+        CopyObjectRequest copy = second.getTestS3().copyObjectRequest;
+        Assert.assertNotNull(copy);
+        Assert.assertEquals("project/testproject/testexecid.rdlog", copy.getSourceKey());
+        Assert.assertEquals("project/testproject/otherexecid.rdlog", copy.getDestinationKey());
+        Assert.assertEquals("otherexecid", copy.getNewObjectMetadata().getUserMetadata().get("rundeck.execid"));
+        Assert.assertEquals(Arrays.asList("93540cc2b71ee0f6587ab5c3e2813eab"), copy.getMatchingETagConstraints());
+    }
+
+    @Test
+    public void storeDeduplicateUploadsEncryptedContent() throws IOException, ExecutionFileStorageException {
+        ContentIndex.getShared().clear();
+        testPlugin testPlugin = new S3LogFileStoragePluginTest.testPlugin();
+        testPlugin.setAWSAccessKeyId("blah");
+        testPlugin.setAWSSecretKey("blah");
+        testPlugin.setBucket("testBucket");
+        testPlugin.setDeduplicate(true);
+        testPlugin.setEncryptionKey(ChunkedCipherTest.TEST_KEY);
+        testPlugin.initialize(testContext());
+        testPlugin.getTestS3().putObject = new PutObjectResult();
+        byte[] data = "some log content".getBytes("UTF-8");
+
+        Assert.assertTrue(testPlugin.store(DEFAULT_FILETYPE, new ByteArrayInputStream(data), data.length, new Date()));
+        Assert.assertNotNull(testPlugin.getTestS3().putObjectRequest);
+        Assert.assertNull(testPlugin.getTestS3().copyObjectRequest);
+        Assert.assertEquals(0, testPlugin.getTestS3().getObjectMetadataCount.get());
+    }
+
     class testOutputStream extends OutputStream {
         boolean wasWrite = false;
         boolean writeIOException = false;
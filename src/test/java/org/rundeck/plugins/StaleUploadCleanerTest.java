@@ -0,0 +1,124 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class StaleUploadCleanerTest {
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final long NOW = 100 * DAY;
+    private final StaleUploadCleaner cleaner = new StaleUploadCleaner();
+    private File journalDir;
+
+    @Before
+    public void setUp() throws IOException {
+        journalDir = File.createTempFile("stale-upload-test", "");
+        journalDir.delete();
+        journalDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        cleaner.shutdown();
+        for (File file : journalDir.listFiles()) {
+            file.delete();
+        }
+        journalDir.delete();
+    }
+
+    /**
+     * Lists uploads two per page
+     */
+    static class uploadsS3 extends FailS3 {
+        final TreeMap<String, Date> uploads = new TreeMap<String, Date>();
+        final List<String> aborted = new ArrayList<String>();
+        int pages;
+
+        void add(String key, long initiated) {
+            uploads.put(key, new Date(initiated));
+        }
+
+        public MultipartUploadListing listMultipartUploads(ListMultipartUploadsRequest request) throws
+                AmazonClientException, AmazonServiceException {
+            pages++;
+            MultipartUploadListing listing = new MultipartUploadListing();
+            SortedMap<String, Date> rest = null != request.getKeyMarker() ? uploads.tailMap(request.getKeyMarker() +
+                    "\0") : uploads;
+            for (Map.Entry<String, Date> upload : rest.entrySet()) {
+                if (!upload.getKey().startsWith(request.getPrefix())) {
+                    continue;
+                }
+                if (listing.getMultipartUploads().size() == 2) {
+                    listing.setTruncated(true);
+                    break;
+                }
+                MultipartUpload summary = new MultipartUpload();
+                summary.setKey(upload.getKey());
+                summary.setUploadId("id-" + upload.getKey());
+                summary.setInitiated(upload.getValue());
+                listing.getMultipartUploads().add(summary);
+                listing.setNextKeyMarker(upload.getKey());
+                listing.setNextUploadIdMarker(summary.getUploadId());
+            }
+            return listing;
+        }
+
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            Assert.assertEquals("id-" + request.getKey(), request.getUploadId());
+            aborted.add(request.getKey());
+            uploads.remove(request.getKey());
+        }
+    }
+
+    @Test
+    public void abortsStaleUploads() throws IOException {
+        uploadsS3 s3 = new uploadsS3();
+        s3.add("logs/A/1.rdlog", NOW - 3 * DAY);
+        s3.add("logs/A/2.rdlog", NOW - 2 * DAY);
+        s3.add("logs/A/3.rdlog", NOW - 1000);
+        s3.add("logs/B/4.rdlog", NOW - 3 * DAY);
+        s3.add("logs/B/5.rdlog", NOW - 1000);
+        s3.add("other/6.rdlog", NOW - 3 * DAY);
+        MultipartJournal journal = new MultipartJournal(journalDir);
+        MultipartJournal.Entry stale = journal.open("bucket", "logs/A/1.rdlog");
+        stale.start("bucket", "logs/A/1.rdlog", "id-logs/A/1.rdlog", "fingerprint");
+        stale.getFile().setLastModified(NOW - 3 * DAY);
+        MultipartJournal.Entry current = journal.open("bucket", "logs/A/3.rdlog");
+        current.start("bucket", "logs/A/3.rdlog", "id-logs/A/3.rdlog", "fingerprint");
+        current.getFile().setLastModified(NOW - 1000);
+        //an old upload which is being resumed
+        MultipartJournal.Entry resumed = journal.open("bucket", "logs/B/4.rdlog");
+        resumed.start("bucket", "logs/B/4.rdlog", "id-logs/B/4.rdlog", "fingerprint");
+        resumed.getFile().setLastModified(NOW - 1000);
+
+        cleaner.register(new StaleUploadCleaner.Target(s3, "bucket", "logs/", journal, DAY));
+        Assert.assertEquals(1, cleaner.cleanAll(NOW));
+
+        Assert.assertEquals(Arrays.asList("logs/A/2.rdlog"), s3.aborted);
+        Assert.assertEquals(3, s3.pages);
+        Assert.assertFalse(stale.getFile().exists());
+        Assert.assertTrue(current.getFile().exists());
+        Assert.assertTrue(resumed.getFile().exists());
+
+        //the upload whose journal file was deleted is aborted by the next cleaning
+        Assert.assertEquals(1, cleaner.cleanAll(NOW));
+        Assert.assertEquals(Arrays.asList("logs/A/2.rdlog", "logs/A/1.rdlog"), s3.aborted);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPrefixIsRefused() {
+        cleaner.register(new StaleUploadCleaner.Target(new uploadsS3(), "bucket", "", null, DAY));
+    }
+}
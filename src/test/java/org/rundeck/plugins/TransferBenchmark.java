@@ -0,0 +1,218 @@
+package org.rundeck.plugins;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of many concurrent stores and retrieves against a simulated S3 with a fixed latency and
+ * per-connection bandwidth, and the number of threads the transfer engine holds while doing so. If a directory is
+ * given, the logs are stored there with the filesystem backend instead, on the same code path.
+ * <p/>
+ * Usage: TransferBenchmark [concurrency] [sizeMB] [latencyMillis] [connectionMBps] [filesystemRoot]
+ */
+public class TransferBenchmark {
+    static final int MB = 1024 * 1024;
+
+    /**
+     * Discards uploads and serves zeros, taking the latency plus the transfer time at the connection bandwidth for
+     * each request
+     */
+    static class simulatedS3 extends FailS3 {
+        final long latencyMillis;
+        final long bytesPerSecond;
+        final long size;
+        final AtomicLong transferred = new AtomicLong();
+
+        simulatedS3(long latencyMillis, long bytesPerSecond, long size) {
+            this.latencyMillis = latencyMillis;
+            this.bytesPerSecond = bytesPerSecond;
+            this.size = size;
+        }
+
+        private void transfer(long bytes) {
+            transferred.addAndGet(bytes);
+            try {
+                Thread.sleep(latencyMillis + bytes * 1000 / bytesPerSecond);
+            } catch (InterruptedException e) {
+                throw new AmazonClientException("interrupted", e);
+            }
+        }
+
+        private static long drain(InputStream in) {
+            byte[] buf = new byte[64 * 1024];
+            long count = 0;
+            int len;
+            try {
+                while ((len = in.read(buf)) >= 0) {
+                    count += len;
+                }
+            } catch (IOException e) {
+                throw new AmazonClientException("read", e);
+            }
+            return count;
+        }
+
+        public PutObjectResult putObject(PutObjectRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            transfer(drain(request.getInputStream()));
+            return new PutObjectResult();
+        }
+
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request)
+                throws AmazonClientException, AmazonServiceException {
+            transfer(0);
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("uploadId");
+            return result;
+        }
+
+        public UploadPartResult uploadPart(UploadPartRequest request) throws AmazonClientException,
+                AmazonServiceException {
+            if (null != request.getInputStream()) {
+                drain(request.getInputStream());
+            }
+            transfer(request.getPartSize());
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        }
+
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) throws
+                AmazonClientException, AmazonServiceException {
+            transfer(0);
+            return new CompleteMultipartUploadResult();
+        }
+
+        public S3Object getObject(String bucketName, String key) throws AmazonClientException,
+                AmazonServiceException {
+            transfer(size);
+            S3Object object = new S3Object();
+            object.setObjectMetadata(new ObjectMetadata());
+            object.setObjectContent(new zeros(size));
+            return object;
+        }
+
+        public void setRegion(Region region) throws IllegalArgumentException {
+        }
+    }
+
+    static class zeros extends InputStream {
+        long remaining;
+
+        zeros(long remaining) {
+            this.remaining = remaining;
+        }
+
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    static class benchmarkPlugin extends S3LogFileStoragePlugin {
+        final simulatedS3 s3;
+
+        benchmarkPlugin(simulatedS3 s3) {
+            this.s3 = s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client(AWSCredentials awsCredentials) {
+            return s3;
+        }
+
+        protected AmazonS3 createAmazonS3Client() {
+            return s3;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int sizeMB = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        long connectionMBps = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        final String filesystemRoot = args.length > 4 ? args[4] : null;
+        final simulatedS3 s3 = new simulatedS3(latencyMillis, connectionMBps * MB, (long) sizeMB * MB);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baseline = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < concurrency; i++) {
+            final String execid = Integer.toString(i);
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        benchmarkPlugin plugin = new benchmarkPlugin(s3);
+                        if (null != filesystemRoot) {
+                            plugin.setBackend(S3LogFileStoragePlugin.BACKEND_FILESYSTEM);
+                            plugin.setFilesystemRoot(filesystemRoot);
+                        }
+                        plugin.setBucket("benchmark");
+                        plugin.setRegion(S3LogFileStoragePlugin.DEFAULT_REGION);
+                        plugin.setPath("benchmark/${job.execid}");
+                        Map<String, Object> context = new HashMap<String, Object>();
+                        context.put("execid", execid);
+                        context.put("project", "benchmark");
+                        plugin.initialize(context);
+                        start.await();
+                        plugin.store("rdlog", new zeros((long) sizeMB * MB), (long) sizeMB * MB, new Date());
+                        plugin.retrieve("rdlog", new ByteArrayOutputStream() {
+                            public void write(byte[] b, int off, int len) {
+                            }
+                        });
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "benchmark-" + i).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+
+        if (null != filesystemRoot) {
+            System.out.printf("%d concurrent store+retrieve of %d MB in %s%n", concurrency, sizeMB, filesystemRoot);
+        } else {
+            System.out.printf("%d concurrent store+retrieve of %d MB, %d ms latency, %d MB/s per connection%n",
+                    concurrency, sizeMB, latencyMillis, connectionMBps);
+        }
+        System.out.printf("elapsed %.1f s   throughput %.1f MB/s   failures %d%n", seconds,
+                2.0 * concurrency * sizeMB / seconds, failures.get());
+        System.out.printf("peak threads %d (%d callers, %d engine)%n", threads.getPeakThreadCount(), concurrency,
+                threads.getPeakThreadCount() - concurrency - baseline);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,117 @@
+package org.rundeck.plugins;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+@RunWith(JUnit4.class)
+public class TransferExecutorsTest {
+
+    @After
+    public void tearDown() {
+        TransferExecutors.setMaxConcurrentTransfers(TransferExecutors.DEFAULT_MAX_CONCURRENT_TRANSFERS);
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void virtualThreadsWhenAvailable() throws Exception {
+        Assert.assertEquals(hasVirtualThreads(), TransferExecutors.isVirtual());
+        String name = TransferExecutors.getShared().submit(new Callable<String>() {
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        }).get();
+        Assert.assertTrue(name, name.startsWith("rundeck-s3-transfer-"));
+    }
+
+    @Test
+    public void busyExecutorNeverRunsOnCaller() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread caller = Thread.currentThread();
+        Future<?>[] futures = new Future<?>[300];
+        try {
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = TransferExecutors.getShared().submit(new Callable<Object>() {
+                    public Object call() throws InterruptedException {
+                        Assert.assertNotSame(caller, Thread.currentThread());
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            release.countDown();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    @Test
+    public void configuredLimitKeepsRuntimeChange() {
+        TransferExecutors.configureMaxConcurrentTransfers(5);
+        Assert.assertEquals(5, TransferExecutors.getMaxConcurrentTransfers());
+        S3LogMetrics.getInstance().setMaxConcurrentTransfers(7);
+        TransferExecutors.configureMaxConcurrentTransfers(5);
+        Assert.assertEquals(7, TransferExecutors.getMaxConcurrentTransfers());
+        TransferExecutors.configureMaxConcurrentTransfers(6);
+        Assert.assertEquals(6, TransferExecutors.getMaxConcurrentTransfers());
+    }
+
+    @Test
+    public void transferPermits() throws Exception {
+        TransferExecutors.setMaxConcurrentTransfers(2);
+        TransferExecutors.acquireTransfer("bucket", "a");
+        TransferExecutors.acquireTransfer("bucket", "b");
+
+        Future<?> third = TransferExecutors.getShared().submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                TransferExecutors.acquireTransfer("bucket", "c");
+                return null;
+            }
+        });
+        try {
+            third.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("should wait");
+        } catch (TimeoutException expected) {
+        }
+
+        //raising the limit frees a permit while the others are held
+        TransferExecutors.setMaxConcurrentTransfers(3);
+        third.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, TransferExecutors.getMaxConcurrentTransfers());
+
+        TransferExecutors.setMaxConcurrentTransfers(1);
+        TransferExecutors.releaseTransfer();
+        TransferExecutors.releaseTransfer();
+        TransferExecutors.releaseTransfer();
+        TransferExecutors.acquireTransfer("bucket", "d");
+        Future<?> fifth = TransferExecutors.getShared().submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                TransferExecutors.acquireTransfer("bucket", "e");
+                return null;
+            }
+        });
+        try {
+            fifth.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("should wait");
+        } catch (TimeoutException expected) {
+        }
+        TransferExecutors.releaseTransfer();
+        fifth.get(5, TimeUnit.SECONDS);
+        TransferExecutors.releaseTransfer();
+    }
+}